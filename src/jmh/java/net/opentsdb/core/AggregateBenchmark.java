@@ -0,0 +1,125 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+
+import net.opentsdb.core.BenchmarkData.Distribution;
+
+/**
+ * Group-by style aggregation of many digests into one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+
+  @Param({ "10", "100", "1000", "10000", "100000" })
+  public int digests;
+  
+  @Param({ "LOGNORMAL", "HEAVY_TAIL" })
+  public Distribution distribution;
+  
+  @Param({ "100" })
+  public double compression;
+  
+  /** Values per input digest. */
+  @Param({ "500" })
+  public int values;
+  
+  private List<Histogram> histograms;
+  private List<byte[]> cells;
+  private MergingTDigestTDigestCodec codec;
+  private ForkJoinPool pool;
+  
+  @Setup
+  public void setup() {
+    final Random rnd = new Random(42);
+    histograms = Lists.newArrayListWithCapacity(digests);
+    cells = Lists.newArrayListWithCapacity(digests);
+    for (int i = 0; i < digests; i++) {
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(1);
+      histo.setDigest(BenchmarkData.digest(rnd, distribution, compression, 
+          values));
+      histograms.add(histo);
+      cells.add(BenchmarkData.smallBytes(histo.getDigest(), false));
+    }
+    codec = new MergingTDigestTDigestCodec();
+    codec.setId(1);
+    pool = new ForkJoinPool();
+  }
+  
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+  
+  @Benchmark
+  public MergingTDigestImplementation aggregate() {
+    final MergingTDigestImplementation result = newResult();
+    result.aggregate(histograms, HistogramAggregation.SUM);
+    return result;
+  }
+  
+  @Benchmark
+  public MergingTDigestImplementation aggregateParallel() {
+    final MergingTDigestImplementation result = newResult();
+    result.setParallelAggregation(pool, 2);
+    result.aggregate(histograms, HistogramAggregation.SUM);
+    return result;
+  }
+  
+  @Benchmark
+  public MergingTDigestImplementation aggregatePairwise() {
+    final MergingTDigestImplementation result = newResult();
+    for (final Histogram histogram : histograms) {
+      result.aggregate(histogram, HistogramAggregation.SUM);
+    }
+    return result;
+  }
+  
+  @Benchmark
+  public byte[] mergeEncoded() {
+    return codec.mergeEncoded(cells, false, compression);
+  }
+  
+  private MergingTDigestImplementation newResult() {
+    final MergingTDigestImplementation result = 
+        new MergingTDigestImplementation(1);
+    result.setDigest(MergingDigest.createDigest(compression));
+    return result;
+  }
+}
@@ -0,0 +1,95 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * Generates realistic digests for the benchmarks.
+ */
+final class BenchmarkData {
+
+  /** The shapes of the generated values. */
+  enum Distribution {
+    /** Request latencies, log-normal around ~20ms. */
+    LOGNORMAL,
+    /** A fast cached path and a slow uncached path. */
+    BIMODAL,
+    /** Pareto distributed values with a long tail. */
+    HEAVY_TAIL
+  }
+
+  private BenchmarkData() {
+    // static helpers
+  }
+
+  /**
+   * @param rnd The random source.
+   * @param distribution The shape of the values.
+   * @return A single value.
+   */
+  static double next(final Random rnd, final Distribution distribution) {
+    switch (distribution) {
+    case LOGNORMAL:
+      return Math.exp(3 + rnd.nextGaussian() * 0.5);
+    case BIMODAL:
+      return rnd.nextDouble() < 0.8 
+          ? 2 + rnd.nextGaussian() * 0.3 
+          : 250 + rnd.nextGaussian() * 40;
+    case HEAVY_TAIL:
+      return 1 / Math.pow(1 - rnd.nextDouble(), 1 / 1.2);
+    default:
+      throw new IllegalArgumentException("Unknown distribution: " 
+          + distribution);
+    }
+  }
+
+  /**
+   * @param rnd The random source.
+   * @param distribution The shape of the values.
+   * @param compression The compression of the digest.
+   * @param values The number of values to add.
+   * @return A new digest.
+   */
+  static TDigest digest(final Random rnd, 
+                        final Distribution distribution,
+                        final double compression, 
+                        final int values) {
+    final TDigest digest = MergingDigest.createDigest(compression);
+    for (int i = 0; i < values; i++) {
+      digest.add(next(rnd, distribution));
+    }
+    digest.compress();
+    return digest;
+  }
+
+  /**
+   * @param digest The digest to encode.
+   * @param include_id Whether or not to prefix an ID of 1.
+   * @return The digest's small encoding.
+   */
+  static byte[] smallBytes(final TDigest digest, final boolean include_id) {
+    final int offset = include_id ? 1 : 0;
+    final byte[] encoded = new byte[digest.smallByteSize() + offset];
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    if (include_id) {
+      buf.put((byte) 1);
+    }
+    digest.asSmallBytes(buf);
+    return encoded;
+  }
+}
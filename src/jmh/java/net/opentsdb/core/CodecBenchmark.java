@@ -0,0 +1,125 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.opentsdb.core.BenchmarkData.Distribution;
+
+/**
+ * Encoding, decoding and cloning of single data points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+  @Param({ "LOGNORMAL", "BIMODAL", "HEAVY_TAIL" })
+  public Distribution distribution;
+  
+  @Param({ "50", "100", "200" })
+  public double compression;
+  
+  /** Values per digest, e.g. requests per minute for one series. */
+  @Param({ "10000" })
+  public int values;
+  
+  private MergingTDigestTDigestCodec codec;
+  private MergingTDigestTDigestCodec compact_codec;
+  private MergingTDigestTDigestCodec lazy_codec;
+  private MergingTDigestImplementation histogram;
+  private byte[] raw;
+  private byte[] raw_with_id;
+  private byte[] compact_with_id;
+  
+  @Setup
+  public void setup() {
+    codec = new MergingTDigestTDigestCodec();
+    codec.setId(1);
+    compact_codec = new MergingTDigestTDigestCodec();
+    compact_codec.setId(1);
+    compact_codec.setCompactEncoding(true, false);
+    lazy_codec = new MergingTDigestTDigestCodec();
+    lazy_codec.setId(1);
+    lazy_codec.setLazyDecode(true);
+    
+    histogram = new MergingTDigestImplementation(1);
+    histogram.setDigest(BenchmarkData.digest(new Random(42), distribution, 
+        compression, values));
+    raw = BenchmarkData.smallBytes(histogram.getDigest(), false);
+    raw_with_id = BenchmarkData.smallBytes(histogram.getDigest(), true);
+    compact_with_id = compact_codec.encode(histogram, true);
+  }
+  
+  @Benchmark
+  public byte[] encode() {
+    return codec.encode(histogram, true);
+  }
+  
+  @Benchmark
+  public byte[] encodeCompact() {
+    return compact_codec.encode(histogram, true);
+  }
+  
+  @Benchmark
+  public Histogram decode() {
+    return codec.decode(raw_with_id, true);
+  }
+  
+  @Benchmark
+  public Histogram decodeCompact() {
+    return codec.decode(compact_with_id, true);
+  }
+  
+  @Benchmark
+  public byte[] decodeLazyAndReencode() {
+    return lazy_codec.encode(lazy_codec.decode(raw_with_id, true), true);
+  }
+  
+  @Benchmark
+  public MergingTDigestImplementation fromHistogram() {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(1);
+    histo.fromHistogram(raw, false);
+    return histo;
+  }
+  
+  @Benchmark
+  public MergingTDigestImplementation fromHistogramWithId() {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(1);
+    histo.fromHistogram(raw_with_id, true);
+    return histo;
+  }
+  
+  @Benchmark
+  public Histogram cloneHistogram() {
+    return histogram.clone();
+  }
+}
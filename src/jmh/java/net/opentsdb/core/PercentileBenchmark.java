@@ -0,0 +1,134 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import net.opentsdb.core.BenchmarkData.Distribution;
+
+/**
+ * Percentile lookups as issued by dashboards. The fresh variants decode the
+ * data point first, as a query over stored cells would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PercentileBenchmark {
+
+  @Param({ "LOGNORMAL", "BIMODAL", "HEAVY_TAIL" })
+  public Distribution distribution;
+  
+  @Param({ "100", "200" })
+  public double compression;
+  
+  private static final double[] PERCENTILES = 
+      new double[] { 50, 75, 90, 95, 99, 99.9, 99.99 };
+  
+  /** The number of data points in the batch benchmarks. */
+  private static final int BATCH_SIZE = 1000;
+  
+  private MergingTDigestImplementation histogram;
+  private List<Double> percentile_list;
+  private byte[] raw;
+  private List<byte[]> cells;
+  
+  @Setup
+  public void setup() {
+    histogram = new MergingTDigestImplementation(1);
+    histogram.setDigest(BenchmarkData.digest(new Random(42), distribution, 
+        compression, 100000));
+    raw = BenchmarkData.smallBytes(histogram.getDigest(), false);
+    final Random rnd = new Random(42);
+    cells = Lists.newArrayListWithCapacity(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      cells.add(BenchmarkData.smallBytes(BenchmarkData.digest(rnd, 
+          distribution, compression, 10000), false));
+    }
+    percentile_list = Lists.newArrayListWithCapacity(PERCENTILES.length);
+    for (final double p : PERCENTILES) {
+      percentile_list.add(p);
+    }
+  }
+  
+  @Benchmark
+  public double percentile() {
+    return histogram.percentile(99);
+  }
+  
+  @Benchmark
+  public List<Double> percentilesList() {
+    return histogram.percentiles(percentile_list);
+  }
+  
+  @Benchmark
+  public double[] percentilesArray() {
+    return histogram.percentiles(PERCENTILES);
+  }
+  
+  @Benchmark
+  public List<Double> percentilesListFresh() {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(1);
+    histo.fromHistogram(raw, false);
+    return histo.percentiles(percentile_list);
+  }
+  
+  @Benchmark
+  public double[] percentilesArrayFresh() {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(1);
+    histo.fromHistogram(raw, false);
+    return histo.percentiles(PERCENTILES);
+  }
+  
+  @Benchmark
+  public double[][] percentilesEachFresh() {
+    final double[][] results = new double[cells.size()][];
+    for (int i = 0; i < cells.size(); i++) {
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(1);
+      histo.fromHistogram(cells.get(i), false);
+      results[i] = histo.percentiles(PERCENTILES);
+    }
+    return results;
+  }
+  
+  @Benchmark
+  public double[][] percentilesBatch() {
+    return BatchPercentiles.evaluateEncoded(cells, false, PERCENTILES, null);
+  }
+  
+  @Benchmark
+  public double cdf() {
+    return histogram.cdf(100);
+  }
+}
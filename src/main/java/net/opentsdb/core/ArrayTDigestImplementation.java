@@ -0,0 +1,398 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+import net.opentsdb.core.Histogram;
+import net.opentsdb.core.HistogramAggregation;
+
+/**
+ * A t-digest histogram for the query path that keeps its centroids in 
+ * primitive mean and weight arrays read straight from the stored bytes, 
+ * without {@link com.tdunning.math.stats.TDigest}'s ingestion buffers or 
+ * per-centroid objects. Merges reuse the histogram's own scratch arrays and
+ * use the same size bound as 
+ * {@link com.tdunning.math.stats.MergingDigest}. Reads and writes the same 
+ * encodings as {@link MergingTDigestImplementation} and also aggregates 
+ * with it.
+ * <p>
+ * Not thread safe.
+ *  
+ * @since 2.4
+ */
+public class ArrayTDigestImplementation implements Histogram {
+
+  /** The ID of this histogram in the TSD. */
+  private final int id;
+  
+  /** The sorted centroids and the min and max. */
+  private final CentroidMerger centroids;
+  
+  /** The compression of the digest, 0 if the digest was not set. */
+  private double compression;
+  
+  /** A cached snapshot of the centroids for repeated lookups. Reset whenever
+   * the centroids change. */
+  private CentroidIndex index;
+  
+  /**
+   * Default ctor.
+   * @param id The ID within the TSD.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255.
+   */
+  public ArrayTDigestImplementation(final int id) {
+    if (id < 0 || id > 255) {
+      throw new IllegalArgumentException("ID must be between 0 and 255");
+    }
+    this.id = id;
+    centroids = new CentroidMerger(16);
+  }
+  
+  /**
+   * Ctor for an empty digest, e.g. to aggregate into.
+   * @param id The ID within the TSD.
+   * @param compression The compression of the digest.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255
+   * or the compression was not positive.
+   */
+  public ArrayTDigestImplementation(final int id, final double compression) {
+    this(id);
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    this.compression = compression;
+  }
+  
+  @Override
+  public byte[] histogram(final boolean include_id) {
+    checkSet();
+    return CompactEncoding.encodeSmall(compression, centroids.min(), 
+        centroids.max(), centroids.means(), centroids.weights(), 
+        centroids.size(), include_id, id);
+  }
+  
+  /**
+   * Encodes the digest in the compact format. See {@link CompactEncoding}.
+   * @param include_id Whether or not to prefix the ID.
+   * @param lossy_float_means Whether or not to store means as floats, 
+   * losing precision, when all of them fit the float range.
+   * @param summary Whether or not to write the summary header.
+   * @return The encoded digest.
+   * @throws IllegalStateException if the digest was not set.
+   */
+  public byte[] compactHistogram(final boolean include_id, 
+                                 final boolean lossy_float_means, 
+                                 final boolean summary) {
+    checkSet();
+    return CompactEncoding.encode(compression, centroids.min(), 
+        centroids.max(), centroids.means(), centroids.weights(), 
+        centroids.size(), include_id, id, lossy_float_means, summary);
+  }
+
+  @Override
+  public void fromHistogram(final byte[] raw, final boolean includes_id) {
+    if (raw == null || raw.length < 8) {
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    if (includes_id && raw.length < 9) {
+      throw new IllegalArgumentException("Must have more than 1 bytes.");
+    }
+    final int offset = includes_id ? 1 : 0;
+    fromByteBuffer(ByteBuffer.wrap(raw, offset, raw.length - offset));
+  }
+  
+  /**
+   * Reads the centroids from the remaining bytes of the buffer, reusing this
+   * histogram's arrays. The buffer's position is advanced.
+   * @param buf The buffer positioned at the encoded digest, after the ID.
+   * @throws IllegalArgumentException if the encoding was not recognized.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  public void fromByteBuffer(final ByteBuffer buf) {
+    centroids.reset();
+    index = null;
+    compression = 0;
+    final long start = System.nanoTime();
+    try {
+      compression = CompactEncoding.readCentroids(buf, centroids);
+    } catch (RuntimeException e) {
+      centroids.reset();
+      TDigestStats.DECODE_FAILURES.increment();
+      throw e;
+    }
+    TDigestStats.decoded(start, centroids.size());
+  }
+
+  @Override
+  public double percentile(final double p) {
+    return index().quantile(p / 100);
+  }
+
+  @Override
+  public List<Double> percentiles(final List<Double> p) {
+    final double[] ps = new double[p.size()];
+    for (int i = 0; i < ps.length; i++) {
+      ps[i] = p.get(i);
+    }
+    final double[] results = percentiles(ps);
+    final List<Double> percentiles = Lists.newArrayListWithCapacity(p.size());
+    for (int i = 0; i < results.length; i++) {
+      percentiles.add(results[i]);
+    }
+    return percentiles;
+  }
+  
+  /**
+   * Computes all of the percentiles with a single pass over the centroids.
+   * @param p The percentiles from 0 to 100.
+   * @return The values in the same order as the percentiles.
+   * @throws IllegalArgumentException if a percentile was not within 0 and 
+   * 100.
+   */
+  public double[] percentiles(final double[] p) {
+    final double[] qs = new double[p.length];
+    for (int i = 0; i < p.length; i++) {
+      qs[i] = p[i] / 100;
+    }
+    final double[] results = new double[p.length];
+    index().quantiles(qs, results);
+    return results;
+  }
+  
+  /**
+   * Estimates the fraction of values less than or equal to the given value.
+   * @param x The value to look up.
+   * @return A fraction from 0 to 1 or NaN if the digest is empty.
+   */
+  public double cdf(final double x) {
+    return index().cdf(x);
+  }
+  
+  /** @return The smallest value added to the digest. */
+  public double getMin() {
+    checkSet();
+    return centroids.min();
+  }
+  
+  /** @return The largest value added to the digest. */
+  public double getMax() {
+    checkSet();
+    return centroids.max();
+  }
+  
+  /** @return The number of values added to the digest. */
+  public long getCount() {
+    return (long) index().total();
+  }
+  
+  /** @return The sum of the values, estimated from the centroids. */
+  public double getSum() {
+    checkSet();
+    final double[] means = centroids.means();
+    final double[] weights = centroids.weights();
+    double sum = 0;
+    for (int i = 0; i < centroids.size(); i++) {
+      sum += means[i] * weights[i];
+    }
+    return sum;
+  }
+  
+  /** @return The mean of the values or NaN if the digest is empty. */
+  public double getMean() {
+    final long count = getCount();
+    return count == 0 ? Double.NaN : getSum() / count;
+  }
+  
+  /** @return The compression of the digest. */
+  public double getCompression() {
+    return compression;
+  }
+  
+  /** @return The number of centroids. */
+  public int centroidCount() {
+    return centroids.size();
+  }
+
+  /**
+   * Exports the digest as a bucketed histogram over {@link 
+   * HistogramBuckets#DEFAULT_BUCKETS} buckets between the min and max, log 
+   * scaled if all values are positive. See {@link #getHistogram(double[])}.
+   * @return A sorted map of bucket upper bounds to counts, empty if the 
+   * digest is empty.
+   */
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Map getHistogram() {
+    if (getCount() == 0) {
+      return new TreeMap<Double, Long>();
+    }
+    return getHistogram(
+        HistogramBuckets.defaultBoundaries(getMin(), getMax()));
+  }
+  
+  /**
+   * Exports the digest as a bucketed histogram, e.g. for a heatmap. See 
+   * {@link #bucketCounts(double[])}.
+   * @param boundaries The bucket boundaries in ascending order.
+   * @return A sorted map of each bucket's upper bound, positive infinity 
+   * for the last, to the estimated number of values in the bucket.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public Map<Double, Long> getHistogram(final double[] boundaries) {
+    return HistogramBuckets.toMap(boundaries, bucketCounts(boundaries));
+  }
+  
+  /**
+   * Estimates the number of values in each bucket with a single walk over 
+   * the boundaries and the centroids' cumulative weights, rather than a CDF
+   * lookup per boundary.
+   * @param boundaries The bucket boundaries in ascending order, e.g. from 
+   * {@link HistogramBuckets#logBoundaries(double, double, int)}.
+   * @return An array one longer than the boundaries: the count at or below
+   * the first boundary, then the count above each boundary and at or below
+   * the next, then the count above the last.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public double[] bucketCounts(final double[] boundaries) {
+    if (boundaries == null) {
+      throw new IllegalArgumentException("Boundaries cannot be null.");
+    }
+    final double[] counts = new double[boundaries.length + 1];
+    index().counts(boundaries, counts);
+    return counts;
+  }
+
+  /**
+   * Returns a copy of the centroid arrays. No encoding is involved.
+   * @return The clone.
+   */
+  @Override
+  public Histogram clone() {
+    final ArrayTDigestImplementation clone = new ArrayTDigestImplementation(id);
+    clone.compression = compression;
+    clone.centroids.add(centroids);
+    // the index is immutable so it's safe to share until either changes.
+    clone.index = index;
+    return clone;
+  }
+
+  @Override
+  public int getId() {
+    return id;
+  }
+
+  @Override
+  public void aggregate(final Histogram histo, final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Function " + func 
+          + " is not supported yet."); 
+    }
+    checkType(histo);
+    checkSet();
+    final long start = System.nanoTime();
+    addTo(histo);
+    centroids.compress(compression);
+    index = null;
+    TDigestStats.merged(start, 1, centroids.size());
+  }
+
+  @Override
+  public void aggregate(final List<Histogram> histos, 
+                        final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Function " + func 
+          + " is not supported yet."); 
+    }
+    for (final Histogram histogram : histos) {
+      checkType(histogram);
+    }
+    checkSet();
+    if (histos.isEmpty()) {
+      return;
+    }
+    final long start = System.nanoTime();
+    for (final Histogram histogram : histos) {
+      addTo(histogram);
+    }
+    centroids.compress(compression);
+    index = null;
+    TDigestStats.merged(start, histos.size(), centroids.size());
+  }
+  
+  /** @return The buffer holding the centroids. Package private for the 
+   * codec and tests. */
+  CentroidMerger centroids() {
+    return centroids;
+  }
+  
+  /**
+   * Adds the centroids of the histogram to this one's buffer without 
+   * compressing.
+   * @param histo A histogram of a supported type.
+   */
+  private void addTo(final Histogram histo) {
+    MergingTDigestImplementation.addTo(histo, centroids);
+  }
+  
+  /**
+   * Adds this histogram's centroids and range to the merger.
+   * @param merger The merger to add to.
+   * @throws IllegalStateException if the sketch was not set.
+   */
+  void addTo(final CentroidMerger merger) {
+    checkSet();
+    merger.add(centroids);
+  }
+  
+  /** @return The cached centroid index, built on first use. */
+  private CentroidIndex index() {
+    checkSet();
+    if (index == null) {
+      index = new CentroidIndex(centroids.means(), centroids.weights(), 
+          centroids.size(), centroids.min(), centroids.max());
+    }
+    return index;
+  }
+  
+  /**
+   * @throws IllegalStateException if the digest was not set.
+   */
+  private void checkSet() {
+    if (compression <= 0) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+  }
+  
+  /**
+   * @param histo The histogram to check.
+   * @throws IllegalArgumentException if the histogram is not a supported 
+   * type.
+   */
+  private static void checkType(final Histogram histo) {
+    if (!(histo instanceof ArrayTDigestImplementation) && 
+        !(histo instanceof MergingTDigestImplementation)) {
+      throw new IllegalArgumentException("Incoming histogram was not of the "
+          + "same type: " + (histo == null ? null : histo.getClass()));
+    }
+  }
+}
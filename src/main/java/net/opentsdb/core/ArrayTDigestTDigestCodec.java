@@ -0,0 +1,155 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+
+import net.opentsdb.core.Histogram;
+import net.opentsdb.core.HistogramDataPointCodec;
+import net.opentsdb.utils.Config;
+
+/**
+ * Plugin that decodes t-digests into {@link ArrayTDigestImplementation}s for
+ * read and merge heavy query workloads. Reads and writes the same bytes as 
+ * {@link MergingTDigestTDigestCodec} so either codec may be configured for 
+ * the same ID without migrating data.
+ * 
+ * @since 2.4
+ */
+public class ArrayTDigestTDigestCodec extends HistogramDataPointCodec {
+
+  /** Whether or not to write the compact format. */
+  private boolean compact_encoding;
+  
+  /** Whether or not the compact format may store means as floats even when
+   * that loses precision. */
+  private boolean lossy_float_means;
+  
+  /** Whether or not to write the summary header. */
+  private boolean summary_header;
+  
+  @Override
+  public Histogram decode(final byte[] raw_data, final boolean includes_id) {
+    if (raw_data == null || raw_data.length < 8) {
+      TDigestStats.DECODE_FAILURES.increment();
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    final ArrayTDigestImplementation histogram = 
+        new ArrayTDigestImplementation(id);
+    histogram.fromHistogram(raw_data, includes_id);
+    TDigestStats.DECODES.increment();
+    TDigestStats.DECODE_BYTES.add(raw_data.length);
+    return histogram;
+  }
+  
+  /**
+   * Decodes the remaining bytes of the buffer without copying them first. 
+   * The buffer's position is not modified.
+   * @param buf The buffer to read from.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @return The decoded histogram.
+   * @throws IllegalArgumentException if the buffer was null or too short.
+   */
+  public Histogram decodeBuffer(final ByteBuffer buf, 
+                                final boolean includes_id) {
+    if (buf == null || buf.remaining() < (includes_id ? 9 : 8)) {
+      TDigestStats.DECODE_FAILURES.increment();
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    final ArrayTDigestImplementation histogram = 
+        new ArrayTDigestImplementation(id);
+    final ByteBuffer view = buf.duplicate();
+    if (includes_id) {
+      view.position(view.position() + 1);
+    }
+    histogram.fromByteBuffer(view);
+    TDigestStats.DECODES.increment();
+    TDigestStats.DECODE_BYTES.add(buf.remaining());
+    return histogram;
+  }
+
+  @Override
+  public byte[] encode(final Histogram data_point, final boolean include_id) {
+    if (data_point == null) {
+      throw new IllegalArgumentException("Histogram cannot be null.");
+    }
+    final byte[] encoded;
+    if ((compact_encoding || summary_header) && 
+        data_point instanceof ArrayTDigestImplementation) {
+      encoded = ((ArrayTDigestImplementation) data_point).compactHistogram(
+          include_id, lossy_float_means, summary_header);
+    } else {
+      encoded = data_point.histogram(include_id);
+    }
+    TDigestStats.ENCODES.increment();
+    TDigestStats.ENCODE_BYTES.add(encoded.length);
+    return encoded;
+  }
+  
+  /**
+   * Applies the encoding settings shared with 
+   * {@link MergingTDigestTDigestCodec}: {@code compact_encoding}, 
+   * {@code compact_encoding.lossy_floats} and {@code summary_header} under
+   * {@link MergingTDigestTDigestCodec#CONFIG_PREFIX}.
+   * @param config A non-null config.
+   * @throws IllegalArgumentException if the config was null.
+   */
+  public void configure(final Config config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config cannot be null.");
+    }
+    final String prefix = MergingTDigestTDigestCodec.CONFIG_PREFIX;
+    if (config.hasProperty(prefix + "compact_encoding")) {
+      setCompactEncoding(config.getBoolean(prefix + "compact_encoding"),
+          config.hasProperty(prefix + "compact_encoding.lossy_floats") 
+            && config.getBoolean(prefix + "compact_encoding.lossy_floats"));
+    }
+    if (config.hasProperty(prefix + "summary_header")) {
+      setSummaryHeader(config.getBoolean(prefix + "summary_header"));
+    }
+  }
+  
+  /**
+   * Enables writing digests in the compact format. See 
+   * {@link MergingTDigestTDigestCodec#setCompactEncoding(boolean, boolean)}.
+   * @param compact_encoding Whether or not to write the compact format.
+   * @param lossy_float_means Whether or not to store means as floats when
+   * the values fit the float range, even if precision is lost.
+   */
+  public void setCompactEncoding(final boolean compact_encoding, 
+                                 final boolean lossy_float_means) {
+    this.compact_encoding = compact_encoding;
+    this.lossy_float_means = lossy_float_means;
+  }
+  
+  /** @return Whether or not the compact format is written. */
+  public boolean isCompactEncoding() {
+    return compact_encoding;
+  }
+  
+  /**
+   * Enables the summary header. See 
+   * {@link MergingTDigestTDigestCodec#setSummaryHeader(boolean)}.
+   * @param summary_header Whether or not to write the summary header.
+   */
+  public void setSummaryHeader(final boolean summary_header) {
+    this.summary_header = summary_header;
+  }
+  
+  /** @return Whether or not the summary header is written. */
+  public boolean isSummaryHeader() {
+    return summary_header;
+  }
+}
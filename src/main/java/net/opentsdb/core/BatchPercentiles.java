@@ -0,0 +1,374 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.opentsdb.core.Histogram;
+
+/**
+ * Evaluates one set of percentiles over many digests at once, e.g. every 
+ * data point of a query result. Digests are loaded in chunks into a 
+ * columnar layout, the centroid means and weights of every digest of the 
+ * chunk concatenated in two primitive arrays with per-digest offsets, 
+ * straight from the encoded bytes where possible. The percentiles are 
+ * then computed with a single forward walk over each digest's slice in a
+ * tight loop, with the same interpolation as {@link CentroidIndex}, so the
+ * results match calling {@code percentiles()} on each histogram. With a 
+ * pool, chunks are loaded and evaluated in parallel.
+ *
+ * @since 2.4
+ */
+public final class BatchPercentiles {
+  
+  /** The number of digests loaded and evaluated per chunk. */
+  static final int CHUNK_SIZE = 256;
+  
+  private BatchPercentiles() {
+    // static utility
+  }
+  
+  /**
+   * Evaluates the percentiles for every histogram.
+   * @param histograms The non-null list of {@link MergingTDigestImplementation}
+   * or {@link ArrayTDigestImplementation} histograms.
+   * @param percentiles The percentiles from 0 to 100, in any order.
+   * @param pool An optional pool to evaluate chunks on in parallel.
+   * @return The values indexed by histogram, then percentile in the order 
+   * given.
+   * @throws IllegalArgumentException if an argument was null, a histogram
+   * was of another type or a percentile was out of range.
+   */
+  public static double[][] evaluate(final List<Histogram> histograms, 
+                                    final double[] percentiles, 
+                                    final ForkJoinPool pool) {
+    if (histograms == null) {
+      throw new IllegalArgumentException("Histograms cannot be null.");
+    }
+    for (final Histogram histogram : histograms) {
+      if (!(histogram instanceof MergingTDigestImplementation) && 
+          !(histogram instanceof ArrayTDigestImplementation)) {
+        throw new IllegalArgumentException("Incoming histogram was not a "
+            + "t-digest: " + (histogram == null ? null : histogram.getClass()));
+      }
+    }
+    return run(new Source() {
+      @Override
+      public int size() {
+        return histograms.size();
+      }
+      
+      @Override
+      public void load(final int i, final CentroidMerger merger) {
+        MergingTDigestImplementation.addTo(histograms.get(i), merger);
+      }
+    }, percentiles, pool);
+  }
+  
+  /**
+   * Evaluates the percentiles for every encoded digest, reading centroids
+   * straight from the bytes without building digests.
+   * @param cells The non-null list of cells in any t-digest format the 
+   * codecs read.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @param percentiles The percentiles from 0 to 100, in any order.
+   * @param pool An optional pool to evaluate chunks on in parallel.
+   * @return The values indexed by cell, then percentile in the order given.
+   * @throws IllegalArgumentException if an argument was null, a cell was 
+   * null, too short or in an unknown format or a percentile was out of 
+   * range.
+   */
+  public static double[][] evaluateEncoded(final List<byte[]> cells, 
+                                           final boolean includes_id,
+                                           final double[] percentiles, 
+                                           final ForkJoinPool pool) {
+    if (cells == null) {
+      throw new IllegalArgumentException("Cells cannot be null.");
+    }
+    final int offset = includes_id ? 1 : 0;
+    for (final byte[] cell : cells) {
+      if (cell == null || cell.length < 8 + offset) {
+        throw new IllegalArgumentException("Raw data cannot be null or less "
+            + "than 8 bytes.");
+      }
+    }
+    return run(new Source() {
+      @Override
+      public int size() {
+        return cells.size();
+      }
+      
+      @Override
+      public void load(final int i, final CentroidMerger merger) {
+        final byte[] cell = cells.get(i);
+        try {
+          CompactEncoding.readCentroids(
+              ByteBuffer.wrap(cell, offset, cell.length - offset), merger);
+        } catch (RuntimeException e) {
+          TDigestStats.DECODE_FAILURES.increment();
+          throw e;
+        }
+      }
+    }, percentiles, pool);
+  }
+  
+  /**
+   * Validates the percentiles and evaluates every chunk.
+   * @param source The digests.
+   * @param percentiles The percentiles from 0 to 100.
+   * @param pool An optional pool.
+   * @return The results.
+   */
+  private static double[][] run(final Source source, 
+                                final double[] percentiles, 
+                                final ForkJoinPool pool) {
+    if (percentiles == null) {
+      throw new IllegalArgumentException("Percentiles cannot be null.");
+    }
+    final double[] qs = new double[percentiles.length];
+    for (int i = 0; i < qs.length; i++) {
+      if (!(percentiles[i] >= 0 && percentiles[i] <= 100)) {
+        throw new IllegalArgumentException("Percentile must be between 0 "
+            + "and 100, got " + percentiles[i]);
+      }
+      qs[i] = percentiles[i] / 100;
+    }
+    final int[] order = CentroidIndex.sortedOrder(qs);
+    final int size = source.size();
+    final double[][] results = new double[size][];
+    if (pool != null && size > CHUNK_SIZE) {
+      pool.invoke(new ChunkTask(source, qs, order, results, 0, size));
+    } else {
+      new Columns(Math.min(size, CHUNK_SIZE)).evaluate(source, qs, order, 
+          results, 0, size);
+    }
+    return results;
+  }
+  
+  /** Loads the centroids of a digest by index. */
+  private interface Source {
+    /** @return The number of digests. */
+    int size();
+    
+    /**
+     * Adds the centroids and range of the digest to the empty merger.
+     * @param i The index of the digest.
+     * @param merger The merger to load into.
+     */
+    void load(int i, CentroidMerger merger);
+  }
+  
+  /** The concatenated centroids of a chunk of digests. */
+  private static final class Columns {
+    /** Scratch space to read each digest into. */
+    private final CentroidMerger scratch = new CentroidMerger(256);
+    
+    /** The concatenated means. */
+    private double[] means;
+    
+    /** The concatenated weights. */
+    private double[] weights;
+    
+    /** The start of each digest in the arrays, plus the end of the last. */
+    private final int[] offsets;
+    
+    /** The total weight of each digest. */
+    private final double[] totals;
+    
+    /** The min of each digest. */
+    private final double[] mins;
+    
+    /** The max of each digest. */
+    private final double[] maxs;
+    
+    private Columns(final int digests) {
+      offsets = new int[digests + 1];
+      totals = new double[digests];
+      mins = new double[digests];
+      maxs = new double[digests];
+      means = new double[digests * 64];
+      weights = new double[digests * 64];
+    }
+    
+    /**
+     * Loads the range of digests and evaluates the quantiles for each.
+     * @param source The digests.
+     * @param qs The quantiles from 0 to 1.
+     * @param order The indices of the quantiles in ascending order or null
+     * if they were sorted.
+     * @param results The results to fill in.
+     * @param start The first digest.
+     * @param end The digest to stop at, exclusive.
+     */
+    private void evaluate(final Source source, 
+                          final double[] qs, 
+                          final int[] order, 
+                          final double[][] results, 
+                          final int start, 
+                          final int end) {
+      for (int start_chunk = start; start_chunk < end; 
+           start_chunk += totals.length) {
+        final int end_chunk = Math.min(start_chunk + totals.length, end);
+        load(source, start_chunk, end_chunk);
+        for (int d = 0; d < end_chunk - start_chunk; d++) {
+          final double[] values = new double[qs.length];
+          quantiles(d, qs, order, values);
+          results[start_chunk + d] = values;
+        }
+      }
+    }
+    
+    /**
+     * Reads the digests of the chunk into the columns.
+     * @param source The digests.
+     * @param start The first digest.
+     * @param end The digest to stop at, exclusive.
+     */
+    private void load(final Source source, final int start, final int end) {
+      int length = 0;
+      for (int i = start; i < end; i++) {
+        scratch.reset();
+        source.load(i, scratch);
+        scratch.sort();
+        final int size = scratch.size();
+        if (length + size > means.length) {
+          final int capacity = Math.max(length + size, means.length * 2);
+          final double[] new_means = new double[capacity];
+          final double[] new_weights = new double[capacity];
+          System.arraycopy(means, 0, new_means, 0, length);
+          System.arraycopy(weights, 0, new_weights, 0, length);
+          means = new_means;
+          weights = new_weights;
+        }
+        System.arraycopy(scratch.means(), 0, means, length, size);
+        final double[] source_weights = scratch.weights();
+        double total = 0;
+        for (int j = 0; j < size; j++) {
+          weights[length + j] = source_weights[j];
+          total += source_weights[j];
+        }
+        final int d = i - start;
+        offsets[d] = length;
+        totals[d] = total;
+        mins[d] = scratch.min();
+        maxs[d] = scratch.max();
+        length += size;
+        offsets[d + 1] = length;
+      }
+    }
+    
+    /**
+     * Computes the quantiles of one digest with a single forward walk, 
+     * matching {@link CentroidIndex#quantiles(double[], double[])}.
+     * @param d The digest within the chunk.
+     * @param qs The quantiles from 0 to 1.
+     * @param order The indices of the quantiles in ascending order or null
+     * if they were sorted.
+     * @param results The array to store the results in.
+     */
+    private void quantiles(final int d, 
+                           final double[] qs, 
+                           final int[] order, 
+                           final double[] results) {
+      final int first = offsets[d];
+      final int last = offsets[d + 1] - 1;
+      if (last < first) {
+        for (int i = 0; i < qs.length; i++) {
+          results[i] = Double.NaN;
+        }
+        return;
+      }
+      if (last == first) {
+        for (int i = 0; i < qs.length; i++) {
+          results[i] = means[first];
+        }
+        return;
+      }
+      final double total = totals[d];
+      final double min = mins[d];
+      final double max = maxs[d];
+      final double first_center = weights[first] / 2;
+      
+      int c = first;
+      double center = first_center;
+      double next_center = center + (weights[c] + weights[c + 1]) / 2;
+      for (int i = 0; i < qs.length; i++) {
+        final int idx = order == null ? i : order[i];
+        final double index = qs[idx] * total;
+        if (index < first_center) {
+          results[idx] = CentroidIndex.interpolateHead(min, means[first], 
+              weights[first], index);
+          continue;
+        }
+        while (c < last && next_center <= index) {
+          c++;
+          center = next_center;
+          if (c < last) {
+            next_center = center + (weights[c] + weights[c + 1]) / 2;
+          }
+        }
+        if (c < last) {
+          results[idx] = CentroidIndex.interpolateBetween(means[c], center, 
+              means[c + 1], next_center, index);
+        } else {
+          results[idx] = CentroidIndex.interpolateTail(means[last], 
+              weights[last], total, max, index);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Splits the digests into halves until a range fits a chunk, evaluating 
+   * each chunk with its own columns.
+   */
+  private static class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = -2711869342396251727L;
+    
+    private final Source source;
+    private final double[] qs;
+    private final int[] order;
+    private final double[][] results;
+    private final int start;
+    private final int end;
+    
+    ChunkTask(final Source source, 
+              final double[] qs, 
+              final int[] order, 
+              final double[][] results, 
+              final int start, 
+              final int end) {
+      this.source = source;
+      this.qs = qs;
+      this.order = order;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+    
+    @Override
+    protected void compute() {
+      if (end - start <= CHUNK_SIZE) {
+        new Columns(end - start).evaluate(source, qs, order, results, start, 
+            end);
+        return;
+      }
+      final int mid = (start + end) >>> 1;
+      invokeAll(new ChunkTask(source, qs, order, results, start, mid), 
+          new ChunkTask(source, qs, order, results, mid, end));
+    }
+  }
+}
@@ -0,0 +1,443 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * A read-only snapshot of a digest's centroids in primitive arrays that
+ * answers many quantiles with a single walk over the centroids, or single
+ * quantile and CDF lookups with a binary search over the cumulative weights.
+ * The quantile interpolation matches {@link MergingDigest#quantile(double)}.
+ * Instances are immutable and may be shared.
+ *
+ * @since 2.4
+ */
+final class CentroidIndex {
+
+  /** The sorted centroid means. */
+  private final double[] means;
+
+  /** The centroid weights. */
+  private final double[] weights;
+
+  /** The cumulative weight at the center of each centroid. */
+  private final double[] centers;
+
+  /** The number of centroids. */
+  private final int size;
+
+  /** The sum of the weights. */
+  private final double total;
+
+  /** The smallest value seen by the digest. */
+  private final double min;
+
+  /** The largest value seen by the digest. */
+  private final double max;
+
+  /**
+   * Default ctor copying the centroids out of the digest.
+   * @param digest A non-null digest.
+   */
+  CentroidIndex(final TDigest digest) {
+    digest.compress();
+    size = digest.centroidCount();
+    means = new double[size];
+    weights = new double[size];
+    double total = 0;
+    int i = 0;
+    for (final Centroid centroid : digest.centroids()) {
+      means[i] = centroid.mean();
+      weights[i] = centroid.count();
+      total += weights[i];
+      i++;
+    }
+    this.total = total;
+    min = digest.getMin();
+    max = digest.getMax();
+    centers = centers(weights, size);
+  }
+
+  /**
+   * Ctor copying the centroids out of primitive arrays.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights.
+   * @param size The number of centroids.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   */
+  CentroidIndex(final double[] means,
+                final double[] weights,
+                final int size,
+                final double min,
+                final double max) {
+    this.size = size;
+    this.means = Arrays.copyOf(means, size);
+    this.weights = Arrays.copyOf(weights, size);
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += weights[i];
+    }
+    this.total = total;
+    this.min = min;
+    this.max = max;
+    centers = centers(this.weights, size);
+  }
+
+  /**
+   * Computes the given quantiles with a single pass over the centroids.
+   * @param qs The quantiles from 0 to 1, in any order though sorted input
+   * avoids sorting.
+   * @param results An array of the same length to store the results in, in
+   * the same order as the quantiles.
+   * @throws IllegalArgumentException if a quantile was not within 0 and 1.
+   */
+  void quantiles(final double[] qs, final double[] results) {
+    for (int i = 0; i < qs.length; i++) {
+      if (qs[i] < 0 || qs[i] > 1) {
+        throw new IllegalArgumentException("q should be in [0,1], got "
+            + qs[i]);
+      }
+    }
+    if (size == 0) {
+      for (int i = 0; i < qs.length; i++) {
+        results[i] = Double.NaN;
+      }
+      return;
+    }
+    if (size == 1) {
+      for (int i = 0; i < qs.length; i++) {
+        results[i] = means[0];
+      }
+      return;
+    }
+
+    final int[] order = sortedOrder(qs);
+    int centroid = 0;
+    for (int i = 0; i < qs.length; i++) {
+      final int idx = order == null ? i : order[i];
+      final double index = qs[idx] * total;
+      if (index < centers[0]) {
+        results[idx] = interpolateHead(min, means[0], weights[0], index);
+        continue;
+      }
+
+      // quantiles are sorted so we never walk backwards.
+      while (centroid < size - 1 && centers[centroid + 1] <= index) {
+        centroid++;
+      }
+      results[idx] = interpolate(centroid, index);
+    }
+  }
+
+  /**
+   * Computes a single quantile using a binary search.
+   * @param q The quantile from 0 to 1.
+   * @return The estimated value.
+   * @throws IllegalArgumentException if the quantile was not within 0 and 1.
+   */
+  double quantile(final double q) {
+    if (q < 0 || q > 1) {
+      throw new IllegalArgumentException("q should be in [0,1], got " + q);
+    }
+    if (size == 0) {
+      return Double.NaN;
+    }
+    if (size == 1) {
+      return means[0];
+    }
+    final double index = q * total;
+    if (index < centers[0]) {
+      return interpolateHead(min, means[0], weights[0], index);
+    }
+    // find the last centroid with a center at or below the index.
+    int low = 0;
+    int high = size - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (centers[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return interpolate(low, index);
+  }
+
+  /**
+   * Estimates the fraction of values less than or equal to the given value,
+   * e.g. the share of requests served within an SLO. Interpolates linearly
+   * between the cumulative weights at the centroid centers, and between the
+   * outer centroids and the min and max.
+   * @param x The value to look up.
+   * @return A fraction from 0 to 1 or NaN if the digest is empty.
+   */
+  double cdf(final double x) {
+    if (size == 0) {
+      return Double.NaN;
+    }
+    if (x < min) {
+      return 0;
+    }
+    if (x >= max) {
+      return 1;
+    }
+    if (x < means[0]) {
+      return (x - min) / (means[0] - min) * centers[0] / total;
+    }
+    if (x >= means[size - 1]) {
+      final double tail = total - centers[size - 1];
+      return (centers[size - 1] + tail * (x - means[size - 1]) 
+          / (max - means[size - 1])) / total;
+    }
+    // find the last centroid with a mean at or below x.
+    int low = 0;
+    int high = size - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (means[mid] <= x) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    final double width = means[low + 1] - means[low];
+    if (width <= 0) {
+      return centers[low] / total;
+    }
+    return (centers[low] + (centers[low + 1] - centers[low]) 
+        * (x - means[low]) / width) / total;
+  }
+
+  /**
+   * Estimates the number of values in each bucket between the boundaries
+   * with a single merged walk over the boundaries and the centroids. The
+   * cumulative weight at each boundary is interpolated as in 
+   * {@link #cdf(double)}.
+   * @param boundaries The bucket boundaries in ascending order.
+   * @param counts An array one longer than the boundaries to store the 
+   * counts in: values at or below the first boundary, then values above 
+   * each boundary and at or below the next, then values above the last 
+   * boundary.
+   * @throws IllegalArgumentException if the boundaries were not sorted or 
+   * contained NaN.
+   */
+  void counts(final double[] boundaries, final double[] counts) {
+    HistogramBuckets.checkBoundaries(boundaries);
+    if (size == 0) {
+      Arrays.fill(counts, 0, boundaries.length + 1, 0);
+      return;
+    }
+    double previous = 0;
+    int centroid = 0;
+    for (int i = 0; i < boundaries.length; i++) {
+      final double x = boundaries[i];
+      final double cumulative;
+      if (x < min) {
+        cumulative = 0;
+      } else if (x >= max) {
+        cumulative = total;
+      } else if (x < means[0]) {
+        cumulative = (x - min) / (means[0] - min) * centers[0];
+      } else if (x >= means[size - 1]) {
+        cumulative = centers[size - 1] + (total - centers[size - 1]) 
+            * (x - means[size - 1]) / (max - means[size - 1]);
+      } else {
+        // boundaries are sorted so we never walk backwards.
+        while (centroid < size - 1 && means[centroid + 1] <= x) {
+          centroid++;
+        }
+        final double width = means[centroid + 1] - means[centroid];
+        cumulative = width <= 0 ? centers[centroid] : centers[centroid] 
+            + (centers[centroid + 1] - centers[centroid]) 
+            * (x - means[centroid]) / width;
+      }
+      counts[i] = cumulative - previous;
+      previous = cumulative;
+    }
+    counts[boundaries.length] = total - previous;
+  }
+
+  /** @return The number of centroids. */
+  int size() {
+    return size;
+  }
+
+  /** @return The sorted centroid means. Must not be modified. */
+  double[] means() {
+    return means;
+  }
+
+  /** @return The centroid weights. Must not be modified. */
+  double[] weights() {
+    return weights;
+  }
+
+  /** @return The smallest value seen by the digest. */
+  double min() {
+    return min;
+  }
+
+  /** @return The largest value seen by the digest. */
+  double max() {
+    return max;
+  }
+
+  /** @return The total weight, i.e. the number of values. */
+  double total() {
+    return total;
+  }
+
+  /**
+   * Interpolates the value at the given cumulative weight.
+   * @param centroid The last centroid with a center at or below the index.
+   * @param index The cumulative weight.
+   * @return The interpolated value.
+   */
+  private double interpolate(final int centroid, final double index) {
+    if (centroid < size - 1) {
+      return interpolateBetween(means[centroid], centers[centroid], 
+          means[centroid + 1], centers[centroid + 1], index);
+    }
+    return interpolateTail(means[size - 1], weights[size - 1], total, max, 
+        index);
+  }
+  
+  /**
+   * Interpolates a value before the center of the first centroid, between 
+   * the min and the first mean. Shared with {@link BatchPercentiles}.
+   * @param min The smallest value.
+   * @param mean The mean of the first centroid.
+   * @param weight The weight of the first centroid.
+   * @param index The cumulative weight, below half the first weight.
+   * @return The interpolated value.
+   */
+  static double interpolateHead(final double min, 
+                                final double mean, 
+                                final double weight, 
+                                final double index) {
+    return min + 2 * index / weight * (mean - min);
+  }
+  
+  /**
+   * Interpolates a value between the centers of two adjacent centroids.
+   * Shared with {@link BatchPercentiles}.
+   * @param mean The mean of the lower centroid.
+   * @param center The cumulative weight at the center of the lower centroid.
+   * @param next_mean The mean of the upper centroid.
+   * @param next_center The cumulative weight at the center of the upper 
+   * centroid.
+   * @param index The cumulative weight between the two centers.
+   * @return The interpolated value.
+   */
+  static double interpolateBetween(final double mean, 
+                                   final double center, 
+                                   final double next_mean, 
+                                   final double next_center, 
+                                   final double index) {
+    return weightedAverage(mean, next_center - index, next_mean, 
+        index - center);
+  }
+  
+  /**
+   * Interpolates a value past the center of the last centroid, between the
+   * last mean and the max. Shared with {@link BatchPercentiles}.
+   * @param mean The mean of the last centroid.
+   * @param weight The weight of the last centroid.
+   * @param total The total weight.
+   * @param max The largest value.
+   * @param index The cumulative weight.
+   * @return The interpolated value.
+   */
+  static double interpolateTail(final double mean, 
+                                final double weight, 
+                                final double total, 
+                                final double max, 
+                                final double index) {
+    final double z1 = index - total - weight / 2.0;
+    final double z2 = weight / 2 - z1;
+    return weightedAverage(mean, z1, max, z2);
+  }
+
+  /**
+   * @param weights The centroid weights.
+   * @param size The number of centroids.
+   * @return The cumulative weight at the center of each centroid.
+   */
+  private static double[] centers(final double[] weights, final int size) {
+    final double[] centers = new double[size];
+    if (size > 0) {
+      centers[0] = weights[0] / 2;
+      for (int i = 1; i < size; i++) {
+        centers[i] = centers[i - 1] + (weights[i - 1] + weights[i]) / 2;
+      }
+    }
+    return centers;
+  }
+
+  /**
+   * Returns the order in which to visit the quantiles.
+   * @param qs The quantiles.
+   * @return Null if the quantiles are already sorted, otherwise the indices
+   * of the quantiles in ascending order.
+   */
+  static int[] sortedOrder(final double[] qs) {
+    boolean sorted = true;
+    for (int i = 1; i < qs.length; i++) {
+      if (qs[i] < qs[i - 1]) {
+        sorted = false;
+        break;
+      }
+    }
+    if (sorted) {
+      return null;
+    }
+    // insertion sort since there are only ever a handful of quantiles.
+    final int[] order = new int[qs.length];
+    for (int i = 0; i < qs.length; i++) {
+      int j = i;
+      while (j > 0 && qs[order[j - 1]] > qs[i]) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = i;
+    }
+    return order;
+  }
+
+  /**
+   * Same as the digest's weighted average, clamped between the two values.
+   */
+  private static double weightedAverage(final double x1,
+                                        final double w1,
+                                        final double x2,
+                                        final double w2) {
+    if (x1 <= x2) {
+      return weightedAverageSorted(x1, w1, x2, w2);
+    }
+    return weightedAverageSorted(x2, w2, x1, w1);
+  }
+
+  private static double weightedAverageSorted(final double x1,
+                                              final double w1,
+                                              final double x2,
+                                              final double w2) {
+    final double x = (x1 * w1 + x2 * w2) / (w1 + w2);
+    return Math.max(x1, Math.min(x, x2));
+  }
+}
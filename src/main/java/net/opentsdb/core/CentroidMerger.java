@@ -0,0 +1,310 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * Collects the centroids of many digests into primitive mean and weight
+ * arrays, sorts them once by merging the already sorted runs and compresses
+ * the result in a single pass using the same size bound as
+ * {@link MergingDigest}. This avoids merging and compressing every input
+ * separately when summing a large number of digests.
+ * <p>
+ * Not thread safe. Call {@link #reset()} to reuse the buffers.
+ *
+ * @since 2.4
+ */
+final class CentroidMerger {
+
+  /** The centroid means. */
+  private double[] means;
+
+  /** The centroid weights. */
+  private double[] weights;
+
+  /** Scratch arrays for merging runs. */
+  private double[] scratch_means;
+  private double[] scratch_weights;
+
+  /** The start offsets of sorted runs in the arrays. */
+  private int[] runs;
+
+  /** The number of runs. */
+  private int run_count;
+
+  /** The number of centroids. */
+  private int size;
+
+  /** The smallest value seen by the inputs. */
+  private double min = Double.POSITIVE_INFINITY;
+
+  /** The largest value seen by the inputs. */
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /** The most centroids to grow the arrays to unless more are added. */
+  private final int max_capacity;
+
+  /**
+   * Default ctor.
+   * @param capacity The initial number of centroids to allocate for.
+   */
+  CentroidMerger(final int capacity) {
+    this(capacity, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Ctor for callers that bound the buffer themselves. Growing doubles the
+   * arrays but never past the maximum unless more centroids are added.
+   * @param capacity The initial number of centroids to allocate for.
+   * @param max_capacity The most centroids to grow to by doubling.
+   */
+  CentroidMerger(final int capacity, final int max_capacity) {
+    final int initial = Math.max(capacity, 16);
+    this.max_capacity = Math.max(max_capacity, initial);
+    means = new double[initial];
+    weights = new double[initial];
+    runs = new int[16];
+  }
+
+  /**
+   * Adds all of the centroids of the digest. The digest is compressed first
+   * as a merging digest only folds buffered values into its centroids, min 
+   * and max when compressed.
+   * @param digest A non-null digest.
+   */
+  void add(final TDigest digest) {
+    digest.compress();
+    ensureCapacity(size + digest.centroidCount());
+    if (digest.size() > 0) {
+      updateRange(digest.getMin(), digest.getMax());
+    }
+    for (final Centroid centroid : digest.centroids()) {
+      add(centroid.mean(), centroid.count());
+    }
+  }
+
+  /**
+   * Adds the centroids buffered in another merger, e.g. a partial result.
+   * @param other A non-null merger.
+   */
+  void add(final CentroidMerger other) {
+    // the other merger may be this one.
+    final int count = other.size;
+    ensureCapacity(size + count);
+    updateRange(other.min, other.max);
+    for (int i = 0; i < count; i++) {
+      add(other.means[i], other.weights[i]);
+    }
+  }
+
+  /**
+   * Adds a single centroid. Values may be added in any order though sorted
+   * runs are merged more cheaply.
+   * @param mean The mean of the centroid.
+   * @param weight The weight of the centroid.
+   */
+  void add(final double mean, final double weight) {
+    if (size >= means.length) {
+      ensureCapacity(size + 1);
+    }
+    if (size == 0 || mean < means[size - 1]) {
+      if (run_count >= runs.length) {
+        final int[] temp = new int[runs.length * 2];
+        System.arraycopy(runs, 0, temp, 0, run_count);
+        runs = temp;
+      }
+      runs[run_count++] = size;
+    }
+    means[size] = mean;
+    weights[size] = weight;
+    size++;
+  }
+
+  /**
+   * Widens the range of values seen by the inputs.
+   * @param min The smallest value of an input.
+   * @param max The largest value of an input.
+   */
+  void updateRange(final double min, final double max) {
+    if (min < this.min) {
+      this.min = min;
+    }
+    if (max > this.max) {
+      this.max = max;
+    }
+  }
+
+  /** @return The smallest value seen, or the smallest mean if no range was
+   * given. Only accurate after {@link #compress(double)}. */
+  double min() {
+    if (size > 0 && min == Double.POSITIVE_INFINITY) {
+      return means[0];
+    }
+    return min;
+  }
+
+  /** @return The largest value seen, or the largest mean if no range was
+   * given. Only accurate after {@link #compress(double)}. */
+  double max() {
+    if (size > 0 && max == Double.NEGATIVE_INFINITY) {
+      return means[size - 1];
+    }
+    return max;
+  }
+
+  /**
+   * Sorts and compresses the centroids in place.
+   * @param compression The compression factor of the result.
+   * @return The number of centroids remaining.
+   */
+  int compress(final double compression) {
+    sort();
+    if (size < 2) {
+      return size;
+    }
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += weights[i];
+    }
+    final double normalizer = compression / (Math.PI * total);
+    double weight_so_far = 0;
+    int last = 0;
+    for (int i = 1; i < size; i++) {
+      final double proposed = weights[last] + weights[i];
+      final double z = proposed * normalizer;
+      final double q0 = weight_so_far / total;
+      final double q2 = (weight_so_far + proposed) / total;
+      if (z * z <= q0 * (1 - q0) && z * z <= q2 * (1 - q2)) {
+        weights[last] = proposed;
+        means[last] += (means[i] - means[last]) * weights[i] / proposed;
+      } else {
+        weight_so_far += weights[last];
+        last++;
+        means[last] = means[i];
+        weights[last] = weights[i];
+      }
+    }
+    size = last + 1;
+    return size;
+  }
+
+  /**
+   * Compresses the centroids and returns a new digest holding exactly the
+   * result, with full precision weights and the range seen by the inputs.
+   * @param compression The compression factor of the result.
+   * @return A new digest.
+   */
+  TDigest toDigest(final double compression) {
+    compress(compression);
+    if (size < 1) {
+      return new MergingDigest(compression);
+    }
+    return CompactEncoding.toDigest(compression, min(), max(), means, 
+        weights, size, false);
+  }
+
+  /** Clears the centroids, keeping the buffers. */
+  void reset() {
+    size = 0;
+    run_count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  /** @return The number of centroids buffered. */
+  int size() {
+    return size;
+  }
+
+  /** @return The number of centroids the arrays hold. */
+  int capacity() {
+    return means.length;
+  }
+
+  /** @return The mean array. Only the first {@link #size()} are valid. */
+  double[] means() {
+    return means;
+  }
+
+  /** @return The weight array. Only the first {@link #size()} are valid. */
+  double[] weights() {
+    return weights;
+  }
+
+  /** Sorts the arrays by merging pairs of runs until a single run remains. */
+  void sort() {
+    if (run_count < 2) {
+      return;
+    }
+    if (scratch_means == null || scratch_means.length < means.length) {
+      scratch_means = new double[means.length];
+      scratch_weights = new double[means.length];
+    }
+    while (run_count > 1) {
+      int merged = 0;
+      for (int r = 0; r < run_count; r += 2) {
+        final int start = runs[r];
+        final int mid = r + 1 < run_count ? runs[r + 1] : size;
+        final int end = r + 2 < run_count ? runs[r + 2] : size;
+        int left = start;
+        int right = mid;
+        int out = start;
+        while (left < mid && right < end) {
+          if (means[right] < means[left]) {
+            scratch_means[out] = means[right];
+            scratch_weights[out++] = weights[right++];
+          } else {
+            scratch_means[out] = means[left];
+            scratch_weights[out++] = weights[left++];
+          }
+        }
+        System.arraycopy(means, left, scratch_means, out, mid - left);
+        System.arraycopy(weights, left, scratch_weights, out, mid - left);
+        out += mid - left;
+        System.arraycopy(means, right, scratch_means, out, end - right);
+        System.arraycopy(weights, right, scratch_weights, out, end - right);
+        runs[merged++] = start;
+      }
+      run_count = merged;
+      double[] temp = means;
+      means = scratch_means;
+      scratch_means = temp;
+      temp = weights;
+      weights = scratch_weights;
+      scratch_weights = temp;
+    }
+  }
+
+  /**
+   * Grows the arrays if needed.
+   * @param capacity The minimum capacity required.
+   */
+  private void ensureCapacity(final int capacity) {
+    if (capacity <= means.length) {
+      return;
+    }
+    final int length = Math.max(capacity, 
+        (int) Math.min((long) means.length * 2, max_capacity));
+    final double[] new_means = new double[length];
+    final double[] new_weights = new double[length];
+    System.arraycopy(means, 0, new_means, 0, size);
+    System.arraycopy(weights, 0, new_weights, 0, size);
+    means = new_means;
+    weights = new_weights;
+    scratch_means = null;
+    scratch_weights = null;
+  }
+}
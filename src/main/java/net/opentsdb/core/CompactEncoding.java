@@ -0,0 +1,661 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * Reads and writes digests in a compact, versioned format. Digests written
+ * by {@link TDigest#asSmallBytes(ByteBuffer)} always start with a zero byte
+ * (the high byte of the encoding code) so the first byte tells the formats
+ * apart. The compact layout is:
+ * <ul>
+ * <li>1 byte format, {@link #FORMAT_FLOAT} or {@link #FORMAT_DOUBLE}</li>
+ * <li>4 byte float compression</li>
+ * <li>8 byte double min and 8 byte double max</li>
+ * <li>varint number of centroids</li>
+ * <li>per centroid, sorted by mean: a varint weight and the zig-zag varint
+ * delta between the sortable bits of the mean and the previous mean</li>
+ * </ul>
+ * Means are written as floats when every mean is exactly representable as a
+ * float, which is always the case for digests decoded from the small
+ * encoding, and optionally when the values fit the float range.
+ * <p>
+ * The summary formats, {@link #FORMAT_SUMMARY_FLOAT} and 
+ * {@link #FORMAT_SUMMARY_DOUBLE}, add an 8 byte double total weight and an 
+ * 8 byte double sum of the values right after the max so that the count, 
+ * min, max and mean can be read from fixed offsets without decoding the 
+ * centroids.
+ *
+ * @since 2.4
+ */
+final class CompactEncoding {
+
+  /** The first byte of the legacy {@code asSmallBytes} encoding. */
+  static final byte FORMAT_LEGACY = 0;
+
+  /** Compact encoding with float means. */
+  static final byte FORMAT_FLOAT = 1;
+
+  /** Compact encoding with double means. */
+  static final byte FORMAT_DOUBLE = 2;
+
+  /** Compact encoding with a summary header and float means. */
+  static final byte FORMAT_SUMMARY_FLOAT = 3;
+
+  /** Compact encoding with a summary header and double means. */
+  static final byte FORMAT_SUMMARY_DOUBLE = 4;
+
+  /** The encoding code of {@link MergingDigest}'s small encoding. */
+  static final int SMALL_ENCODING = 2;
+
+  /** The encoding code of {@link MergingDigest}'s verbose encoding. */
+  static final int VERBOSE_ENCODING = 1;
+
+  /** The largest integer weight a float holds exactly. */
+  static final long MAX_FLOAT_WEIGHT = 1L << 24;
+
+  /** The size of the fixed header: format, compression, min and max. */
+  static final int HEADER_SIZE = 1 + 4 + 8 + 8;
+
+  /** The size of the summary header: the fixed header, count and sum. */
+  static final int SUMMARY_HEADER_SIZE = HEADER_SIZE + 8 + 8;
+
+  /** The offset of the min in the compact formats. */
+  private static final int MIN_OFFSET = 1 + 4;
+
+  /** The offset of the min in the legacy encodings, after the code. */
+  private static final int LEGACY_MIN_OFFSET = 4;
+
+  private CompactEncoding() {
+    // static helpers
+  }
+
+  /**
+   * @param format The first byte of an encoded digest, after the ID.
+   * @return True if the format is one of the compact formats.
+   */
+  static boolean isCompact(final byte format) {
+    return format >= FORMAT_FLOAT && format <= FORMAT_SUMMARY_DOUBLE;
+  }
+
+  /**
+   * @param format The first byte of an encoded digest, after the ID.
+   * @return True if the format starts with the summary header.
+   */
+  static boolean hasSummary(final byte format) {
+    return format == FORMAT_SUMMARY_FLOAT || format == FORMAT_SUMMARY_DOUBLE;
+  }
+
+  /**
+   * Reads the smallest value from the header of a digest in any supported 
+   * format without decoding it.
+   * @param raw The encoded digest.
+   * @param offset The offset of the digest, after the ID.
+   * @return The min.
+   */
+  static double headerMin(final byte[] raw, final int offset) {
+    return ByteBuffer.wrap(raw).getDouble(offset + (isCompact(raw[offset]) 
+        ? MIN_OFFSET : LEGACY_MIN_OFFSET));
+  }
+
+  /**
+   * Reads the largest value from the header of a digest in any supported 
+   * format without decoding it.
+   * @param raw The encoded digest.
+   * @param offset The offset of the digest, after the ID.
+   * @return The max.
+   */
+  static double headerMax(final byte[] raw, final int offset) {
+    return ByteBuffer.wrap(raw).getDouble(offset + 8 + (isCompact(raw[offset]) 
+        ? MIN_OFFSET : LEGACY_MIN_OFFSET));
+  }
+
+  /**
+   * @param raw The encoded digest in a summary format.
+   * @param offset The offset of the digest, after the ID.
+   * @return The total weight, i.e. the number of values.
+   */
+  static double headerCount(final byte[] raw, final int offset) {
+    return ByteBuffer.wrap(raw).getDouble(offset + HEADER_SIZE);
+  }
+
+  /**
+   * @param raw The encoded digest in a summary format.
+   * @param offset The offset of the digest, after the ID.
+   * @return The sum of the values.
+   */
+  static double headerSum(final byte[] raw, final int offset) {
+    return ByteBuffer.wrap(raw).getDouble(offset + HEADER_SIZE + 8);
+  }
+
+  /**
+   * Reads the number of centroids from the header of a digest in any 
+   * supported format without decoding it.
+   * @param raw The encoded digest.
+   * @param offset The offset of the digest, after the ID.
+   * @return The number of centroids.
+   * @throws IllegalArgumentException if the encoding was not recognized.
+   */
+  static long headerCentroids(final byte[] raw, final int offset) {
+    final ByteBuffer buf = ByteBuffer.wrap(raw);
+    if (isCompact(raw[offset])) {
+      buf.position(offset + 
+          (hasSummary(raw[offset]) ? SUMMARY_HEADER_SIZE : HEADER_SIZE));
+      return getVarint(buf);
+    }
+    final int encoding = buf.getInt(offset);
+    if (encoding == SMALL_ENCODING) {
+      // code, min, max, compression, size and buffer size
+      return buf.getShort(offset + 4 + 8 + 8 + 4 + 2 + 2);
+    } else if (encoding == VERBOSE_ENCODING) {
+      // code, min, max and compression
+      return buf.getInt(offset + 4 + 8 + 8 + 8);
+    }
+    throw new IllegalArgumentException("Unrecognized encoding: " + encoding);
+  }
+
+  /**
+   * Encodes the digest in the compact format.
+   * @param digest A non-null digest.
+   * @param include_id Whether or not to prefix the ID.
+   * @param id The ID to prefix.
+   * @param lossy_float Whether or not to store means as floats, losing
+   * precision, when all of them fit the float range.
+   * @return The encoded digest.
+   */
+  static byte[] encode(final TDigest digest,
+                       final boolean include_id,
+                       final int id,
+                       final boolean lossy_float) {
+    return encode(digest, include_id, id, lossy_float, false);
+  }
+
+  /**
+   * Encodes the digest in the compact format.
+   * @param digest A non-null digest.
+   * @param include_id Whether or not to prefix the ID.
+   * @param id The ID to prefix.
+   * @param lossy_float Whether or not to store means as floats, losing
+   * precision, when all of them fit the float range.
+   * @param summary Whether or not to write the summary header.
+   * @return The encoded digest.
+   */
+  static byte[] encode(final TDigest digest,
+                       final boolean include_id,
+                       final int id,
+                       final boolean lossy_float,
+                       final boolean summary) {
+    digest.compress();
+    final int count = digest.centroidCount();
+    final double[] means = new double[count];
+    final double[] weights = new double[count];
+    int i = 0;
+    for (final Centroid centroid : digest.centroids()) {
+      means[i] = centroid.mean();
+      weights[i] = centroid.count();
+      i++;
+    }
+    return encode(digest.compression(), digest.getMin(), digest.getMax(),
+        means, weights, count, include_id, id, lossy_float, summary);
+  }
+
+  /**
+   * Encodes the centroids in the compact format.
+   * @param compression The compression of the digest.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights, rounded to integers.
+   * @param count The number of centroids.
+   * @param include_id Whether or not to prefix the ID.
+   * @param id The ID to prefix.
+   * @param lossy_float Whether or not to store means as floats, losing
+   * precision, when all of them fit the float range.
+   * @return The encoded digest.
+   */
+  static byte[] encode(final double compression,
+                       final double min,
+                       final double max,
+                       final double[] means,
+                       final double[] weights,
+                       final int count,
+                       final boolean include_id,
+                       final int id,
+                       final boolean lossy_float) {
+    return encode(compression, min, max, means, weights, count, include_id, 
+        id, lossy_float, false);
+  }
+
+  /**
+   * Encodes the centroids in the compact format.
+   * @param compression The compression of the digest.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights, rounded to integers.
+   * @param count The number of centroids.
+   * @param include_id Whether or not to prefix the ID.
+   * @param id The ID to prefix.
+   * @param lossy_float Whether or not to store means as floats, losing
+   * precision, when all of them fit the float range.
+   * @param summary Whether or not to write the summary header.
+   * @return The encoded digest.
+   */
+  static byte[] encode(final double compression,
+                       final double min,
+                       final double max,
+                       final double[] means,
+                       final double[] weights,
+                       final int count,
+                       final boolean include_id,
+                       final int id,
+                       final boolean lossy_float,
+                       final boolean summary) {
+    boolean exact_float = true;
+    boolean float_range = true;
+    for (int i = 0; i < count; i++) {
+      if ((double) (float) means[i] != means[i]) {
+        exact_float = false;
+        if (Math.abs(means[i]) > Float.MAX_VALUE) {
+          float_range = false;
+        }
+      }
+    }
+    final boolean use_float = exact_float || (lossy_float && float_range);
+
+    final long[] deltas = new long[count];
+    int size = (include_id ? 1 : 0) + varintSize(count) 
+        + (summary ? SUMMARY_HEADER_SIZE : HEADER_SIZE);
+    double total = 0;
+    double sum = 0;
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      final double weight = Math.round(weights[i]);
+      total += weight;
+      sum += weight * means[i];
+      final long bits = use_float ? sortableBits((float) means[i])
+          : sortableBits(means[i]);
+      deltas[i] = zigZag(bits - previous);
+      previous = bits;
+      size += varintSize(Math.round(weights[i])) + varintSize(deltas[i]);
+    }
+
+    final byte[] encoded = new byte[size];
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    if (include_id) {
+      buf.put((byte) id);
+    }
+    if (summary) {
+      buf.put(use_float ? FORMAT_SUMMARY_FLOAT : FORMAT_SUMMARY_DOUBLE);
+    } else {
+      buf.put(use_float ? FORMAT_FLOAT : FORMAT_DOUBLE);
+    }
+    buf.putFloat((float) compression);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    if (summary) {
+      buf.putDouble(total);
+      buf.putDouble(sum);
+    }
+    putVarint(buf, count);
+    for (int i = 0; i < count; i++) {
+      putVarint(buf, Math.round(weights[i]));
+      putVarint(buf, deltas[i]);
+    }
+    return encoded;
+  }
+
+  /**
+   * Encodes the centroids exactly as {@link TDigest#asSmallBytes(ByteBuffer)}
+   * would for a merging digest holding them.
+   * @param compression The compression of the digest.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights.
+   * @param count The number of centroids.
+   * @param include_id Whether or not to prefix the ID.
+   * @param id The ID to prefix.
+   * @return The encoded digest.
+   */
+  static byte[] encodeSmall(final double compression,
+                            final double min,
+                            final double max,
+                            final double[] means,
+                            final double[] weights,
+                            final int count,
+                            final boolean include_id,
+                            final int id) {
+    final byte[] encoded = new byte[(include_id ? 1 : 0) + 30 + count * 8];
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    if (include_id) {
+      buf.put((byte) id);
+    }
+    writeSmall(buf, compression, min, max, means, weights, count);
+    return encoded;
+  }
+
+  /**
+   * Reads the centroids of a digest in any supported format into the
+   * merger without building a digest, updating the merger's range.
+   * @param buf A non-null buffer positioned after the ID, if any.
+   * @param merger The merger to add centroids to.
+   * @return The compression of the digest.
+   * @throws IllegalArgumentException if the format was not recognized.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  static double readCentroids(final ByteBuffer buf,
+                              final CentroidMerger merger) {
+    final byte format = buf.get(buf.position());
+    if (isCompact(format)) {
+      buf.get();
+      final double compression = buf.getFloat();
+      merger.updateRange(buf.getDouble(), buf.getDouble());
+      if (hasSummary(format)) {
+        buf.getDouble(); // count
+        buf.getDouble(); // sum
+      }
+      final long count = getVarint(buf);
+      if (count > buf.remaining() / 2) {
+        throw new IllegalArgumentException("Centroid count " + count
+            + " exceeds the remaining " + buf.remaining() + " bytes");
+      }
+      long previous = 0;
+      for (long i = 0; i < count; i++) {
+        final long weight = getVarint(buf);
+        previous += unZigZag(getVarint(buf));
+        merger.add(isFloat(format)
+            ? fromSortableBits((int) previous)
+            : fromSortableBits(previous), weight);
+      }
+      return compression;
+    }
+
+    final int encoding = buf.getInt();
+    if (encoding == SMALL_ENCODING) {
+      merger.updateRange(buf.getDouble(), buf.getDouble());
+      final double compression = buf.getFloat();
+      buf.getShort(); // size
+      buf.getShort(); // buffer size
+      final int count = buf.getShort();
+      for (int i = 0; i < count; i++) {
+        final float weight = buf.getFloat();
+        merger.add(buf.getFloat(), weight);
+      }
+      return compression;
+    } else if (encoding == VERBOSE_ENCODING) {
+      merger.updateRange(buf.getDouble(), buf.getDouble());
+      final double compression = buf.getDouble();
+      final int count = buf.getInt();
+      for (int i = 0; i < count; i++) {
+        final double weight = buf.getDouble();
+        merger.add(buf.getDouble(), weight);
+      }
+      return compression;
+    }
+    throw new IllegalArgumentException("Unrecognized encoding: " + encoding);
+  }
+
+  /**
+   * Decodes a digest in either the legacy or a compact format starting at
+   * the buffer's position.
+   * @param buf A non-null buffer positioned after the ID, if any.
+   * @return The decoded digest.
+   */
+  static TDigest decodeAny(final ByteBuffer buf) {
+    if (buf.hasRemaining() && isCompact(buf.get(buf.position()))) {
+      return decode(buf);
+    }
+    return MergingDigest.fromBytes(buf);
+  }
+
+  /**
+   * Decodes a compact digest starting at the buffer's position, advancing
+   * the position.
+   * @param buf A non-null buffer positioned at the format byte.
+   * @return The decoded digest.
+   * @throws IllegalArgumentException if the format was not a compact one.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  static TDigest decode(final ByteBuffer buf) {
+    final byte format = buf.get();
+    if (!isCompact(format)) {
+      throw new IllegalArgumentException("Unrecognized encoding format: "
+          + format);
+    }
+    final double compression = buf.getFloat();
+    final double min = buf.getDouble();
+    final double max = buf.getDouble();
+    if (hasSummary(format)) {
+      buf.getDouble(); // count
+      buf.getDouble(); // sum
+    }
+    final long count_value = getVarint(buf);
+    // each centroid takes at least two bytes.
+    if (count_value > buf.remaining() / 2) {
+      throw new IllegalArgumentException("Centroid count " + count_value 
+          + " exceeds the remaining " + buf.remaining() + " bytes");
+    }
+    final int count = (int) count_value;
+    final double[] means = new double[count];
+    final double[] weights = new double[count];
+    boolean floats = isFloat(format);
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      weights[i] = getVarint(buf);
+      if (weights[i] > MAX_FLOAT_WEIGHT) {
+        floats = false;
+      }
+      previous += unZigZag(getVarint(buf));
+      means[i] = isFloat(format)
+          ? fromSortableBits((int) previous)
+          : fromSortableBits(previous);
+    }
+    return toDigest(compression, min, max, means, weights, count, floats);
+  }
+
+  /**
+   * @param format A compact format.
+   * @return True if the means are stored as floats.
+   */
+  private static boolean isFloat(final byte format) {
+    return format == FORMAT_FLOAT || format == FORMAT_SUMMARY_FLOAT;
+  }
+
+  /**
+   * Builds a merging digest holding exactly the given centroids by writing
+   * them in one of the digest's own encodings.
+   * @param compression The compression of the digest.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights.
+   * @param count The number of centroids.
+   * @param floats Whether or not all means and weights fit in floats
+   * without losing precision, in which case the small encoding is used.
+   * @return The digest.
+   */
+  static TDigest toDigest(final double compression,
+                          final double min,
+                          final double max,
+                          final double[] means,
+                          final double[] weights,
+                          final int count,
+                          final boolean floats) {
+    final ByteBuffer buf;
+    if (floats) {
+      buf = ByteBuffer.allocate(30 + count * 8);
+      writeSmall(buf, compression, min, max, means, weights, count);
+      buf.flip();
+    } else {
+      buf = ByteBuffer.wrap(
+          encodeVerbose(compression, min, max, means, weights, count));
+    }
+    return MergingDigest.fromBytes(buf);
+  }
+  
+  /**
+   * Encodes the centroids in the digest's verbose encoding, keeping full 
+   * double precision means and fractional weights.
+   * @param compression The compression of the digest.
+   * @param min The smallest value seen.
+   * @param max The largest value seen.
+   * @param means The sorted centroid means.
+   * @param weights The centroid weights.
+   * @param count The number of centroids.
+   * @return The encoded digest without an ID.
+   */
+  static byte[] encodeVerbose(final double compression,
+                              final double min,
+                              final double max,
+                              final double[] means,
+                              final double[] weights,
+                              final int count) {
+    final ByteBuffer buf = ByteBuffer.allocate(32 + count * 16);
+    buf.putInt(VERBOSE_ENCODING);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    buf.putDouble(compression);
+    buf.putInt(count);
+    for (int i = 0; i < count; i++) {
+      buf.putDouble(weights[i]);
+      buf.putDouble(means[i]);
+    }
+    return buf.array();
+  }
+
+  /**
+   * Writes the centroids in the digest's small encoding.
+   */
+  private static void writeSmall(final ByteBuffer buf,
+                                 final double compression,
+                                 final double min,
+                                 final double max,
+                                 final double[] means,
+                                 final double[] weights,
+                                 final int count) {
+    buf.putInt(SMALL_ENCODING);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    buf.putFloat((float) compression);
+    buf.putShort((short) Math.max(count, centroidArraySize(compression)));
+    buf.putShort((short) (5 * Math.ceil(compression)));
+    buf.putShort((short) count);
+    for (int i = 0; i < count; i++) {
+      buf.putFloat((float) weights[i]);
+      buf.putFloat((float) means[i]);
+    }
+  }
+
+  /**
+   * Returns the length of the centroid arrays a {@link MergingDigest} 
+   * allocates for the compression, written by its small encoding. As the
+   * digest limits centroid weights by default, it allocates 10 more than 
+   * the 2 * ceil(compression) bound.
+   * @param compression The compression of the digest.
+   * @return The array length.
+   */
+  static int centroidArraySize(final double compression) {
+    return (int) (2 * Math.ceil(compression)) + 10;
+  }
+
+  /**
+   * Maps the float to an int that sorts in the same order.
+   * @param value The value.
+   * @return The sortable bits.
+   */
+  static int sortableBits(final float value) {
+    final int bits = Float.floatToIntBits(value);
+    return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+  }
+
+  /**
+   * Maps the double to a long that sorts in the same order.
+   * @param value The value.
+   * @return The sortable bits.
+   */
+  static long sortableBits(final double value) {
+    final long bits = Double.doubleToLongBits(value);
+    return bits ^ ((bits >> 63) & 0x7FFFFFFFFFFFFFFFL);
+  }
+
+  /** @return The float for the sortable bits. */
+  static float fromSortableBits(final int bits) {
+    return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7FFFFFFF));
+  }
+
+  /** @return The double for the sortable bits. */
+  static double fromSortableBits(final long bits) {
+    return Double.longBitsToDouble(
+        bits ^ ((bits >> 63) & 0x7FFFFFFFFFFFFFFFL));
+  }
+
+  /** @return The zig-zag encoding of a signed value. */
+  static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /** @return The signed value of a zig-zag encoded value. */
+  static long unZigZag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * @param value An unsigned value.
+   * @return The number of bytes needed to write the value as a varint.
+   */
+  static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the unsigned value as a little endian base 128 varint.
+   * @param buf The buffer to write to.
+   * @param value The unsigned value.
+   */
+  static void putVarint(final ByteBuffer buf, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+  }
+
+  /**
+   * Reads an unsigned little endian base 128 varint.
+   * @param buf The buffer to read from.
+   * @return The value.
+   * @throws IllegalArgumentException if the varint was longer than 10 bytes.
+   */
+  static long getVarint(final ByteBuffer buf) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buf.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
@@ -0,0 +1,185 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * A cache of decoded digests keyed by the content of the encoded cell, so 
+ * that repeated queries over the same immutable cells, e.g. refreshing 
+ * dashboards, skip deserialization. The cache is bounded by the approximate
+ * number of bytes retained by the keys and digests and evicts the least 
+ * recently used entries first.
+ * <p>
+ * Cached digests are shared between every histogram handed out for the same
+ * cell and must never be modified. Histograms holding them copy the digest
+ * before any in place change.
+ * 
+ * @since 2.4
+ */
+final class DigestCache {
+  
+  /** Rough per entry overhead of the key, the digest object and the cache's
+   * own bookkeeping. */
+  static final int ENTRY_OVERHEAD = 256;
+  
+  /** The cache. */
+  private final Cache<Key, TDigest> cache;
+  
+  /** The configured bound. */
+  private final long max_bytes;
+  
+  /**
+   * Default ctor.
+   * @param max_bytes The approximate number of bytes to retain.
+   * @throws IllegalArgumentException if the bound was less than 1.
+   */
+  DigestCache(final long max_bytes) {
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Max bytes must be greater than "
+          + "zero.");
+    }
+    this.max_bytes = max_bytes;
+    // a single segment as Guava splits the weight bound between segments, 
+    // evicting large entries from small caches straight away.
+    cache = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(max_bytes)
+        .weigher(new Weigher<Key, TDigest>() {
+          @Override
+          public int weigh(final Key key, final TDigest digest) {
+            // the key's copy of the encoded slice plus the digest.
+            return key.length + retainedBytes(digest);
+          }
+        })
+        .recordStats()
+        .build();
+  }
+  
+  /**
+   * @param raw The encoded cell.
+   * @param offset The offset of the digest in the cell, after the ID.
+   * @param length The length of the digest.
+   * @return The cached digest or null if it wasn't cached.
+   */
+  TDigest get(final byte[] raw, final int offset, final int length) {
+    return cache.getIfPresent(new Key(raw, offset, length));
+  }
+  
+  /**
+   * Caches the decoded digest. The key holds a copy of the encoded slice so 
+   * the caller may reuse the array.
+   * @param raw The encoded cell.
+   * @param offset The offset of the digest in the cell, after the ID.
+   * @param length The length of the digest.
+   * @param digest The decoded digest, which must not be modified afterwards.
+   */
+  void put(final byte[] raw, 
+           final int offset, 
+           final int length, 
+           final TDigest digest) {
+    cache.put(new Key(Arrays.copyOfRange(raw, offset, offset + length), 0, 
+        length), digest);
+  }
+  
+  /** @return The number of lookups that found a digest. */
+  long hits() {
+    return cache.stats().hitCount();
+  }
+  
+  /** @return The number of lookups that didn't find a digest. */
+  long misses() {
+    return cache.stats().missCount();
+  }
+  
+  /** @return The number of digests evicted to stay within the bound. */
+  long evictions() {
+    return cache.stats().evictionCount();
+  }
+  
+  /** @return The number of cached digests. */
+  long size() {
+    return cache.size();
+  }
+  
+  /** @return The configured bound in bytes. */
+  long maxBytes() {
+    return max_bytes;
+  }
+  
+  /**
+   * Estimates the heap retained by a merging digest, dominated by its 
+   * centroid arrays and merge buffers which are sized by the compression.
+   * @param digest A non-null digest.
+   * @return The approximate size in bytes.
+   */
+  static int retainedBytes(final TDigest digest) {
+    final int compression = (int) Math.ceil(digest.compression());
+    // means and weights plus the temporary means, weights and order.
+    final int size = 2 * compression + 10;
+    final int buffer = 5 * compression;
+    return ENTRY_OVERHEAD + size * 16 + buffer * 20;
+  }
+  
+  /**
+   * A slice of an encoded cell compared by content. Cached keys own a copy of
+   * the slice while lookups wrap the caller's array.
+   */
+  static final class Key {
+    private final byte[] raw;
+    private final int offset;
+    private final int length;
+    private final int hash;
+    
+    Key(final byte[] raw, final int offset, final int length) {
+      this.raw = raw;
+      this.offset = offset;
+      this.length = length;
+      int hash = 1;
+      for (int i = offset; i < offset + length; i++) {
+        hash = 31 * hash + raw[i];
+      }
+      this.hash = hash;
+    }
+    
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+    
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      if (hash != other.hash || length != other.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (raw[offset + i] != other.raw[other.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * Records values from many application threads into a digest per interval
+ * without locking on the hot path, for clients that flush a digest to the 
+ * TSD every interval. {@link MergingDigest} isn't thread safe so each 
+ * recording thread gets its own digest per interval. A writer only 
+ * increments an epoch counter on the way in and out and the interval is
+ * swapped by the reader the way HdrHistogram's {@code Recorder} does it: 
+ * the reader publishes a new interval, then waits for writers that may 
+ * still be recording into the old one to leave before merging the old
+ * interval's digests into a snapshot.
+ * <p>
+ * Recording is wait free once a thread has a digest for the interval.
+ * Taking a snapshot blocks other snapshots and waits for in-flight writes.
+ * Snapshots are encoded exactly as {@link MergingTDigestTDigestCodec} 
+ * expects, optionally with the ID prefix.
+ *
+ * @since 2.4
+ */
+public final class DigestRecorder {
+
+  /** The ID of the resulting histograms. */
+  private final int id;
+  
+  /** The compression of the digests. */
+  private final double compression;
+  
+  /** The interval being recorded. */
+  private volatile Interval current;
+  
+  /** Each thread's digest, only valid while it belongs to the current 
+   * interval. */
+  private final ThreadLocal<ThreadDigest> digests = 
+      new ThreadLocal<ThreadDigest>();
+  
+  /** Counts writers entering. Negative during odd phases. */
+  private final AtomicLong start_epoch = new AtomicLong();
+  
+  /** Counts writers leaving during even phases. */
+  private final AtomicLong even_end_epoch = new AtomicLong();
+  
+  /** Counts writers leaving during odd phases. */
+  private final AtomicLong odd_end_epoch = new AtomicLong(Long.MIN_VALUE);
+  
+  /**
+   * Default ctor. The first interval starts now.
+   * @param id The ID of the histograms within the TSD.
+   * @param compression The compression of the digests.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255
+   * or the compression was not positive.
+   */
+  public DigestRecorder(final int id, final double compression) {
+    if (id < 0 || id > 255) {
+      throw new IllegalArgumentException("ID must be between 0 and 255");
+    }
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    this.id = id;
+    this.compression = compression;
+    current = new Interval(System.currentTimeMillis());
+  }
+  
+  /**
+   * Records a value in the current interval.
+   * @param value The value to record.
+   * @throws IllegalArgumentException if the value was NaN.
+   */
+  public void record(final double value) {
+    record(value, 1);
+  }
+  
+  /**
+   * Records a value a number of times in the current interval.
+   * @param value The value to record.
+   * @param count The number of times to record it.
+   * @throws IllegalArgumentException if the value was NaN or the count was
+   * less than 1.
+   */
+  public void record(final double value, final int count) {
+    if (Double.isNaN(value)) {
+      throw new IllegalArgumentException("Cannot record NaN.");
+    }
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1.");
+    }
+    final long epoch = start_epoch.getAndIncrement();
+    try {
+      final Interval interval = current;
+      ThreadDigest digest = digests.get();
+      if (digest == null || digest.interval != interval) {
+        digest = new ThreadDigest(interval, compression);
+        interval.digests.add(digest);
+        digests.set(digest);
+      }
+      digest.digest.add(value, count);
+    } finally {
+      if (epoch < 0) {
+        odd_end_epoch.getAndIncrement();
+      } else {
+        even_end_epoch.getAndIncrement();
+      }
+    }
+  }
+  
+  /**
+   * Ends the current interval, starts a new one and returns the values 
+   * recorded in the interval that ended.
+   * @return A new histogram, empty if nothing was recorded.
+   */
+  public MergingTDigestImplementation intervalHistogram() {
+    final CentroidMerger merger = swap();
+    final MergingTDigestImplementation histogram = 
+        new MergingTDigestImplementation(id);
+    histogram.setDigest(merger.toDigest(compression));
+    return histogram;
+  }
+  
+  /**
+   * Ends the current interval, starts a new one and returns the values 
+   * recorded in the interval that ended in the small encoding read by 
+   * {@link MergingTDigestTDigestCodec}, e.g. to base64 and send to the TSD.
+   * @param include_id Whether or not to prefix the ID.
+   * @return The encoded digest.
+   */
+  public byte[] intervalEncoded(final boolean include_id) {
+    final CentroidMerger merger = swap();
+    final int count = merger.compress(compression);
+    return CompactEncoding.encodeSmall(compression, merger.min(), 
+        merger.max(), merger.means(), merger.weights(), count, include_id, 
+        id);
+  }
+  
+  /** @return The wall clock time in milliseconds the current interval 
+   * started at. */
+  public long intervalStart() {
+    return current.start;
+  }
+  
+  /**
+   * Publishes a new interval, waits for writers to leave the old one and 
+   * collects its digests.
+   * @return A merger with the centroids of the old interval.
+   */
+  private synchronized CentroidMerger swap() {
+    final Interval interval = current;
+    current = new Interval(System.currentTimeMillis());
+    flipPhase();
+    
+    final CentroidMerger merger = new CentroidMerger(
+        (int) Math.ceil(compression) * 2);
+    for (final ThreadDigest digest : interval.digests) {
+      // fold the writer's buffered values into its centroids and range.
+      digest.digest.compress();
+      merger.add(digest.digest);
+    }
+    return merger;
+  }
+  
+  /**
+   * Switches the writers to the other phase and waits until every writer 
+   * that entered during the previous phase has left, so that none of them
+   * can still be recording into the old interval. Must be called while 
+   * holding the lock.
+   */
+  private void flipPhase() {
+    final boolean next_phase_is_even = start_epoch.get() < 0;
+    final long initial = next_phase_is_even ? 0 : Long.MIN_VALUE;
+    if (next_phase_is_even) {
+      even_end_epoch.lazySet(initial);
+    } else {
+      odd_end_epoch.lazySet(initial);
+    }
+    final long start_at_flip = start_epoch.getAndSet(initial);
+    final AtomicLong end_epoch = next_phase_is_even 
+        ? odd_end_epoch : even_end_epoch;
+    while (end_epoch.get() != start_at_flip) {
+      LockSupport.parkNanos(1000);
+    }
+  }
+  
+  /** The digests recorded in one interval. */
+  private static final class Interval {
+    /** When the interval started. */
+    private final long start;
+    
+    /** The digest of every thread that recorded in the interval. */
+    private final ConcurrentLinkedQueue<ThreadDigest> digests = 
+        new ConcurrentLinkedQueue<ThreadDigest>();
+    
+    private Interval(final long start) {
+      this.start = start;
+    }
+  }
+  
+  /** A thread's digest for an interval. Only written by the owner. */
+  private static final class ThreadDigest {
+    /** The interval the digest belongs to. */
+    private final Interval interval;
+    
+    /** The digest. */
+    private final TDigest digest;
+    
+    private ThreadDigest(final Interval interval, final double compression) {
+      this.interval = interval;
+      digest = new MergingDigest(compression);
+    }
+  }
+}
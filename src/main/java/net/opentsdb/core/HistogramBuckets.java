@@ -0,0 +1,158 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bucket boundaries for exporting sketches as bucketed histograms, e.g. to
+ * render heatmaps, via {@code getHistogram(double[])} and 
+ * {@code bucketCounts(double[])} on the t-digest and log bucket histograms.
+ *
+ * @since 2.4
+ */
+public final class HistogramBuckets {
+  
+  /** The number of buckets exported by {@code getHistogram()}. */
+  public static final int DEFAULT_BUCKETS = 32;
+  
+  private HistogramBuckets() {
+    // static utility
+  }
+  
+  /**
+   * Returns boundaries growing by a constant factor from the min to the max,
+   * so each bucket has the same relative width.
+   * @param min The first boundary, greater than zero.
+   * @param max The last boundary, at least the min.
+   * @param buckets The number of buckets between the min and max.
+   * @return The buckets plus one boundaries, starting at the min and ending
+   * at the max.
+   * @throws IllegalArgumentException if the min was not positive, the max
+   * was less than the min or the buckets were less than 1.
+   */
+  public static double[] logBoundaries(final double min, 
+                                       final double max, 
+                                       final int buckets) {
+    if (!(min > 0) || !(max >= min) || Double.isInfinite(max)) {
+      throw new IllegalArgumentException("Log boundaries require 0 < min <= "
+          + "max, got " + min + " and " + max);
+    }
+    if (buckets < 1) {
+      throw new IllegalArgumentException("Buckets must be at least 1.");
+    }
+    final double[] boundaries = new double[buckets + 1];
+    final double log_min = Math.log(min);
+    final double step = (Math.log(max) - log_min) / buckets;
+    boundaries[0] = min;
+    for (int i = 1; i < buckets; i++) {
+      boundaries[i] = Math.exp(log_min + step * i);
+    }
+    boundaries[buckets] = max;
+    return boundaries;
+  }
+  
+  /**
+   * Returns evenly spaced boundaries from the min to the max.
+   * @param min The first boundary.
+   * @param max The last boundary, at least the min.
+   * @param buckets The number of buckets between the min and max.
+   * @return The buckets plus one boundaries, starting at the min and ending
+   * at the max.
+   * @throws IllegalArgumentException if the range was not finite, the max 
+   * was less than the min or the buckets were less than 1.
+   */
+  public static double[] linearBoundaries(final double min, 
+                                          final double max, 
+                                          final int buckets) {
+    if (Double.isInfinite(min) || Double.isInfinite(max) || 
+        !(max >= min)) {
+      throw new IllegalArgumentException("Linear boundaries require a finite "
+          + "min <= max, got " + min + " and " + max);
+    }
+    if (buckets < 1) {
+      throw new IllegalArgumentException("Buckets must be at least 1.");
+    }
+    final double[] boundaries = new double[buckets + 1];
+    final double step = (max - min) / buckets;
+    boundaries[0] = min;
+    for (int i = 1; i < buckets; i++) {
+      boundaries[i] = min + step * i;
+    }
+    boundaries[buckets] = max;
+    return boundaries;
+  }
+  
+  /**
+   * Returns {@link #DEFAULT_BUCKETS} log scaled boundaries over the range if
+   * it's positive, linear boundaries otherwise.
+   * @param min The smallest value of a sketch.
+   * @param max The largest value of a sketch.
+   * @return The boundaries.
+   */
+  static double[] defaultBoundaries(final double min, final double max) {
+    if (min == max) {
+      return new double[] { min };
+    }
+    if (min > 0) {
+      return logBoundaries(min, max, DEFAULT_BUCKETS);
+    }
+    return linearBoundaries(min, max, DEFAULT_BUCKETS);
+  }
+  
+  /**
+   * Validates boundaries passed to a bucketed export.
+   * @param boundaries The bucket boundaries.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  static void checkBoundaries(final double[] boundaries) {
+    if (boundaries == null) {
+      throw new IllegalArgumentException("Boundaries cannot be null.");
+    }
+    for (int i = 0; i < boundaries.length; i++) {
+      if (Double.isNaN(boundaries[i]) || 
+          (i > 0 && boundaries[i] < boundaries[i - 1])) {
+        throw new IllegalArgumentException("Boundaries must be sorted in "
+            + "ascending order and not NaN.");
+      }
+    }
+  }
+  
+  /**
+   * Converts estimated bucket counts to a map keyed by the upper bound of 
+   * each bucket, positive infinity for the last. Counts are rounded on the 
+   * cumulative sum so that they add up to the rounded total. Buckets with
+   * the same upper bound are combined.
+   * @param boundaries The bucket boundaries.
+   * @param counts The counts, one more than the boundaries.
+   * @return A sorted map of upper bounds to counts.
+   */
+  static Map<Double, Long> toMap(final double[] boundaries, 
+                                 final double[] counts) {
+    final TreeMap<Double, Long> map = new TreeMap<Double, Long>();
+    double cumulative = 0;
+    long rounded = 0;
+    for (int i = 0; i <= boundaries.length; i++) {
+      cumulative += counts[i];
+      final long next = Math.round(cumulative);
+      final Double bound = i < boundaries.length 
+          ? boundaries[i] : Double.POSITIVE_INFINITY;
+      final Long existing = map.get(bound);
+      map.put(bound, (existing == null ? 0 : existing) + next - rounded);
+      rounded = next;
+    }
+    return map;
+  }
+}
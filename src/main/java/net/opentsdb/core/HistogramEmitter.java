@@ -0,0 +1,719 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import net.opentsdb.core.Histogram;
+import net.opentsdb.core.Tags;
+import net.opentsdb.utils.JSON;
+
+/**
+ * Sends histograms from a client to the TSD in batches, either as JSON 
+ * arrays POSTed to {@code /api/histogram} or as {@code histogram} lines 
+ * pipelined over one telnet connection. Application threads call 
+ * {@link #emit} which encodes the histogram with the codec, into a buffer
+ * reused per thread, and queues the data point. A single flusher thread 
+ * drains the queue and sends a batch once it holds {@link #setBatchSize} 
+ * points or {@link #setMaxBatchBytes} bytes of values, or the oldest point
+ * in it has waited {@link #setFlushInterval} milliseconds.
+ * <p>
+ * The queue is bounded. When it's full, {@link #emit} waits up to the 
+ * offer timeout for the flusher to catch up, then drops the point and 
+ * returns false. Batches that fail to send are counted and dropped, they
+ * are not retried. HTTP bodies are serialized with the TSD's JSON factory,
+ * streamed through gzip when enabled.
+ * <p>
+ * Usage: configure the emitter, call {@link #start()}, emit from any 
+ * thread and call {@link #close()} to send what's queued and stop.
+ *
+ * @since 2.4
+ */
+public final class HistogramEmitter implements Closeable {
+  
+  /** How the data points are sent. */
+  public static enum Protocol {
+    /** JSON arrays POSTed to /api/histogram. */
+    HTTP,
+    
+    /** Pipelined telnet style lines. */
+    TELNET
+  }
+  
+  /** The default maximum number of data points per batch. */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  
+  /** The default maximum number of encoded value bytes per batch. */
+  public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+  
+  /** The default maximum time a point waits in a batch in milliseconds. */
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+  
+  /** The default connect and read timeout in milliseconds. */
+  public static final int DEFAULT_TIMEOUT = 10000;
+  
+  /** The HTTP endpoint. */
+  public static final String ENDPOINT = "/api/histogram";
+  
+  /** The initial size of the per thread encoding buffers. */
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  /** Queued to stop the flusher. */
+  private static final DataPoint CLOSE = new DataPoint(null, 0, null, null);
+  
+  /** The TSD host. */
+  private final String host;
+  
+  /** The TSD port. */
+  private final int port;
+  
+  /** How to send. */
+  private final Protocol protocol;
+  
+  /** The codec used to encode histograms. */
+  private final MergingTDigestTDigestCodec codec;
+  
+  /** The bounded queue of encoded points. */
+  private final BlockingQueue<DataPoint> queue;
+  
+  /** The encoding buffer of each emitting thread. */
+  private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+  
+  /** Points sent successfully. */
+  private final LongAdder sent = new LongAdder();
+  
+  /** Points dropped because the queue was full. */
+  private final LongAdder dropped = new LongAdder();
+  
+  /** Points in batches that failed to send. */
+  private final LongAdder failed = new LongAdder();
+  
+  /** Batches sent successfully. */
+  private final LongAdder batches = new LongAdder();
+  
+  /** Reused by the flusher to build telnet lines. */
+  private final StringBuilder lines = new StringBuilder();
+  
+  /** Reused by the flusher to hold each serialized, maybe compressed, 
+   * HTTP request body. */
+  private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+  
+  private int batch_size = DEFAULT_BATCH_SIZE;
+  private int max_batch_bytes = DEFAULT_MAX_BATCH_BYTES;
+  private long flush_interval = DEFAULT_FLUSH_INTERVAL;
+  private long offer_timeout;
+  private int timeout = DEFAULT_TIMEOUT;
+  private boolean gzip;
+  
+  /** The flusher, null until started. */
+  private Thread flusher;
+  
+  /** Set once closed. */
+  private volatile boolean closed;
+  
+  /** The telnet connection, only touched by the flusher. */
+  private Socket socket;
+  private OutputStream socket_stream;
+  
+  /**
+   * Default ctor.
+   * @param host The non-null and non-empty TSD host.
+   * @param port The TSD port.
+   * @param protocol The non-null protocol to send with.
+   * @param codec The non-null codec to encode histograms with. Its ID is 
+   * sent with each point.
+   * @param queue_size The maximum number of points waiting to be sent.
+   * @throws IllegalArgumentException if an argument was null or out of 
+   * range.
+   */
+  public HistogramEmitter(final String host, 
+                          final int port, 
+                          final Protocol protocol, 
+                          final MergingTDigestTDigestCodec codec,
+                          final int queue_size) {
+    if (host == null || host.isEmpty()) {
+      throw new IllegalArgumentException("Host cannot be null or empty.");
+    }
+    if (port < 1 || port > 65535) {
+      throw new IllegalArgumentException("Invalid port: " + port);
+    }
+    if (protocol == null) {
+      throw new IllegalArgumentException("Protocol cannot be null.");
+    }
+    if (codec == null) {
+      throw new IllegalArgumentException("Codec cannot be null.");
+    }
+    if (queue_size < 1) {
+      throw new IllegalArgumentException("Queue size must be greater than "
+          + "zero.");
+    }
+    this.host = host;
+    this.port = port;
+    this.protocol = protocol;
+    this.codec = codec;
+    queue = new ArrayBlockingQueue<DataPoint>(queue_size);
+  }
+  
+  /**
+   * Starts the flusher thread.
+   * @throws IllegalStateException if already started or closed.
+   */
+  public synchronized void start() {
+    if (flusher != null || closed) {
+      throw new IllegalStateException("Emitter was already started.");
+    }
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "HistogramEmitter-" + host + ":" + port);
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+  
+  /**
+   * Encodes and queues a histogram.
+   * @param metric The non-null and non-empty metric.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param tags The non-null and non-empty tags.
+   * @param histogram The non-null histogram.
+   * @return True if the point was queued, false if it was dropped because
+   * the queue stayed full past the offer timeout.
+   * @throws IllegalArgumentException if an argument was null or empty or 
+   * the metric or a tag had characters the TSD rejects.
+   * @throws IllegalStateException if the emitter was closed.
+   */
+  public boolean emit(final String metric, 
+                      final long timestamp, 
+                      final Map<String, String> tags,
+                      final Histogram histogram) {
+    if (histogram == null) {
+      throw new IllegalArgumentException("Histogram cannot be null.");
+    }
+    ByteBuffer buf = buffers.get();
+    if (buf == null) {
+      buf = ByteBuffer.allocate(histogram instanceof MergingTDigestImplementation 
+          ? Math.max(INITIAL_BUFFER_SIZE, ((MergingTDigestImplementation) 
+              histogram).encodedSize(false)) : INITIAL_BUFFER_SIZE);
+      buffers.set(buf);
+    } else if (histogram instanceof MergingTDigestImplementation) {
+      final int size = ((MergingTDigestImplementation) histogram)
+          .encodedSize(false);
+      if (size > buf.capacity()) {
+        buf = ByteBuffer.allocate(size);
+        buffers.set(buf);
+      }
+    }
+    while (true) {
+      buf.clear();
+      try {
+        codec.encode(histogram, false, buf);
+        break;
+      } catch (BufferOverflowException e) {
+        buf = ByteBuffer.allocate(buf.capacity() * 2);
+        buffers.set(buf);
+      }
+    }
+    buf.flip();
+    return queue(metric, timestamp, tags, 
+        Base64.getEncoder().encode(buf));
+  }
+  
+  /**
+   * Queues a histogram already encoded by the codec without the ID, e.g.
+   * from {@link DigestRecorder#intervalEncoded(boolean)}.
+   * @param metric The non-null and non-empty metric.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param tags The non-null and non-empty tags.
+   * @param encoded The non-null and non-empty encoded histogram.
+   * @return True if the point was queued, false if it was dropped because
+   * the queue stayed full past the offer timeout.
+   * @throws IllegalArgumentException if an argument was null or empty or 
+   * the metric or a tag had characters the TSD rejects.
+   * @throws IllegalStateException if the emitter was closed.
+   */
+  public boolean emit(final String metric, 
+                      final long timestamp, 
+                      final Map<String, String> tags,
+                      final byte[] encoded) {
+    if (encoded == null || encoded.length < 1) {
+      throw new IllegalArgumentException("Encoded value cannot be null or "
+          + "empty.");
+    }
+    return queue(metric, timestamp, tags, 
+        Base64.getEncoder().encode(ByteBuffer.wrap(encoded)));
+  }
+  
+  /** @return The number of points sent successfully. */
+  public long sent() {
+    return sent.sum();
+  }
+  
+  /** @return The number of points dropped because the queue was full. */
+  public long dropped() {
+    return dropped.sum();
+  }
+  
+  /** @return The number of points in batches that failed to send. */
+  public long failed() {
+    return failed.sum();
+  }
+  
+  /** @return The number of batches sent successfully. */
+  public long batches() {
+    return batches.sum();
+  }
+  
+  /** @return The number of points waiting to be sent. */
+  public int queued() {
+    return queue.size();
+  }
+  
+  /**
+   * Stops accepting points, sends everything queued and closes the 
+   * connection. If the emitter was never started or the flusher died, the 
+   * queue is sent from the calling thread. If the flusher doesn't make 
+   * room for the close marker within the timeout, the queued points are
+   * dropped and counted instead of blocking forever.
+   */
+  @Override
+  public void close() {
+    final Thread thread;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      thread = flusher;
+    }
+    if (thread == null) {
+      drain(new ArrayList<DataPoint>(batch_size));
+      disconnect();
+      return;
+    }
+    try {
+      if (thread.isAlive() && 
+          queue.offer(CLOSE, timeout, TimeUnit.MILLISECONDS)) {
+        thread.join();
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (!thread.isAlive()) {
+      drain(new ArrayList<DataPoint>(batch_size));
+      disconnect();
+      return;
+    }
+    // the flusher is stuck, give up on what's left.
+    thread.interrupt();
+    DataPoint dp;
+    while ((dp = queue.poll()) != null) {
+      if (dp != CLOSE) {
+        dropped.increment();
+      }
+    }
+  }
+  
+  /**
+   * @param batch_size The maximum number of points per batch.
+   * @throws IllegalArgumentException if the size was less than 1.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setBatchSize(final int batch_size) {
+    checkNotStarted();
+    if (batch_size < 1) {
+      throw new IllegalArgumentException("Batch size must be greater than "
+          + "zero.");
+    }
+    this.batch_size = batch_size;
+  }
+  
+  /**
+   * @param max_batch_bytes The maximum number of base 64 encoded value 
+   * bytes per batch. A batch always holds at least one point.
+   * @throws IllegalArgumentException if the size was less than 1.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setMaxBatchBytes(final int max_batch_bytes) {
+    checkNotStarted();
+    if (max_batch_bytes < 1) {
+      throw new IllegalArgumentException("Max batch bytes must be greater "
+          + "than zero.");
+    }
+    this.max_batch_bytes = max_batch_bytes;
+  }
+  
+  /**
+   * @param flush_interval The maximum time in milliseconds a point waits 
+   * for its batch to fill.
+   * @throws IllegalArgumentException if the interval was less than 1.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setFlushInterval(final long flush_interval) {
+    checkNotStarted();
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("Flush interval must be greater "
+          + "than zero.");
+    }
+    this.flush_interval = flush_interval;
+  }
+  
+  /**
+   * @param offer_timeout How long in milliseconds {@link #emit} waits for 
+   * room in a full queue before dropping the point. Defaults to 0, drop
+   * immediately.
+   * @throws IllegalArgumentException if the timeout was negative.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setOfferTimeout(final long offer_timeout) {
+    checkNotStarted();
+    if (offer_timeout < 0) {
+      throw new IllegalArgumentException("Offer timeout cannot be negative.");
+    }
+    this.offer_timeout = offer_timeout;
+  }
+  
+  /**
+   * @param timeout The connect and read timeout in milliseconds.
+   * @throws IllegalArgumentException if the timeout was less than 1.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setTimeout(final int timeout) {
+    checkNotStarted();
+    if (timeout < 1) {
+      throw new IllegalArgumentException("Timeout must be greater than "
+          + "zero.");
+    }
+    this.timeout = timeout;
+  }
+  
+  /**
+   * @param gzip Whether or not to gzip HTTP request bodies. Ignored for 
+   * telnet.
+   * @throws IllegalStateException if the emitter was started.
+   */
+  public synchronized void setGzip(final boolean gzip) {
+    checkNotStarted();
+    this.gzip = gzip;
+  }
+  
+  /** @throws IllegalStateException if the emitter was started. */
+  private void checkNotStarted() {
+    if (flusher != null || closed) {
+      throw new IllegalStateException("Emitter was already started.");
+    }
+  }
+  
+  /**
+   * Validates and queues a point, waiting up to the offer timeout. Names are
+   * checked the way the TSD does, which also keeps them safe to write as
+   * space separated telnet lines.
+   * @param metric The metric.
+   * @param timestamp The timestamp.
+   * @param tags The tags.
+   * @param value The base 64 encoded value.
+   * @return True if queued, false if dropped.
+   */
+  private boolean queue(final String metric, 
+                        final long timestamp, 
+                        final Map<String, String> tags,
+                        final ByteBuffer value) {
+    Tags.validateString("metric name", metric);
+    if (tags == null || tags.isEmpty()) {
+      throw new IllegalArgumentException("Tags cannot be null or empty.");
+    }
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      Tags.validateString("tag name", tag.getKey());
+      Tags.validateString("tag value", tag.getValue());
+    }
+    if (closed) {
+      throw new IllegalStateException("Emitter was closed.");
+    }
+    final DataPoint dp = new DataPoint(metric, timestamp, 
+        new TreeMap<String, String>(tags), 
+        new String(value.array(), 0, value.limit(), UTF8));
+    try {
+      if (offer_timeout > 0 
+          ? queue.offer(dp, offer_timeout, TimeUnit.MILLISECONDS) 
+          : queue.offer(dp)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    dropped.increment();
+    return false;
+  }
+  
+  /**
+   * Runs on the flusher thread, sending a batch whenever it fills up or its
+   * oldest point times out, until the close marker is read.
+   */
+  private void flushLoop() {
+    final List<DataPoint> batch = new ArrayList<DataPoint>(batch_size);
+    try {
+      while (true) {
+        final DataPoint first = queue.take();
+        if (first == CLOSE) {
+          break;
+        }
+        batch.add(first);
+        int bytes = first.value.length();
+        final long deadline = System.nanoTime() + 
+            TimeUnit.MILLISECONDS.toNanos(flush_interval);
+        boolean close = false;
+        while (batch.size() < batch_size && bytes < max_batch_bytes) {
+          final long wait = deadline - System.nanoTime();
+          if (wait <= 0) {
+            break;
+          }
+          final DataPoint dp = queue.poll(wait, TimeUnit.NANOSECONDS);
+          if (dp == null) {
+            break;
+          }
+          if (dp == CLOSE) {
+            close = true;
+            break;
+          }
+          batch.add(dp);
+          bytes += dp.value.length();
+        }
+        send(batch);
+        batch.clear();
+        if (close) {
+          break;
+        }
+      }
+      // emitters racing with close() may have queued behind the marker
+      drain(batch);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      disconnect();
+    }
+  }
+  
+  /**
+   * Sends everything left in the queue in full batches.
+   * @param batch The reusable, empty batch list.
+   */
+  private void drain(final List<DataPoint> batch) {
+    int bytes = 0;
+    DataPoint dp;
+    while ((dp = queue.poll()) != null) {
+      if (dp == CLOSE) {
+        continue;
+      }
+      batch.add(dp);
+      bytes += dp.value.length();
+      if (batch.size() >= batch_size || bytes >= max_batch_bytes) {
+        send(batch);
+        batch.clear();
+        bytes = 0;
+      }
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+      batch.clear();
+    }
+  }
+  
+  /**
+   * Sends a batch with the configured protocol and updates the counters.
+   * @param batch The non-empty batch.
+   */
+  private void send(final List<DataPoint> batch) {
+    try {
+      if (protocol == Protocol.HTTP) {
+        sendHttp(batch);
+      } else {
+        sendTelnet(batch);
+      }
+      sent.add(batch.size());
+      batches.increment();
+    } catch (IOException e) {
+      failed.add(batch.size());
+      if (protocol == Protocol.TELNET) {
+        // reconnect on the next batch
+        disconnect();
+      }
+    } catch (RuntimeException e) {
+      // keep the flusher alive
+      failed.add(batch.size());
+      disconnect();
+    }
+  }
+  
+  /**
+   * POSTs the batch as a JSON array.
+   * @param batch The non-empty batch.
+   * @throws IOException if the request failed or the TSD didn't answer with
+   * a 2xx status.
+   */
+  private void sendHttp(final List<DataPoint> batch) throws IOException {
+    payload.reset();
+    final JsonGenerator json = JSON.getFactory().createGenerator(
+        gzip ? new GZIPOutputStream(payload) : payload);
+    json.writeStartArray();
+    for (final DataPoint dp : batch) {
+      json.writeStartObject();
+      json.writeStringField("metric", dp.metric);
+      json.writeNumberField("timestamp", dp.timestamp);
+      json.writeNumberField("id", codec.getId());
+      json.writeStringField("value", dp.value);
+      json.writeObjectFieldStart("tags");
+      for (final Map.Entry<String, String> tag : dp.tags.entrySet()) {
+        json.writeStringField(tag.getKey(), tag.getValue());
+      }
+      json.writeEndObject();
+      json.writeEndObject();
+    }
+    json.writeEndArray();
+    // closes the target as well, finishing the gzip stream
+    json.close();
+    
+    final HttpURLConnection connection = (HttpURLConnection) 
+        new URL("http", host, port, ENDPOINT).openConnection();
+    try {
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(payload.size());
+      connection.setRequestProperty("Content-Type", 
+          "application/json; charset=UTF-8");
+      if (gzip) {
+        connection.setRequestProperty("Content-Encoding", "gzip");
+      }
+      final OutputStream out = connection.getOutputStream();
+      payload.writeTo(out);
+      out.close();
+      final int status = connection.getResponseCode();
+      // consume the response so the connection may be kept alive
+      final InputStream response = status >= 400 
+          ? connection.getErrorStream() : connection.getInputStream();
+      if (response != null) {
+        final byte[] discard = new byte[512];
+        while (response.read(discard) >= 0) { }
+        response.close();
+      }
+      if (status < 200 || status > 299) {
+        throw new IOException("Unexpected status " + status + " from " 
+            + host + ":" + port);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+  
+  /**
+   * Writes the batch as histogram lines over the telnet connection without 
+   * waiting for responses, opening it if needed.
+   * @param batch The non-empty batch.
+   * @throws IOException if the connection or write failed.
+   */
+  private void sendTelnet(final List<DataPoint> batch) throws IOException {
+    if (socket == null) {
+      final Socket s = new Socket();
+      try {
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(host, port), timeout);
+        socket_stream = new BufferedOutputStream(s.getOutputStream());
+      } catch (IOException e) {
+        s.close();
+        throw e;
+      }
+      socket = s;
+    }
+    lines.setLength(0);
+    for (final DataPoint dp : batch) {
+      lines.append("histogram ")
+          .append(dp.metric)
+          .append(' ')
+          .append(dp.timestamp)
+          .append(' ')
+          .append(codec.getId())
+          .append(' ')
+          .append(dp.value);
+      for (final Map.Entry<String, String> tag : dp.tags.entrySet()) {
+        lines.append(' ')
+            .append(tag.getKey())
+            .append('=')
+            .append(tag.getValue());
+      }
+      lines.append('\n');
+    }
+    socket_stream.write(lines.toString().getBytes(UTF8));
+    socket_stream.flush();
+  }
+  
+  /** Closes the telnet connection if open. */
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+      socket = null;
+      socket_stream = null;
+    }
+  }
+  
+  /** An encoded point waiting to be sent. */
+  private static final class DataPoint {
+    private final String metric;
+    private final long timestamp;
+    private final Map<String, String> tags;
+    private final String value;
+    
+    private DataPoint(final String metric, 
+                      final long timestamp, 
+                      final Map<String, String> tags, 
+                      final String value) {
+      this.metric = metric;
+      this.timestamp = timestamp;
+      this.tags = tags;
+      this.value = value;
+    }
+  }
+}
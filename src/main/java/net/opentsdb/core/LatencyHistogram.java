@@ -0,0 +1,172 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets over nanoseconds. 
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets so 
+ * percentiles are reported within 25% of the true value while recording
+ * costs a couple of bit operations and a striped counter increment.
+ * <p>
+ * The buckets count from creation or the last {@link #reset()}. 
+ * {@link #interval()} returns the counts recorded since its previous call
+ * so that reported percentiles track recent behavior after a long uptime.
+ *
+ * @since 2.4
+ */
+final class LatencyHistogram {
+  
+  /** The number of linear buckets per power of two, must be a power of two. */
+  static final int SUB_BUCKETS = 4;
+  
+  /** Log2 of {@link #SUB_BUCKETS}. */
+  private static final int SUB_BUCKET_BITS = 2;
+  
+  /** The bucket counters. */
+  private final LongAdder[] buckets;
+  
+  /** The bucket sums at the end of the previous interval. */
+  private final long[] previous;
+  
+  /** Default ctor. */
+  LatencyHistogram() {
+    buckets = new LongAdder[64 * SUB_BUCKETS];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+    previous = new long[buckets.length];
+  }
+  
+  /**
+   * Records a single latency.
+   * @param nanos The latency in nanoseconds. Negative values are recorded as
+   * zero.
+   */
+  void add(final long nanos) {
+    buckets[bucket(nanos < 0 ? 0 : nanos)].increment();
+  }
+  
+  /** @return The number of latencies recorded. */
+  long count() {
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i].sum();
+    }
+    return count;
+  }
+  
+  /**
+   * Estimates a percentile from a snapshot of the buckets.
+   * @param p The percentile from 0 to 100.
+   * @return The upper bound of the bucket containing the percentile in 
+   * nanoseconds or 0 if nothing was recorded.
+   * @throws IllegalArgumentException if the percentile was not within 0 and
+   * 100.
+   */
+  long percentile(final double p) {
+    final long[] counts = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return percentile(counts, p);
+  }
+  
+  /**
+   * Returns the bucket counts recorded since the previous call, or since 
+   * creation or the last reset for the first call. Latencies recorded 
+   * concurrently land in this interval or the next, never in neither.
+   * @return The bucket counts of the interval.
+   */
+  synchronized long[] interval() {
+    final long[] counts = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      final long sum = buckets[i].sum();
+      counts[i] = sum - previous[i];
+      previous[i] = sum;
+    }
+    return counts;
+  }
+  
+  /** Clears the counters and the interval, e.g. between tests. */
+  synchronized void reset() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i].reset();
+      previous[i] = 0;
+    }
+  }
+  
+  /**
+   * Estimates a percentile from bucket counts.
+   * @param counts The counts, e.g. from {@link #interval()}.
+   * @param p The percentile from 0 to 100.
+   * @return The upper bound of the bucket containing the percentile in 
+   * nanoseconds or 0 if the counts were empty.
+   * @throws IllegalArgumentException if the percentile was not within 0 and
+   * 100.
+   */
+  static long percentile(final long[] counts, final double p) {
+    if (p < 0 || p > 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and "
+          + "100: " + p);
+    }
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(counts.length - 1);
+  }
+  
+  /**
+   * @param nanos A non-negative latency.
+   * @return The index of the bucket the latency falls into.
+   */
+  static int bucket(final long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    final int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) 
+        & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+  
+  /**
+   * @param bucket A bucket index.
+   * @return The largest latency that falls into the bucket.
+   */
+  static long upperBound(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final long sub = bucket & (SUB_BUCKETS - 1);
+    if (exponent >= 63) {
+      return Long.MAX_VALUE;
+    }
+    final long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
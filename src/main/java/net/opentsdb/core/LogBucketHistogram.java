@@ -0,0 +1,932 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+import net.opentsdb.core.Histogram;
+import net.opentsdb.core.HistogramAggregation;
+
+/**
+ * A relative error sketch that counts values in logarithmically sized 
+ * buckets, so every percentile is within the configured relative accuracy
+ * of a value that was added, e.g. 1%. Unlike a t-digest, merging two 
+ * sketches with the same accuracy is a plain element-wise addition of the
+ * bucket counts with no sorting or compression, so the cost of a merge 
+ * depends only on the number of buckets and aggregating many sketches is 
+ * cheap. Tail percentiles are less accurate than a t-digest's for the same 
+ * size.
+ * <p>
+ * Positive and negative values are counted in separate dense bucket arrays
+ * and values too close to zero are counted as zero. When the range of 
+ * buckets grows past the maximum, the lowest buckets of each store are 
+ * collapsed into one, giving up accuracy for values of the smallest 
+ * magnitude first. The encoding picks a dense or sparse varint layout for 
+ * each store, whichever is smaller.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 2.4
+ */
+public class LogBucketHistogram implements Histogram {
+
+  /** The default relative accuracy of the percentiles. */
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+  
+  /** The default maximum number of buckets per store. */
+  public static final int DEFAULT_MAX_BUCKETS = 2048;
+  
+  /** The encoding format byte. */
+  static final byte FORMAT = 1;
+  
+  /** Store layouts in the encoding. */
+  static final byte STORE_EMPTY = 0;
+  static final byte STORE_DENSE = 1;
+  static final byte STORE_SPARSE = 2;
+  
+  /** The minimum size of the encoding without the ID. */
+  static final int MIN_ENCODED_SIZE = 1 + 8 + 1 + 1 + 24 + 1 + 1;
+  
+  /** The ID of this histogram in the TSD. */
+  private final int id;
+  
+  /** The relative accuracy, 0 if the sketch was not set. */
+  private double relative_accuracy;
+  
+  /** The ratio between the bounds of a bucket. */
+  private double gamma;
+  
+  /** The natural log of gamma. */
+  private double log_gamma;
+  
+  /** The smallest magnitude counted in a bucket rather than as zero. */
+  private double min_indexable;
+  
+  /** The maximum number of buckets per store. */
+  private int max_buckets;
+  
+  /** The counts of the positive values. */
+  private final Store positive = new Store();
+  
+  /** The counts of the negative values by magnitude. */
+  private final Store negative = new Store();
+  
+  /** The number of values counted as zero. */
+  private long zero_count;
+  
+  /** The sum of the values. */
+  private double sum;
+  
+  /** The smallest value added. */
+  private double min = Double.POSITIVE_INFINITY;
+  
+  /** The largest value added. */
+  private double max = Double.NEGATIVE_INFINITY;
+  
+  /**
+   * Default ctor for decoding.
+   * @param id The ID within the TSD.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255.
+   */
+  public LogBucketHistogram(final int id) {
+    if (id < 0 || id > 255) {
+      throw new IllegalArgumentException("ID must be between 0 and 255");
+    }
+    this.id = id;
+  }
+  
+  /**
+   * Ctor for an empty sketch, e.g. to record values or aggregate into.
+   * @param id The ID within the TSD.
+   * @param relative_accuracy The relative accuracy of the percentiles, 
+   * greater than 0 and less than 1.
+   * @param max_buckets The maximum number of buckets per store, at least 16.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 
+   * 255 or the accuracy or bucket limit were out of range.
+   */
+  public LogBucketHistogram(final int id, 
+                            final double relative_accuracy, 
+                            final int max_buckets) {
+    this(id);
+    setAccuracy(relative_accuracy, max_buckets);
+  }
+  
+  /**
+   * Adds a value.
+   * @param value The value to add.
+   * @throws IllegalArgumentException if the value was NaN or infinite.
+   * @throws IllegalStateException if the sketch was not set.
+   */
+  public void add(final double value) {
+    add(value, 1);
+  }
+  
+  /**
+   * Adds a value a number of times.
+   * @param value The value to add.
+   * @param count The number of times to add it.
+   * @throws IllegalArgumentException if the value was NaN or infinite or 
+   * the count was less than 1.
+   * @throws IllegalStateException if the sketch was not set.
+   */
+  public void add(final double value, final long count) {
+    checkSet();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Value must be finite: " + value);
+    }
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1.");
+    }
+    if (value >= min_indexable) {
+      positive.add(index(value), count, max_buckets);
+    } else if (value <= -min_indexable) {
+      negative.add(index(-value), count, max_buckets);
+    } else {
+      zero_count += count;
+    }
+    sum += value * count;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+  
+  @Override
+  public byte[] histogram(final boolean include_id) {
+    checkSet();
+    final int offset = include_id ? 1 : 0;
+    final byte[] encoded = new byte[offset + 1 + 8 
+        + CompactEncoding.varintSize(max_buckets) 
+        + CompactEncoding.varintSize(zero_count) + 24 
+        + positive.encodedSize() + negative.encodedSize()];
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    if (include_id) {
+      buf.put((byte) id);
+    }
+    buf.put(FORMAT);
+    buf.putDouble(relative_accuracy);
+    CompactEncoding.putVarint(buf, max_buckets);
+    CompactEncoding.putVarint(buf, zero_count);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    buf.putDouble(sum);
+    positive.encode(buf);
+    negative.encode(buf);
+    return encoded;
+  }
+
+  @Override
+  public void fromHistogram(final byte[] raw, final boolean includes_id) {
+    final int offset = includes_id ? 1 : 0;
+    if (raw == null || raw.length < MIN_ENCODED_SIZE + offset) {
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than " + MIN_ENCODED_SIZE + " bytes.");
+    }
+    fromByteBuffer(ByteBuffer.wrap(raw, offset, raw.length - offset));
+  }
+  
+  /**
+   * Reads the sketch from the buffer, replacing this one's contents. The
+   * buffer's position is advanced.
+   * @param buf The buffer positioned at the encoded sketch, after the ID.
+   * @throws IllegalArgumentException if the encoding was not recognized or
+   * invalid.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  public void fromByteBuffer(final ByteBuffer buf) {
+    relative_accuracy = 0;
+    positive.clear();
+    negative.clear();
+    final byte format = buf.get();
+    if (format != FORMAT) {
+      throw new IllegalArgumentException("Unrecognized log bucket format: " 
+          + format);
+    }
+    final double accuracy = buf.getDouble();
+    final long buckets = CompactEncoding.getVarint(buf);
+    if (buckets > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid bucket limit: " + buckets);
+    }
+    setAccuracy(accuracy, (int) buckets);
+    zero_count = CompactEncoding.getVarint(buf);
+    min = buf.getDouble();
+    max = buf.getDouble();
+    sum = buf.getDouble();
+    try {
+      positive.decode(buf, max_buckets);
+      negative.decode(buf, max_buckets);
+    } catch (RuntimeException e) {
+      relative_accuracy = 0;
+      positive.clear();
+      negative.clear();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the value at the given percentile, within the relative accuracy
+   * of a value that was added. The 0th and 100th percentiles are the exact
+   * min and max.
+   * @param p The percentile from 0 to 100.
+   * @return The value or NaN if the sketch is empty.
+   * @throws IllegalArgumentException if the percentile was not within 0 and
+   * 100.
+   */
+  @Override
+  public double percentile(final double p) {
+    checkSet();
+    if (p < 0 || p > 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and "
+          + "100, got " + p);
+    }
+    final long count = getCount();
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (p == 0) {
+      return min;
+    }
+    if (p == 100) {
+      return max;
+    }
+    final double rank = p / 100 * (count - 1);
+    long seen = 0;
+    double value = max;
+    boolean found = false;
+    for (int i = negative.max_index; i >= negative.min_index && 
+        negative.counts != null; i--) {
+      seen += negative.get(i);
+      if (seen > rank) {
+        value = -value(i);
+        found = true;
+        break;
+      }
+    }
+    if (!found) {
+      seen += zero_count;
+      if (seen > rank) {
+        value = 0;
+        found = true;
+      }
+    }
+    for (int i = positive.min_index; !found && i <= positive.max_index && 
+        positive.counts != null; i++) {
+      seen += positive.get(i);
+      if (seen > rank) {
+        value = value(i);
+        found = true;
+      }
+    }
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Computes the given percentiles with a single walk over the buckets. The
+   * results are the same as calling {@link #percentile(double)} for each.
+   * @param p The percentiles from 0 to 100, in any order though sorted input
+   * avoids sorting.
+   * @return The values in the same order as the percentiles.
+   * @throws IllegalArgumentException if a percentile was not within 0 and
+   * 100.
+   */
+  @Override
+  public List<Double> percentiles(final List<Double> p) {
+    checkSet();
+    final double[] ps = new double[p.size()];
+    for (int i = 0; i < ps.length; i++) {
+      ps[i] = p.get(i);
+      if (ps[i] < 0 || ps[i] > 100) {
+        throw new IllegalArgumentException("Percentile must be between 0 "
+            + "and 100, got " + ps[i]);
+      }
+    }
+    final double[] results = new double[ps.length];
+    final long count = getCount();
+    if (count == 0) {
+      Arrays.fill(results, Double.NaN);
+    } else {
+      final int[] order = CentroidIndex.sortedOrder(ps);
+      long seen = 0;
+      int next = 0;
+      for (int i = negative.max_index; next < ps.length && 
+          i >= negative.min_index && negative.counts != null; i--) {
+        seen += negative.get(i);
+        next = resolve(ps, order, results, next, count, seen, -value(i));
+      }
+      seen += zero_count;
+      next = resolve(ps, order, results, next, count, seen, 0);
+      for (int i = positive.min_index; next < ps.length && 
+          i <= positive.max_index && positive.counts != null; i++) {
+        seen += positive.get(i);
+        next = resolve(ps, order, results, next, count, seen, value(i));
+      }
+      // the 100th percentile and any rank past the last bucket.
+      for (; next < ps.length; next++) {
+        results[order == null ? next : order[next]] = max;
+      }
+    }
+    final List<Double> percentiles = Lists.newArrayListWithCapacity(ps.length);
+    for (final double result : results) {
+      percentiles.add(result);
+    }
+    return percentiles;
+  }
+  
+  /** @return The number of values added. */
+  public long getCount() {
+    checkSet();
+    return positive.total + negative.total + zero_count;
+  }
+  
+  /** @return The exact sum of the values. */
+  public double getSum() {
+    checkSet();
+    return sum;
+  }
+  
+  /** @return The smallest value added, positive infinity if empty. */
+  public double getMin() {
+    checkSet();
+    return min;
+  }
+  
+  /** @return The largest value added, negative infinity if empty. */
+  public double getMax() {
+    checkSet();
+    return max;
+  }
+  
+  /** @return The mean of the values or NaN if the sketch is empty. */
+  public double getMean() {
+    final long count = getCount();
+    return count == 0 ? Double.NaN : sum / count;
+  }
+  
+  /** @return The relative accuracy of the percentiles. */
+  public double getRelativeAccuracy() {
+    return relative_accuracy;
+  }
+  
+  /** @return The maximum number of buckets per store. */
+  public int getMaxBuckets() {
+    return max_buckets;
+  }
+  
+  /** @return The number of non-empty buckets, excluding zero. */
+  public int bucketCount() {
+    return positive.nonEmpty() + negative.nonEmpty();
+  }
+
+  /**
+   * Exports the sketch as a bucketed histogram over {@link 
+   * HistogramBuckets#DEFAULT_BUCKETS} buckets between the min and max, log 
+   * scaled if all values are positive. See {@link #getHistogram(double[])}.
+   * @return A sorted map of bucket upper bounds to counts, empty if the 
+   * sketch is empty.
+   */
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Map getHistogram() {
+    if (getCount() == 0) {
+      return new TreeMap<Double, Long>();
+    }
+    return getHistogram(HistogramBuckets.defaultBoundaries(min, max));
+  }
+  
+  /**
+   * Exports the sketch as a bucketed histogram, e.g. for a heatmap. See 
+   * {@link #bucketCounts(double[])}.
+   * @param boundaries The bucket boundaries in ascending order.
+   * @return A sorted map of each bucket's upper bound, positive infinity 
+   * for the last, to the number of values in the bucket.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public Map<Double, Long> getHistogram(final double[] boundaries) {
+    return HistogramBuckets.toMap(boundaries, bucketCounts(boundaries));
+  }
+  
+  /**
+   * Counts the values in each bucket with a single ascending walk over the 
+   * sketch's buckets and the boundaries. Each sketch bucket is counted by 
+   * its representative value, clamped to the min and max, so counts near a
+   * boundary are within the relative accuracy.
+   * @param boundaries The bucket boundaries in ascending order.
+   * @return An array one longer than the boundaries: the count at or below
+   * the first boundary, then the count above each boundary and at or below
+   * the next, then the count above the last.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public double[] bucketCounts(final double[] boundaries) {
+    checkSet();
+    HistogramBuckets.checkBoundaries(boundaries);
+    final double[] counts = new double[boundaries.length + 1];
+    int slot = 0;
+    for (int i = negative.max_index; i >= negative.min_index && 
+        negative.counts != null; i--) {
+      slot = count(boundaries, counts, slot, -value(i), negative.get(i));
+    }
+    slot = count(boundaries, counts, slot, 0, zero_count);
+    for (int i = positive.min_index; i <= positive.max_index && 
+        positive.counts != null; i++) {
+      slot = count(boundaries, counts, slot, value(i), positive.get(i));
+    }
+    return counts;
+  }
+
+  /**
+   * Returns a copy of the bucket arrays. No encoding is involved.
+   * @return The clone.
+   */
+  @Override
+  public Histogram clone() {
+    final LogBucketHistogram clone = new LogBucketHistogram(id);
+    if (relative_accuracy > 0) {
+      clone.setAccuracy(relative_accuracy, max_buckets);
+    }
+    clone.positive.copy(positive);
+    clone.negative.copy(negative);
+    clone.zero_count = zero_count;
+    clone.sum = sum;
+    clone.min = min;
+    clone.max = max;
+    return clone;
+  }
+
+  @Override
+  public int getId() {
+    return id;
+  }
+
+  @Override
+  public void aggregate(final Histogram histo, 
+                        final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Function " + func 
+          + " is not supported yet."); 
+    }
+    checkSet();
+    checkType(histo);
+    merge((LogBucketHistogram) histo);
+  }
+
+  @Override
+  public void aggregate(final List<Histogram> histos, 
+                        final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Function " + func 
+          + " is not supported yet."); 
+    }
+    checkSet();
+    for (final Histogram histogram : histos) {
+      checkType(histogram);
+    }
+    for (final Histogram histogram : histos) {
+      merge((LogBucketHistogram) histogram);
+    }
+  }
+  
+  /**
+   * @param value A positive value of at least the minimum indexable value.
+   * @return The index of the bucket counting the value.
+   */
+  int index(final double value) {
+    return (int) Math.ceil(Math.log(value) / log_gamma);
+  }
+  
+  /**
+   * @param index A bucket index.
+   * @return The representative value of the bucket, within the relative 
+   * accuracy of every value in it.
+   */
+  double value(final int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+  
+  /**
+   * Adds the counts of another sketch with the same accuracy.
+   * @param other The sketch to add.
+   * @throws IllegalArgumentException if the accuracy differed.
+   */
+  private void merge(final LogBucketHistogram other) {
+    other.checkSet();
+    if (other.relative_accuracy != relative_accuracy) {
+      throw new IllegalArgumentException("Cannot merge a sketch with "
+          + "relative accuracy " + other.relative_accuracy + " into one with " 
+          + relative_accuracy);
+    }
+    positive.add(other.positive, max_buckets);
+    negative.add(other.negative, max_buckets);
+    zero_count += other.zero_count;
+    sum += other.sum;
+    if (other.min < min) {
+      min = other.min;
+    }
+    if (other.max > max) {
+      max = other.max;
+    }
+  }
+  
+  /**
+   * Sets the accuracy and resets the counts.
+   * @param relative_accuracy The relative accuracy.
+   * @param max_buckets The maximum number of buckets per store.
+   * @throws IllegalArgumentException if either was out of range.
+   */
+  private void setAccuracy(final double relative_accuracy, 
+                           final int max_buckets) {
+    if (!(relative_accuracy > 0 && relative_accuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be greater "
+          + "than 0 and less than 1: " + relative_accuracy);
+    }
+    if (max_buckets < 16) {
+      throw new IllegalArgumentException("Max buckets must be at least 16: " 
+          + max_buckets);
+    }
+    this.relative_accuracy = relative_accuracy;
+    this.max_buckets = max_buckets;
+    gamma = (1 + relative_accuracy) / (1 - relative_accuracy);
+    log_gamma = Math.log(gamma);
+    min_indexable = Double.MIN_NORMAL * gamma;
+    positive.clear();
+    negative.clear();
+    zero_count = 0;
+    sum = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+  
+  /**
+   * Adds a sketch bucket's count to the export bucket holding its value. 
+   * Values must be passed in ascending order.
+   * @param boundaries The export boundaries.
+   * @param counts The export counts.
+   * @param slot The export bucket of the previous value.
+   * @param value The representative value of the sketch bucket.
+   * @param count The count of the sketch bucket.
+   * @return The export bucket of the value.
+   */
+  private int count(final double[] boundaries, 
+                    final double[] counts, 
+                    int slot, 
+                    final double value, 
+                    final long count) {
+    if (count == 0) {
+      return slot;
+    }
+    final double clamped = Math.max(min, Math.min(max, value));
+    while (slot < boundaries.length && clamped > boundaries[slot]) {
+      slot++;
+    }
+    counts[slot] += count;
+    return slot;
+  }
+  
+  /**
+   * Resolves the pending percentiles whose rank falls within the values
+   * seen so far.
+   * @param ps The percentiles.
+   * @param order The ascending order of the percentiles or null if sorted.
+   * @param results The results to fill in.
+   * @param next The position in the order of the first pending percentile.
+   * @param count The total count.
+   * @param seen The count of the buckets walked so far.
+   * @param value The representative value of the last bucket walked.
+   * @return The position of the first percentile still pending.
+   */
+  private int resolve(final double[] ps, 
+                      final int[] order, 
+                      final double[] results, 
+                      int next, 
+                      final long count, 
+                      final long seen, 
+                      final double value) {
+    for (; next < ps.length; next++) {
+      final int idx = order == null ? next : order[next];
+      if (ps[idx] == 0) {
+        results[idx] = min;
+      } else if (ps[idx] < 100 && ps[idx] / 100 * (count - 1) < seen) {
+        results[idx] = Math.max(min, Math.min(max, value));
+      } else {
+        break;
+      }
+    }
+    return next;
+  }
+  
+  /**
+   * @throws IllegalStateException if the sketch was not set.
+   */
+  private void checkSet() {
+    if (relative_accuracy <= 0) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+  }
+  
+  /**
+   * @param histo The histogram to check.
+   * @throws IllegalArgumentException if the histogram is not a log bucket
+   * sketch.
+   */
+  private static void checkType(final Histogram histo) {
+    if (!(histo instanceof LogBucketHistogram)) {
+      throw new IllegalArgumentException("Incoming histogram was not of the "
+          + "same type: " + (histo == null ? null : histo.getClass()));
+    }
+  }
+  
+  /**
+   * A dense array of bucket counts covering a contiguous range of indices. 
+   * Package private for tests.
+   */
+  static final class Store {
+    /** The counts, null until the first value. */
+    private long[] counts;
+    
+    /** The bucket index of the first array entry. */
+    private int offset;
+    
+    /** The lowest non-empty index, only valid if counts is not null. */
+    private int min_index;
+    
+    /** The highest non-empty index, only valid if counts is not null. */
+    private int max_index;
+    
+    /** The sum of the counts. */
+    private long total;
+    
+    /**
+     * Adds to a bucket, collapsing the lowest buckets if the range would 
+     * exceed the limit.
+     * @param index The bucket index.
+     * @param count The count to add.
+     * @param max_buckets The maximum range of buckets.
+     */
+    void add(int index, final long count, final int max_buckets) {
+      if (counts == null) {
+        counts = new long[Math.min(64, max_buckets)];
+        offset = index - counts.length / 2;
+        min_index = index;
+        max_index = index;
+      } else if (index < max_index - max_buckets + 1) {
+        // below the range that's kept, count in the lowest bucket.
+        index = max_index - max_buckets + 1;
+      } else if (index - max_buckets + 1 > min_index) {
+        collapse(index - max_buckets + 1);
+      }
+      ensure(index);
+      counts[index - offset] += count;
+      total += count;
+    }
+    
+    /**
+     * Adds every bucket of another store. When the combined range fits 
+     * within the limit this is an element-wise addition.
+     * @param other The store to add.
+     * @param max_buckets The maximum range of buckets.
+     */
+    void add(final Store other, final int max_buckets) {
+      if (other.counts == null) {
+        return;
+      }
+      if (counts != null && 
+          Math.max(max_index, other.max_index) - 
+          Math.min(min_index, other.min_index) < max_buckets) {
+        ensure(other.min_index);
+        ensure(other.max_index);
+        final int shift = other.offset - offset;
+        for (int i = other.min_index - other.offset; 
+             i <= other.max_index - other.offset; i++) {
+          counts[i + shift] += other.counts[i];
+        }
+        total += other.total;
+        return;
+      }
+      for (int i = other.min_index; i <= other.max_index; i++) {
+        final long count = other.get(i);
+        if (count > 0) {
+          add(i, count, max_buckets);
+        }
+      }
+    }
+    
+    /**
+     * @param index A bucket index.
+     * @return The count of the bucket.
+     */
+    long get(final int index) {
+      if (counts == null || index < offset || 
+          index >= offset + counts.length) {
+        return 0;
+      }
+      return counts[index - offset];
+    }
+    
+    /** @return The number of non-empty buckets. */
+    int nonEmpty() {
+      int buckets = 0;
+      for (int i = min_index; counts != null && i <= max_index; i++) {
+        if (counts[i - offset] > 0) {
+          buckets++;
+        }
+      }
+      return buckets;
+    }
+    
+    /** Removes all counts. */
+    void clear() {
+      counts = null;
+      total = 0;
+    }
+    
+    /**
+     * Replaces the counts with a copy of another store's.
+     * @param other The store to copy.
+     */
+    void copy(final Store other) {
+      counts = other.counts == null ? null : 
+        Arrays.copyOf(other.counts, other.counts.length);
+      offset = other.offset;
+      min_index = other.min_index;
+      max_index = other.max_index;
+      total = other.total;
+    }
+    
+    /** @return The size of the smaller of the dense and sparse encodings. */
+    int encodedSize() {
+      if (counts == null) {
+        return 1;
+      }
+      return 1 + Math.min(denseSize(), sparseSize());
+    }
+    
+    /**
+     * Writes the store in the smaller of the dense and sparse layouts.
+     * @param buf The buffer to write to.
+     */
+    void encode(final ByteBuffer buf) {
+      if (counts == null) {
+        buf.put(STORE_EMPTY);
+        return;
+      }
+      if (denseSize() <= sparseSize()) {
+        buf.put(STORE_DENSE);
+        CompactEncoding.putVarint(buf, CompactEncoding.zigZag(min_index));
+        CompactEncoding.putVarint(buf, max_index - min_index + 1);
+        for (int i = min_index; i <= max_index; i++) {
+          CompactEncoding.putVarint(buf, counts[i - offset]);
+        }
+        return;
+      }
+      buf.put(STORE_SPARSE);
+      CompactEncoding.putVarint(buf, CompactEncoding.zigZag(min_index));
+      CompactEncoding.putVarint(buf, nonEmpty());
+      int previous = min_index;
+      for (int i = min_index; i <= max_index; i++) {
+        final long count = counts[i - offset];
+        if (count > 0) {
+          CompactEncoding.putVarint(buf, i - previous);
+          CompactEncoding.putVarint(buf, count);
+          previous = i;
+        }
+      }
+    }
+    
+    /**
+     * Reads a store written by {@link #encode(ByteBuffer)}.
+     * @param buf The buffer to read from.
+     * @param max_buckets The maximum range of buckets.
+     * @throws IllegalArgumentException if the layout was unknown or the 
+     * range exceeded the limit.
+     */
+    void decode(final ByteBuffer buf, final int max_buckets) {
+      clear();
+      final byte layout = buf.get();
+      if (layout == STORE_EMPTY) {
+        return;
+      }
+      if (layout != STORE_DENSE && layout != STORE_SPARSE) {
+        throw new IllegalArgumentException("Unrecognized store layout: " 
+            + layout);
+      }
+      final long first = CompactEncoding.unZigZag(
+          CompactEncoding.getVarint(buf));
+      final long length = CompactEncoding.getVarint(buf);
+      if (first < Integer.MIN_VALUE || first > Integer.MAX_VALUE || 
+          length < 1 || length > max_buckets) {
+        throw new IllegalArgumentException("Invalid store range.");
+      }
+      int index = (int) first;
+      for (long i = 0; i < length; i++) {
+        if (layout == STORE_SPARSE) {
+          final long delta = CompactEncoding.getVarint(buf);
+          if (delta >= max_buckets || index + delta - first >= max_buckets) {
+            throw new IllegalArgumentException("Invalid store range.");
+          }
+          index += (int) delta;
+        }
+        final long count = CompactEncoding.getVarint(buf);
+        if (count > 0) {
+          add(index, count, max_buckets);
+        }
+        if (layout == STORE_DENSE) {
+          index++;
+        }
+      }
+    }
+    
+    /** @return The size of the dense layout after the layout byte. */
+    private int denseSize() {
+      int size = CompactEncoding.varintSize(CompactEncoding.zigZag(min_index))
+          + CompactEncoding.varintSize(max_index - min_index + 1);
+      for (int i = min_index; i <= max_index; i++) {
+        size += CompactEncoding.varintSize(counts[i - offset]);
+      }
+      return size;
+    }
+    
+    /** @return The size of the sparse layout after the layout byte. */
+    private int sparseSize() {
+      int size = CompactEncoding.varintSize(CompactEncoding.zigZag(min_index))
+          + CompactEncoding.varintSize(nonEmpty());
+      int previous = min_index;
+      for (int i = min_index; i <= max_index; i++) {
+        final long count = counts[i - offset];
+        if (count > 0) {
+          size += CompactEncoding.varintSize(i - previous) 
+              + CompactEncoding.varintSize(count);
+          previous = i;
+        }
+      }
+      return size;
+    }
+    
+    /**
+     * Grows the array to cover the index.
+     * @param index The bucket index.
+     */
+    private void ensure(final int index) {
+      if (index < min_index) {
+        min_index = index;
+      }
+      if (index > max_index) {
+        max_index = index;
+      }
+      if (min_index >= offset && max_index < offset + counts.length) {
+        return;
+      }
+      final int needed = max_index - min_index + 1;
+      final int length = Math.max(needed + needed / 2, counts.length);
+      final long[] grown = new long[length];
+      final int new_offset = min_index - (length - needed) / 2;
+      final int low = Math.max(offset, new_offset);
+      final int high = Math.min(offset + counts.length, new_offset + length);
+      if (high > low) {
+        System.arraycopy(counts, low - offset, grown, low - new_offset, 
+            high - low);
+      }
+      counts = grown;
+      offset = new_offset;
+    }
+    
+    /**
+     * Folds all buckets below the new minimum into it.
+     * @param new_min The lowest index to keep.
+     */
+    private void collapse(final int new_min) {
+      long folded = 0;
+      final int end = Math.min(new_min - 1, max_index);
+      for (int i = min_index; i <= end; i++) {
+        folded += counts[i - offset];
+        counts[i - offset] = 0;
+      }
+      if (new_min > max_index) {
+        // everything collapsed, start over around the new minimum.
+        offset = new_min - counts.length / 2;
+        max_index = new_min;
+      }
+      min_index = new_min;
+      ensure(new_min);
+      counts[new_min - offset] += folded;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+
+import net.opentsdb.core.Histogram;
+import net.opentsdb.core.HistogramDataPointCodec;
+import net.opentsdb.utils.Config;
+
+/**
+ * Plugin that handles encoding/decoding {@link LogBucketHistogram} sketches,
+ * a relative error alternative to t-digests for metrics with a high fan-in
+ * where merge cost matters more than tail accuracy. Configure it for its 
+ * own ID alongside the t-digest codecs.
+ * 
+ * @since 2.4
+ */
+public class LogBucketHistogramCodec extends HistogramDataPointCodec {
+
+  /** The prefix for all of the codec's configuration properties. */
+  public static final String CONFIG_PREFIX = 
+      "tsd.core.histograms.logbucket.";
+  
+  /** The relative accuracy of new sketches. */
+  private double relative_accuracy = 
+      LogBucketHistogram.DEFAULT_RELATIVE_ACCURACY;
+  
+  /** The maximum number of buckets per store of new sketches. */
+  private int max_buckets = LogBucketHistogram.DEFAULT_MAX_BUCKETS;
+  
+  @Override
+  public Histogram decode(final byte[] raw_data, final boolean includes_id) {
+    final LogBucketHistogram histogram = new LogBucketHistogram(id);
+    histogram.fromHistogram(raw_data, includes_id);
+    return histogram;
+  }
+  
+  /**
+   * Decodes the remaining bytes of the buffer without copying them first. 
+   * The buffer's position is not modified.
+   * @param buf The buffer to read from.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @return The decoded histogram.
+   * @throws IllegalArgumentException if the buffer was null, too short or 
+   * invalid.
+   */
+  public Histogram decodeBuffer(final ByteBuffer buf, 
+                                final boolean includes_id) {
+    final int offset = includes_id ? 1 : 0;
+    if (buf == null || 
+        buf.remaining() < LogBucketHistogram.MIN_ENCODED_SIZE + offset) {
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than " + LogBucketHistogram.MIN_ENCODED_SIZE + " bytes.");
+    }
+    final LogBucketHistogram histogram = new LogBucketHistogram(id);
+    final ByteBuffer view = buf.duplicate();
+    view.position(view.position() + offset);
+    histogram.fromByteBuffer(view);
+    return histogram;
+  }
+
+  @Override
+  public byte[] encode(final Histogram data_point, final boolean include_id) {
+    if (!(data_point instanceof LogBucketHistogram)) {
+      throw new IllegalArgumentException("Histogram was not a log bucket "
+          + "sketch: " + (data_point == null ? null : data_point.getClass()));
+    }
+    return data_point.histogram(include_id);
+  }
+  
+  /**
+   * Returns an empty sketch with this codec's ID and settings, e.g. for 
+   * clients to record into.
+   * @return A new sketch.
+   */
+  public LogBucketHistogram newHistogram() {
+    return new LogBucketHistogram(id, relative_accuracy, max_buckets);
+  }
+  
+  /**
+   * Applies the settings found in the TSD config, prefixed with 
+   * {@link #CONFIG_PREFIX}: {@code relative_accuracy} and 
+   * {@code max_buckets}. See {@link #setAccuracy(double, int)}.
+   * @param config A non-null config.
+   * @throws IllegalArgumentException if the config was null or a value was
+   * invalid.
+   */
+  public void configure(final Config config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config cannot be null.");
+    }
+    try {
+      setAccuracy(config.hasProperty(CONFIG_PREFIX + "relative_accuracy") 
+            ? config.getDouble(CONFIG_PREFIX + "relative_accuracy") 
+            : relative_accuracy,
+          config.hasProperty(CONFIG_PREFIX + "max_buckets") 
+            ? config.getInt(CONFIG_PREFIX + "max_buckets") 
+            : max_buckets);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid log bucket codec config", 
+          e);
+    }
+  }
+  
+  /**
+   * Sets the accuracy of sketches created by {@link #newHistogram()}. 
+   * Decoded sketches keep the accuracy they were encoded with and only 
+   * sketches with the same accuracy can be merged.
+   * @param relative_accuracy The relative accuracy, greater than 0 and less
+   * than 1.
+   * @param max_buckets The maximum number of buckets per store, at least 16.
+   * @throws IllegalArgumentException if either was out of range.
+   */
+  public void setAccuracy(final double relative_accuracy, 
+                          final int max_buckets) {
+    // validates both.
+    new LogBucketHistogram(0, relative_accuracy, max_buckets);
+    this.relative_accuracy = relative_accuracy;
+    this.max_buckets = max_buckets;
+  }
+  
+  /** @return The relative accuracy of new sketches. */
+  public double getRelativeAccuracy() {
+    return relative_accuracy;
+  }
+  
+  /** @return The maximum number of buckets per store of new sketches. */
+  public int getMaxBuckets() {
+    return max_buckets;
+  }
+}
@@ -12,11 +12,16 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.google.common.collect.Lists;
+import com.tdunning.math.stats.Centroid;
 import com.tdunning.math.stats.MergingDigest;
 import com.tdunning.math.stats.TDigest;
 
@@ -29,6 +34,12 @@ import net.opentsdb.core.HistogramAggregation;
  * @since 2.4
  */
 public class MergingTDigestImplementation implements Histogram {
+  
+  /** The default minimum number of histograms to aggregate in parallel. */
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+  
+  /** The minimum number of histograms merged by a single parallel task. */
+  static final int MIN_PARALLEL_LEAF = 128;
 
   /** The ID of this histogram in the TSD. */
   private final int id;
@@ -36,6 +47,36 @@ public class MergingTDigestImplementation implements Histogram {
   /** The digest for this data point. */
   private TDigest digest;
   
+  /** Whether or not the digest is shared with other histograms or a cache
+   * and must be copied before modifying it. */
+  private boolean shared;
+  
+  /** The raw encoded digest, without the ID, when decoding lazily. Null once
+   * the digest has been materialized. */
+  private byte[] raw;
+  
+  /** The offset of the encoded digest in {@link #raw}. */
+  private int raw_offset;
+  
+  /** The length of the encoded digest in {@link #raw}. */
+  private int raw_length;
+  
+  /** A cached snapshot of the centroids and their cumulative weights for
+   * repeated lookups. Reset whenever the digest may have changed. */
+  private CentroidIndex index;
+  
+  /** An optional pool used to aggregate large lists in parallel. */
+  private ForkJoinPool pool;
+  
+  /** The minimum number of histograms to aggregate in parallel. */
+  private int parallel_threshold = DEFAULT_PARALLEL_THRESHOLD;
+  
+  /** The heap budget for aggregating lists, 0 for no limit. */
+  private long aggregation_max_bytes;
+  
+  /** An optional directory for spilling aggregations. */
+  private File spill_dir;
+  
   /**
    * Default ctor.
    * @param id The ID within the TSD.
@@ -49,22 +90,86 @@ public class MergingTDigestImplementation implements Histogram {
   }
   
   public byte[] histogram(final boolean include_id) {
+    if (digest == null && raw != null) {
+      return rawHistogram(include_id);
+    }
     if (digest == null) {
       throw new IllegalStateException("The sketch has not been set yet.");
     }
-    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
-    digest.asSmallBytes(buf);
-    final byte[] encoded = buf.array();
+    final int offset = include_id ? 1 : 0;
+    final byte[] encoded = new byte[digest.smallByteSize() + offset];
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
     if (include_id) {
-      final byte[] with_id = new byte[encoded.length + 1];
-      with_id[0] = (byte) id;
-      System.arraycopy(encoded, 0, with_id, 1, encoded.length);
-      return with_id;
+      buf.put((byte) id);
     }
+    digest.asSmallBytes(buf);
     return encoded;
   }
+  
+  /**
+   * Writes the encoded digest into the given buffer at its current position,
+   * advancing the position. Useful for reusing a single buffer across many
+   * data points.
+   * @param buf A non-null buffer to write to.
+   * @param include_id Whether or not to prefix the ID.
+   * @return The number of bytes written.
+   * @throws IllegalStateException if the digest was not set.
+   * @throws java.nio.BufferOverflowException if the buffer was too small. Use
+   * {@link #encodedSize(boolean)} to size it.
+   */
+  public int histogram(final ByteBuffer buf, final boolean include_id) {
+    if (digest == null && raw != null) {
+      final int start = buf.position();
+      if (include_id) {
+        buf.put((byte) id);
+      }
+      buf.put(raw, raw_offset, raw_length);
+      return buf.position() - start;
+    }
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    final int start = buf.position();
+    if (include_id) {
+      buf.put((byte) id);
+    }
+    digest.asSmallBytes(buf);
+    return buf.position() - start;
+  }
+  
+  /**
+   * @param include_id Whether or not the ID would be prefixed.
+   * @return The number of bytes {@link #histogram(boolean)} would return.
+   * @throws IllegalStateException if the digest was not set.
+   */
+  public int encodedSize(final boolean include_id) {
+    if (digest == null && raw != null) {
+      return raw_length + (include_id ? 1 : 0);
+    }
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    return digest.smallByteSize() + (include_id ? 1 : 0);
+  }
 
   public void fromHistogram(final byte[] raw, final boolean includes_id) {
+    fromHistogram(raw, includes_id, false);
+  }
+  
+  /**
+   * Sets the digest from the encoded bytes. When decoding lazily the bytes 
+   * are kept as is (and must not be modified by the caller afterwards) and 
+   * the digest is only deserialized the first time it is read. Until then,
+   * {@link #histogram(boolean)} returns the original bytes without 
+   * re-encoding.
+   * @param raw The encoded digest, optionally prefixed with the ID.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @param lazy Whether or not to defer deserialization.
+   * @throws IllegalArgumentException if the data was null or too short.
+   */
+  public void fromHistogram(final byte[] raw, 
+                            final boolean includes_id, 
+                            final boolean lazy) {
     if (raw == null || raw.length < 8) {
       throw new IllegalArgumentException("Raw data cannot be null or less "
           + "than 8 bytes.");
@@ -72,38 +177,262 @@ public class MergingTDigestImplementation implements Histogram {
     if (includes_id && raw.length < 9) {
       throw new IllegalArgumentException("Must have more than 1 bytes.");
     }
-    final byte[] encoded;
-    if (includes_id) {
-      encoded = new byte[raw.length - 1];
-      System.arraycopy(raw, 1, encoded, 0, raw.length - 1);
+    final int offset = includes_id ? 1 : 0;
+    setRaw(raw, offset, raw.length - offset, lazy);
+  }
+  
+  /**
+   * Sets the digest from the remaining bytes of the buffer without copying 
+   * them first. The buffer's position is not modified. When decoding lazily
+   * from a buffer backed by an array, the array is referenced and must not be
+   * modified afterwards.
+   * @param buf The buffer to read from, optionally starting with the ID.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @param lazy Whether or not to defer deserialization.
+   * @throws IllegalArgumentException if the buffer was null or too short.
+   */
+  public void fromByteBuffer(final ByteBuffer buf, 
+                             final boolean includes_id, 
+                             final boolean lazy) {
+    if (buf == null || buf.remaining() < 8) {
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    if (includes_id && buf.remaining() < 9) {
+      throw new IllegalArgumentException("Must have more than 1 bytes.");
+    }
+    final int offset = includes_id ? 1 : 0;
+    if (buf.hasArray()) {
+      setRaw(buf.array(), buf.arrayOffset() + buf.position() + offset, 
+          buf.remaining() - offset, lazy);
+    } else if (lazy) {
+      final byte[] encoded = new byte[buf.remaining() - offset];
+      final ByteBuffer view = buf.duplicate();
+      view.position(view.position() + offset);
+      view.get(encoded);
+      setRaw(encoded, 0, encoded.length, true);
     } else {
-      encoded = raw;
+      final ByteBuffer view = buf.duplicate();
+      view.position(view.position() + offset);
+      digest = decode(view);
+      raw = null;
+      index = null;
+      shared = false;
     }
-    final ByteBuffer buf = ByteBuffer.wrap(encoded);
-    digest = MergingDigest.fromBytes(buf);
+  }
+  
+  /**
+   * Either stores the slice for lazy decoding or deserializes it in place.
+   * @param raw The source array.
+   * @param offset The offset of the encoded digest.
+   * @param length The length of the encoded digest.
+   * @param lazy Whether or not to defer deserialization.
+   */
+  private void setRaw(final byte[] raw, 
+                      final int offset, 
+                      final int length, 
+                      final boolean lazy) {
+    if (lazy) {
+      this.raw = raw;
+      raw_offset = offset;
+      raw_length = length;
+      digest = null;
+      index = null;
+      shared = false;
+      return;
+    }
+    this.raw = null;
+    index = null;
+    shared = false;
+    digest = decode(ByteBuffer.wrap(raw, offset, length));
   }
 
   public double percentile(double p) {
-    return digest.quantile(p / 100);
+    if ((p == 0 || p == 100) && digest == null && raw != null &&
+        CompactEncoding.headerCentroids(raw, raw_offset) > 1) {
+      // the extremes are always the min and max with more than one centroid.
+      return p == 0 ? getMin() : getMax();
+    }
+    return index().quantile(p / 100);
   }
 
   public List<Double> percentiles(List<Double> p) {
+    final double[] ps = new double[p.size()];
+    for (int i = 0; i < ps.length; i++) {
+      ps[i] = p.get(i);
+    }
+    final double[] results = percentiles(ps);
     final List<Double> percentiles = Lists.newArrayListWithCapacity(p.size());
-    
-    for (int i = 0; i < p.size(); i++) {
-      percentiles.add(digest.quantile(p.get(i) / 100));
+    for (int i = 0; i < results.length; i++) {
+      percentiles.add(results[i]);
     }
     return percentiles;
   }
+  
+  /**
+   * Computes all of the percentiles with a single pass over the centroids.
+   * The percentiles are sorted internally if needed (sorted input is 
+   * cheapest) and the results match {@link #percentile(double)}.
+   * @param p The percentiles from 0 to 100.
+   * @return The values in the same order as the percentiles.
+   * @throws IllegalArgumentException if a percentile was not within 0 and 
+   * 100.
+   */
+  public double[] percentiles(final double[] p) {
+    final double[] qs = new double[p.length];
+    for (int i = 0; i < p.length; i++) {
+      qs[i] = p[i] / 100;
+    }
+    final double[] results = new double[p.length];
+    index().quantiles(qs, results);
+    return results;
+  }
+  
+  /**
+   * Estimates the fraction of values less than or equal to the given value,
+   * e.g. the share of requests served within an SLO threshold. Lookups use
+   * a binary search over cached cumulative weights.
+   * @param x The value to look up.
+   * @return A fraction from 0 to 1 or NaN if the digest is empty.
+   */
+  public double cdf(final double x) {
+    return index().cdf(x);
+  }
 
+  /** @return The smallest value added to the digest. Read from the header 
+   * without deserializing the digest if it was decoded lazily. */
+  public double getMin() {
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null) {
+      return CompactEncoding.headerMin(raw, raw_offset);
+    }
+    return checkedDigest().getMin();
+  }
+  
+  /** @return The largest value added to the digest. Read from the header 
+   * without deserializing the digest if it was decoded lazily. */
+  public double getMax() {
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null) {
+      return CompactEncoding.headerMax(raw, raw_offset);
+    }
+    return checkedDigest().getMax();
+  }
+  
+  /** @return The number of values added to the digest. Read from the header
+   * without deserializing the digest if it was decoded lazily from an 
+   * encoding with the summary header. */
+  public long getCount() {
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null && 
+        CompactEncoding.hasSummary(raw[raw_offset])) {
+      return (long) CompactEncoding.headerCount(raw, raw_offset);
+    }
+    return checkedDigest().size();
+  }
+  
+  /** @return The sum of the values added to the digest, estimated from the
+   * centroids. Read from the header without deserializing the digest if it 
+   * was decoded lazily from an encoding with the summary header. */
+  public double getSum() {
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null && 
+        CompactEncoding.hasSummary(raw[raw_offset])) {
+      return CompactEncoding.headerSum(raw, raw_offset);
+    }
+    double sum = 0;
+    for (final Centroid centroid : checkedDigest().centroids()) {
+      sum += centroid.mean() * centroid.count();
+    }
+    return sum;
+  }
+  
+  /** @return The mean of the values added to the digest or NaN if it's 
+   * empty. See {@link #getSum()}. */
+  public double getMean() {
+    final long count = getCount();
+    return count == 0 ? Double.NaN : getSum() / count;
+  }
+
+  /**
+   * Exports the digest as a bucketed histogram over {@link 
+   * HistogramBuckets#DEFAULT_BUCKETS} buckets between the min and max, log 
+   * scaled if all values are positive. See {@link #getHistogram(double[])}.
+   * @return A sorted map of bucket upper bounds to counts, empty if the 
+   * digest is empty.
+   */
+  @SuppressWarnings("rawtypes")
   public Map getHistogram() {
-    throw new UnsupportedOperationException("Not supported yet.");
+    if (getCount() == 0) {
+      return new TreeMap<Double, Long>();
+    }
+    return getHistogram(
+        HistogramBuckets.defaultBoundaries(getMin(), getMax()));
+  }
+  
+  /**
+   * Exports the digest as a bucketed histogram, e.g. for a heatmap. See 
+   * {@link #bucketCounts(double[])}.
+   * @param boundaries The bucket boundaries in ascending order.
+   * @return A sorted map of each bucket's upper bound, positive infinity 
+   * for the last, to the estimated number of values in the bucket.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public Map<Double, Long> getHistogram(final double[] boundaries) {
+    return HistogramBuckets.toMap(boundaries, bucketCounts(boundaries));
+  }
+  
+  /**
+   * Estimates the number of values in each bucket with a single walk over 
+   * the boundaries and the centroids' cumulative weights, rather than a CDF
+   * lookup per boundary.
+   * @param boundaries The bucket boundaries in ascending order, e.g. from 
+   * {@link HistogramBuckets#logBoundaries(double, double, int)}.
+   * @return An array one longer than the boundaries: the count at or below
+   * the first boundary, then the count above each boundary and at or below
+   * the next, then the count above the last.
+   * @throws IllegalArgumentException if the boundaries were null, not 
+   * sorted or contained NaN.
+   */
+  public double[] bucketCounts(final double[] boundaries) {
+    if (boundaries == null) {
+      throw new IllegalArgumentException("Boundaries cannot be null.");
+    }
+    final double[] counts = new double[boundaries.length + 1];
+    index().counts(boundaries, counts);
+    return counts;
   }
 
+  /**
+   * Returns a copy-on-write copy. The clone shares the encoded bytes or the
+   * digest with this histogram and whichever of the two is aggregated into
+   * first merges into a new digest, leaving the shared one untouched.
+   * @return The clone.
+   * @throws IllegalStateException if the digest was not set.
+   */
   public Histogram clone() {
     final MergingTDigestImplementation clone = 
         new MergingTDigestImplementation(id);
-    clone.fromHistogram(histogram(false), false);
+    clone.pool = pool;
+    clone.parallel_threshold = parallel_threshold;
+    clone.aggregation_max_bytes = aggregation_max_bytes;
+    clone.spill_dir = spill_dir;
+    if (digest == null && raw != null) {
+      // the encoded bytes are never modified so the clone can share them.
+      clone.raw = raw;
+      clone.raw_offset = raw_offset;
+      clone.raw_length = raw_length;
+      return clone;
+    }
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    shared = true;
+    clone.digest = digest;
+    clone.shared = true;
+    // the index is immutable so it's safe to share until either changes.
+    clone.index = index;
     return clone;
   }
 
@@ -116,11 +445,18 @@ public class MergingTDigestImplementation implements Histogram {
       throw new UnsupportedOperationException("Function " + func 
           + " is not supported yet."); 
     }
-    if (!(histo instanceof MergingTDigestImplementation)) {
-      throw new IllegalArgumentException("Incoming histogram was not of the "
-          + "same type: " + histo.getClass());
+    checkType(histo);
+    if (shared || histo instanceof ArrayTDigestImplementation) {
+      // merge into a new digest rather than copying the shared one first,
+      // or add the array's exact centroid weights.
+      aggregate(Lists.newArrayList(histo), func);
+      return;
     }
-    digest.add(((MergingTDigestImplementation) histo).digest);
+    final long start = System.nanoTime();
+    final TDigest digest = materialize();
+    digest.add(((MergingTDigestImplementation) histo).materialize());
+    index = null;
+    TDigestStats.merged(start, 1, digest.centroidCount());
   }
 
   public void aggregate(final List<Histogram> histos, 
@@ -130,12 +466,112 @@ public class MergingTDigestImplementation implements Histogram {
           + " is not supported yet."); 
     }
     for (final Histogram histogram : histos) {
-      if (!(histogram instanceof MergingTDigestImplementation)) {
-        throw new IllegalArgumentException("Incoming histogram was not of the "
-            + "same type: " + histogram.getClass());
+      checkType(histogram);
+    }
+    if (histos.isEmpty()) {
+      return;
+    }
+    final long start = System.nanoTime();
+    
+    // collect every centroid and compress once instead of merging each 
+    // digest into ours separately.
+    final TDigest digest = materialize();
+    final double compression = digest.compression();
+    if (aggregation_max_bytes > 0) {
+      aggregateBounded(histos, digest, start);
+      return;
+    }
+    final CentroidMerger merger;
+    if (pool != null && !pool.isShutdown() && 
+        histos.size() >= parallel_threshold) {
+      final int leaf = Math.max(MIN_PARALLEL_LEAF, 
+          histos.size() / (pool.getParallelism() * 4));
+      merger = pool.invoke(
+          new MergeTask(histos, 0, histos.size(), leaf, compression));
+    } else {
+      merger = new CentroidMerger(digest.centroidCount());
+      for (final Histogram histogram : histos) {
+        addTo(histogram, merger);
       }
-      digest.add(((MergingTDigestImplementation) histogram).digest);
     }
+    merger.add(digest);
+    this.digest = merger.toDigest(compression);
+    index = null;
+    shared = false;
+    TDigestStats.merged(start, histos.size(), merger.size());
+  }
+  
+  /**
+   * Merges the list within the aggregation budget, spilling sorted runs of
+   * centroids to a temp file when the budget is reached.
+   * @param histos The histograms to merge.
+   * @param digest This histogram's digest.
+   * @param start The start time for stats.
+   */
+  private void aggregateBounded(final List<Histogram> histos, 
+                                final TDigest digest, 
+                                final long start) {
+    final SpillingCentroidMerger merger = new SpillingCentroidMerger(
+        digest.compression(), aggregation_max_bytes, spill_dir);
+    try {
+      merger.add(digest);
+      for (final Histogram histogram : histos) {
+        merger.add(histogram);
+      }
+      this.digest = merger.finish();
+    } finally {
+      merger.close();
+    }
+    index = null;
+    shared = false;
+    if (merger.runs() > 0) {
+      TDigestStats.SPILLED_RUNS.add(merger.runs());
+      TDigestStats.SPILLED_BYTES.add(merger.spilledBytes());
+    }
+    TDigestStats.merged(start, histos.size(), this.digest.centroidCount());
+  }
+  
+  /**
+   * Bounds the buffer used to aggregate lists. The centroids of the inputs
+   * are buffered up to the budget, then sorted and spilled to a temp file,
+   * and the runs are merged back through a memory mapping with a single
+   * compression at the end. The inputs themselves aren't counted. The 
+   * result matches the unbounded aggregation. Takes precedence over 
+   * parallel aggregation.
+   * @param max_bytes The centroid buffer budget or 0 for no limit.
+   * @param spill_dir An optional directory for the spill files, the system
+   * temp directory if null.
+   * @throws IllegalArgumentException if the budget was negative or positive
+   * but less than {@link SpillingCentroidMerger#MIN_BYTES}.
+   */
+  public void setAggregationBudget(final long max_bytes, 
+                                   final File spill_dir) {
+    if (max_bytes < 0 || 
+        (max_bytes > 0 && max_bytes < SpillingCentroidMerger.MIN_BYTES)) {
+      throw new IllegalArgumentException("Budget must be 0 or at least " 
+          + SpillingCentroidMerger.MIN_BYTES + " bytes.");
+    }
+    aggregation_max_bytes = max_bytes;
+    this.spill_dir = spill_dir;
+  }
+  
+  /**
+   * Enables parallel aggregation of large lists. Lists with at least 
+   * {@code threshold} entries are split into a balanced tree of tasks whose
+   * leaves are merged concurrently, then the partial results are merged 
+   * together. Each partial result is compressed with the same compression 
+   * as this digest so the accuracy matches the sequential path.
+   * @param pool The pool to run on. If null, aggregation is sequential.
+   * @param threshold The minimum list size to aggregate in parallel.
+   * @throws IllegalArgumentException if the threshold was less than 2.
+   */
+  public void setParallelAggregation(final ForkJoinPool pool, 
+                                     final int threshold) {
+    if (threshold < 2) {
+      throw new IllegalArgumentException("Threshold must be 2 or more.");
+    }
+    this.pool = pool;
+    parallel_threshold = threshold;
   }
 
   /**
@@ -143,10 +579,255 @@ public class MergingTDigestImplementation implements Histogram {
    */
   public void setDigest(final TDigest digest) {
     this.digest = digest;
+    raw = null;
+    index = null;
+    shared = false;
   }
   
-  /** @return The digest associated with this histogram. */
+  /**
+   * Sets a digest that is shared with other histograms, e.g. from a cache. It
+   * is copied before this histogram modifies it.
+   * @param digest The non-null digest, which must not be modified.
+   */
+  void setSharedDigest(final TDigest digest) {
+    this.digest = digest;
+    raw = null;
+    index = null;
+    shared = true;
+  }
+  
+  /** @return The digest associated with this histogram, deserializing it 
+   * first if it was decoded lazily. As the caller may modify the digest, 
+   * cached lookup state is reset and a shared digest is copied first. */
   public TDigest getDigest() {
+    index = null;
+    return mutableDigest();
+  }
+  
+  /** @return The digest, deserializing it first if it was decoded lazily. 
+   * Callers must not modify it. */
+  TDigest materialize() {
+    // local copy as the same instance may be read by parallel aggregations.
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null) {
+      digest = decode(ByteBuffer.wrap(raw, raw_offset, raw_length));
+      this.raw = null;
+    }
+    return digest;
+  }
+  
+  /**
+   * Returns a copy with the digest compressed to the given compression if
+   * its own compression is higher.
+   * @param max_compression The maximum compression.
+   * @return This histogram if within the bound, otherwise a new histogram.
+   * @throws IllegalStateException if the digest was not set.
+   */
+  MergingTDigestImplementation recompress(final double max_compression) {
+    final TDigest digest = materialize();
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    if (digest.compression() <= max_compression) {
+      return this;
+    }
+    final CentroidMerger merger = new CentroidMerger(digest.centroidCount());
+    merger.add(digest);
+    final MergingTDigestImplementation copy = 
+        new MergingTDigestImplementation(id);
+    copy.pool = pool;
+    copy.parallel_threshold = parallel_threshold;
+    copy.aggregation_max_bytes = aggregation_max_bytes;
+    copy.spill_dir = spill_dir;
+    copy.setDigest(merger.toDigest(max_compression));
+    return copy;
+  }
+  
+  /**
+   * Adds the centroids of this histogram to the merger, reading them 
+   * straight from the encoded bytes if the digest was decoded lazily.
+   * @param merger The merger to add to.
+   */
+  void addTo(final CentroidMerger merger) {
+    final byte[] raw = this.raw;
+    if (digest == null && raw != null) {
+      CompactEncoding.readCentroids(
+          ByteBuffer.wrap(raw, raw_offset, raw_length), merger);
+    } else {
+      merger.add(materialize());
+    }
+  }
+  
+  /**
+   * Adds the centroids of a merging or array histogram to the merger.
+   * @param histo A histogram of a supported type.
+   * @param merger The merger to add to.
+   */
+  static void addTo(final Histogram histo, final CentroidMerger merger) {
+    if (histo instanceof ArrayTDigestImplementation) {
+      ((ArrayTDigestImplementation) histo).addTo(merger);
+    } else {
+      ((MergingTDigestImplementation) histo).addTo(merger);
+    }
+  }
+  
+  /**
+   * @param histo The histogram to check.
+   * @throws IllegalArgumentException if the histogram is neither a merging
+   * nor an array t-digest. Both share the same centroids and encoding so 
+   * either may be aggregated into the other.
+   */
+  private static void checkType(final Histogram histo) {
+    if (!(histo instanceof MergingTDigestImplementation) && 
+        !(histo instanceof ArrayTDigestImplementation)) {
+      throw new IllegalArgumentException("Incoming histogram was not of the "
+          + "same type: " + (histo == null ? null : histo.getClass()));
+    }
+  }
+  
+  /**
+   * @return The digest, copied first if it's shared so that it may be 
+   * modified. As the digest API doesn't accept centroids with an exact min 
+   * and max, the copy is built from the digest's verbose encoding.
+   */
+  private TDigest mutableDigest() {
+    final TDigest digest = materialize();
+    if (shared && digest != null) {
+      final CentroidIndex snapshot = index();
+      this.digest = CompactEncoding.toDigest(digest.compression(), 
+          digest.getMin(), digest.getMax(), snapshot.means(), 
+          snapshot.weights(), snapshot.size(), false);
+      shared = false;
+      index = null;
+    }
+    return this.digest;
+  }
+  
+  /**
+   * Deserializes a digest in any supported format, recording the latency or
+   * the failure.
+   * @param buf The buffer positioned at the encoded digest.
+   * @return The digest.
+   */
+  private static TDigest decode(final ByteBuffer buf) {
+    final long start = System.nanoTime();
+    final TDigest digest;
+    try {
+      digest = CompactEncoding.decodeAny(buf);
+    } catch (RuntimeException e) {
+      TDigestStats.DECODE_FAILURES.increment();
+      throw e;
+    }
+    TDigestStats.decoded(start, digest.centroidCount());
     return digest;
   }
+  
+  /**
+   * @return The digest, deserializing it first if needed.
+   * @throws IllegalStateException if the digest was not set.
+   */
+  private TDigest checkedDigest() {
+    final TDigest digest = materialize();
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    return digest;
+  }
+  
+  /** @return The cached centroid index, built on first use. */
+  private CentroidIndex index() {
+    if (index == null) {
+      index = new CentroidIndex(materialize());
+    }
+    return index;
+  }
+  
+  /** @return The format byte of the lazily held encoding or -1 if the 
+   * digest was materialized. */
+  byte lazyFormat() {
+    final byte[] raw = this.raw;
+    return digest == null && raw != null ? raw[raw_offset] : -1;
+  }
+  
+  /** @return Whether or not the digest is still held in encoded form. */
+  public boolean isLazy() {
+    return digest == null && raw != null;
+  }
+  
+  /** @return Whether or not the digest is shared and will be copied before
+   * it's modified. */
+  boolean isShared() {
+    return shared;
+  }
+  
+  /**
+   * Returns the lazily held bytes, copying them only if the requested form
+   * differs from the stored one.
+   * @param include_id Whether or not to prefix the ID.
+   * @return The encoded digest.
+   */
+  private byte[] rawHistogram(final boolean include_id) {
+    if (include_id && raw_offset == 1 && raw_length == raw.length - 1 
+        && raw[0] == (byte) id) {
+      return raw;
+    }
+    if (!include_id && raw_offset == 0 && raw_length == raw.length) {
+      return raw;
+    }
+    final int offset = include_id ? 1 : 0;
+    final byte[] encoded = new byte[raw_length + offset];
+    if (include_id) {
+      encoded[0] = (byte) id;
+    }
+    System.arraycopy(raw, raw_offset, encoded, offset, raw_length);
+    return encoded;
+  }
+  
+  /**
+   * Merges a range of the histogram list, splitting it in half until the
+   * range is small enough to merge on a single thread.
+   */
+  private static class MergeTask extends RecursiveTask<CentroidMerger> {
+    private static final long serialVersionUID = -1408547123406231042L;
+    
+    private final List<Histogram> histos;
+    private final int start;
+    private final int end;
+    private final int leaf;
+    private final double compression;
+    
+    MergeTask(final List<Histogram> histos, 
+              final int start, 
+              final int end, 
+              final int leaf, 
+              final double compression) {
+      this.histos = histos;
+      this.start = start;
+      this.end = end;
+      this.leaf = leaf;
+      this.compression = compression;
+    }
+    
+    @Override
+    protected CentroidMerger compute() {
+      if (end - start <= leaf) {
+        final CentroidMerger merger = new CentroidMerger(end - start);
+        for (int i = start; i < end; i++) {
+          addTo(histos.get(i), merger);
+        }
+        merger.compress(compression);
+        return merger;
+      }
+      final int mid = (start + end) >>> 1;
+      final MergeTask left = new MergeTask(histos, start, mid, leaf, 
+          compression);
+      left.fork();
+      final CentroidMerger right = new MergeTask(histos, mid, end, leaf, 
+          compression).compute();
+      final CentroidMerger merger = left.join();
+      merger.add(right);
+      merger.compress(compression);
+      return merger;
+    }
+  }
 }
@@ -12,10 +12,23 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
 import com.tdunning.math.stats.TDigest;
 
 import net.opentsdb.core.Histogram;
 import net.opentsdb.core.HistogramDataPointCodec;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
 
 /**
  * Plugin that handles encoding/decoding {@link TDigest} objects. 
@@ -24,24 +37,865 @@ import net.opentsdb.core.HistogramDataPointCodec;
  */
 public class MergingTDigestTDigestCodec extends HistogramDataPointCodec {
 
+  /** The prefix for all of the codec's configuration properties. */
+  public static final String CONFIG_PREFIX = "tsd.core.histograms.tdigest.";
+  
+  /** The prefix for per-metric storage compression overrides. */
+  public static final String METRIC_COMPRESSION_PREFIX = 
+      CONFIG_PREFIX + "max_compression.metric.";
+  
+  /** Whether or not to defer deserializing digests until they're read. */
+  private boolean lazy_decode;
+  
+  /** An optional pool for aggregating large lists of decoded histograms. */
+  private ForkJoinPool pool;
+  
+  /** The pool created by {@link #configure(Config)}, shut down when it's
+   * replaced. */
+  private ForkJoinPool configured_pool;
+  
+  /** The minimum number of histograms to aggregate in parallel. */
+  private int parallel_threshold = 
+      MergingTDigestImplementation.DEFAULT_PARALLEL_THRESHOLD;
+  
+  /** The heap budget for aggregating lists, 0 for no limit. */
+  private long aggregation_max_bytes;
+  
+  /** An optional directory for spilling aggregations. */
+  private File spill_dir;
+  
+  /** Whether or not to write the compact format. */
+  private boolean compact_encoding;
+  
+  /** Whether or not the compact format may store means as floats even when
+   * that loses precision. */
+  private boolean lossy_float_means;
+  
+  /** Whether or not to write the compact format with the summary header. */
+  private boolean summary_header;
+  
+  /** The maximum compression to store, 0 for no limit. */
+  private volatile double max_compression;
+  
+  /** Per-metric overrides of the maximum compression. */
+  private final Map<String, Double> metric_max_compression = 
+      new ConcurrentHashMap<String, Double>();
+  
+  /** An optional cache of decoded digests. */
+  private volatile DigestCache cache;
+  
+  /** The number of digests recompressed before storage. */
+  private final LongAdder recompressed = new LongAdder();
+  
+  /** The bytes the legacy format would have used for compact encodings. */
+  private final LongAdder legacy_bytes = new LongAdder();
+  
+  /** The bytes written in the compact format. */
+  private final LongAdder compact_bytes = new LongAdder();
+  
   @Override
   public Histogram decode(final byte[] raw_data, final boolean includes_id) {
     if (raw_data == null || raw_data.length < 8) {
+      TDigestStats.DECODE_FAILURES.increment();
       throw new IllegalArgumentException("Raw data cannot be null or less "
           + "than 8 bytes.");
     }
     final MergingTDigestImplementation histogram = 
         new MergingTDigestImplementation(id);
-    histogram.fromHistogram(raw_data, includes_id);
+    histogram.setParallelAggregation(pool, parallel_threshold);
+    histogram.setAggregationBudget(aggregation_max_bytes, spill_dir);
+    final DigestCache cache = this.cache;
+    if (cache != null) {
+      final int offset = includes_id ? 1 : 0;
+      decodeCached(cache, histogram, raw_data, offset, 
+          raw_data.length - offset);
+    } else {
+      histogram.fromHistogram(raw_data, includes_id, lazy_decode);
+    }
+    TDigestStats.DECODES.increment();
+    TDigestStats.DECODE_BYTES.add(raw_data.length);
     return histogram;
   }
 
   @Override
   public byte[] encode(final Histogram data_point, final boolean include_id) {
+    return encodeForMetric(data_point, include_id, null);
+  }
+  
+  /**
+   * Encodes the histogram for storage, first recompressing digests with a 
+   * higher compression than the maximum configured for the metric.
+   * @param data_point The non-null histogram to encode.
+   * @param include_id Whether or not to prefix the ID.
+   * @param metric An optional metric name to look up an override for.
+   * @return The encoded histogram.
+   * @throws IllegalArgumentException if the histogram was null.
+   */
+  public byte[] encodeForMetric(final Histogram data_point, 
+                                final boolean include_id, 
+                                final String metric) {
     if (data_point == null) {
       throw new IllegalArgumentException("Histogram cannot be null.");
     }
-    return data_point.histogram(include_id);
+    Histogram histogram = data_point;
+    if (histogram instanceof MergingTDigestImplementation) {
+      histogram = recompress((MergingTDigestImplementation) histogram, metric);
+    }
+    final byte[] encoded;
+    if ((compact_encoding || summary_header) && 
+        histogram instanceof MergingTDigestImplementation) {
+      encoded = encodeCompact((MergingTDigestImplementation) histogram, 
+          include_id);
+    } else {
+      encoded = histogram.histogram(include_id);
+    }
+    TDigestStats.ENCODES.increment();
+    TDigestStats.ENCODE_BYTES.add(encoded.length);
+    return encoded;
+  }
+  
+  /**
+   * Decodes the remaining bytes of the buffer without copying them first, 
+   * e.g. straight from a cell value. The buffer's position is not modified.
+   * @param buf The buffer to read from.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @return The decoded histogram.
+   * @throws IllegalArgumentException if the buffer was null or too short.
+   */
+  public Histogram decodeBuffer(final ByteBuffer buf, 
+                                final boolean includes_id) {
+    if (buf == null || buf.remaining() < 8) {
+      TDigestStats.DECODE_FAILURES.increment();
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    final MergingTDigestImplementation histogram = 
+        new MergingTDigestImplementation(id);
+    histogram.setParallelAggregation(pool, parallel_threshold);
+    histogram.setAggregationBudget(aggregation_max_bytes, spill_dir);
+    final DigestCache cache = this.cache;
+    if (cache != null && buf.hasArray()) {
+      final int offset = includes_id ? 1 : 0;
+      decodeCached(cache, histogram, buf.array(), 
+          buf.arrayOffset() + buf.position() + offset, 
+          buf.remaining() - offset);
+    } else {
+      histogram.fromByteBuffer(buf, includes_id, lazy_decode);
+    }
+    TDigestStats.DECODES.increment();
+    TDigestStats.DECODE_BYTES.add(buf.remaining());
+    return histogram;
+  }
+  
+  /**
+   * Decodes many cells at once, e.g. the results of a large scan. With a 
+   * pool configured through 
+   * {@link #setParallelAggregation(ForkJoinPool, int)}, batches of at least
+   * the parallel threshold are decoded eagerly on the pool, spreading the 
+   * cost over multiple cores, unless decoding lazily.
+   * @param cells The non-null list of encoded cells.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @return The decoded histograms in the same order as the cells.
+   * @throws IllegalArgumentException if the list was null or a cell was null
+   * or too short.
+   */
+  public List<Histogram> decodeBatch(final List<byte[]> cells, 
+                                     final boolean includes_id) {
+    if (cells == null) {
+      throw new IllegalArgumentException("Cells cannot be null.");
+    }
+    final int size = cells.size();
+    final byte[][] sources = new byte[size][];
+    final int[] offsets = new int[size];
+    final int[] lengths = new int[size];
+    for (int i = 0; i < size; i++) {
+      final byte[] cell = cells.get(i);
+      sources[i] = cell;
+      lengths[i] = cell == null ? 0 : cell.length;
+    }
+    final MergingTDigestImplementation[] results = 
+        new MergingTDigestImplementation[size];
+    decodeBatch(sources, offsets, lengths, includes_id, results);
+    return Arrays.<Histogram>asList(results);
+  }
+  
+  /**
+   * Decodes many cells stored as slices of one shared buffer, e.g. a block 
+   * read from a file or the network, into reusable histograms. Non-null 
+   * entries of the result array are overwritten in place, avoiding an
+   * allocation per cell when the same array is used for successive batches.
+   * Null entries are filled with new histograms. Parallelism is the same as
+   * {@link #decodeBatch(List, boolean)}. When decoding lazily the buffer is
+   * referenced and must not be modified while the histograms are in use.
+   * @param buffer The non-null shared buffer.
+   * @param offsets The offset of each cell in the buffer.
+   * @param lengths The length of each cell, including the ID if present.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @param results An array at least as long as the offsets to decode into.
+   * @throws IllegalArgumentException if an argument was null, the arrays 
+   * were too short, a slice was out of bounds or a cell was too short.
+   */
+  public void decodeBatch(final byte[] buffer, 
+                          final int[] offsets, 
+                          final int[] lengths, 
+                          final boolean includes_id, 
+                          final MergingTDigestImplementation[] results) {
+    if (buffer == null || offsets == null || lengths == null || 
+        results == null) {
+      throw new IllegalArgumentException("Buffer, offsets, lengths and "
+          + "results cannot be null.");
+    }
+    if (lengths.length < offsets.length || results.length < offsets.length) {
+      throw new IllegalArgumentException("Lengths and results must be at "
+          + "least as long as the offsets.");
+    }
+    for (int i = 0; i < offsets.length; i++) {
+      if (offsets[i] < 0 || lengths[i] < 0 || 
+          offsets[i] > buffer.length - lengths[i]) {
+        throw new IllegalArgumentException("Cell " + i 
+            + " is out of the buffer's bounds.");
+      }
+    }
+    final byte[][] sources = new byte[offsets.length][];
+    Arrays.fill(sources, buffer);
+    decodeBatch(sources, offsets, lengths, includes_id, results);
+  }
+  
+  /**
+   * Evaluates the percentiles for every encoded cell at once, without 
+   * building a histogram per cell. See 
+   * {@link BatchPercentiles#evaluateEncoded(List, boolean, double[], ForkJoinPool)}.
+   * Runs on the pool configured through 
+   * {@link #setParallelAggregation(ForkJoinPool, int)}, if any, for batches
+   * of at least the parallel threshold.
+   * @param cells The non-null list of encoded cells.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @param percentiles The percentiles from 0 to 100.
+   * @return The values indexed by cell, then percentile.
+   * @throws IllegalArgumentException if an argument was null, a cell was 
+   * invalid or a percentile was out of range.
+   */
+  public double[][] percentiles(final List<byte[]> cells, 
+                                final boolean includes_id, 
+                                final double[] percentiles) {
+    final ForkJoinPool pool = this.pool;
+    return BatchPercentiles.evaluateEncoded(cells, includes_id, percentiles, 
+        cells != null && cells.size() >= parallel_threshold ? pool : null);
+  }
+  
+  /**
+   * Encodes the histogram into the given buffer at its current position so
+   * that callers can reuse one buffer across data points.
+   * @param data_point The non-null histogram to encode.
+   * @param include_id Whether or not to prefix the ID.
+   * @param buf The non-null buffer to write to.
+   * @return The number of bytes written.
+   * @throws IllegalArgumentException if the histogram or buffer was null.
+   * @throws java.nio.BufferOverflowException if the buffer was too small.
+   */
+  public int encode(final Histogram data_point, 
+                    final boolean include_id, 
+                    final ByteBuffer buf) {
+    if (data_point == null) {
+      throw new IllegalArgumentException("Histogram cannot be null.");
+    }
+    if (buf == null) {
+      throw new IllegalArgumentException("Buffer cannot be null.");
+    }
+    if (data_point instanceof MergingTDigestImplementation && 
+        !compact_encoding && !summary_header && max_compression <= 0 && 
+        metric_max_compression.isEmpty()) {
+      final int written = ((MergingTDigestImplementation) data_point)
+          .histogram(buf, include_id);
+      TDigestStats.ENCODES.increment();
+      TDigestStats.ENCODE_BYTES.add(written);
+      return written;
+    }
+    final byte[] encoded = encode(data_point, include_id);
+    buf.put(encoded);
+    return encoded.length;
   }
 
+  /**
+   * Sums encoded digests straight from their bytes, streaming the centroids
+   * of every cell into one primitive merge buffer and compressing once, 
+   * without building a digest per cell. Meant for rollups and downsampling
+   * where the merged result is stored or forwarded as is. Cells may be in 
+   * any format this codec reads and the result is written in the format 
+   * this codec is configured to write.
+   * @param cells The non-null, non-empty list of encoded digests.
+   * @param includes_id Whether or not the cells start with the ID, in which
+   * case the result does as well.
+   * @param compression The compression of the result.
+   * @return The encoded sum.
+   * @throws IllegalArgumentException if the list was null or empty, a cell 
+   * was null or too short or the compression was not positive.
+   */
+  public byte[] mergeEncoded(final List<byte[]> cells, 
+                             final boolean includes_id, 
+                             final double compression) {
+    if (cells == null || cells.isEmpty()) {
+      throw new IllegalArgumentException("Cells cannot be null or empty.");
+    }
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    final long start = System.nanoTime();
+    final int offset = includes_id ? 1 : 0;
+    final CentroidMerger merger = new CentroidMerger(
+        (int) Math.ceil(compression) * 2);
+    for (final byte[] cell : cells) {
+      if (cell == null || cell.length < 8 + offset) {
+        throw new IllegalArgumentException("Raw data cannot be null or less "
+            + "than 8 bytes.");
+      }
+      try {
+        CompactEncoding.readCentroids(
+            ByteBuffer.wrap(cell, offset, cell.length - offset), merger);
+      } catch (RuntimeException e) {
+        TDigestStats.DECODE_FAILURES.increment();
+        throw e;
+      }
+      TDigestStats.DECODE_BYTES.add(cell.length);
+    }
+    TDigestStats.DECODES.add(cells.size());
+    final int count = merger.compress(compression);
+    TDigestStats.merged(start, cells.size(), count);
+    final byte[] encoded;
+    if (compact_encoding || summary_header) {
+      encoded = CompactEncoding.encode(compression, merger.min(), 
+          merger.max(), merger.means(), merger.weights(), count, includes_id, 
+          id, lossy_float_means, summary_header);
+    } else {
+      encoded = CompactEncoding.encodeSmall(compression, merger.min(), 
+          merger.max(), merger.means(), merger.weights(), count, includes_id, 
+          id);
+    }
+    TDigestStats.ENCODES.increment();
+    TDigestStats.ENCODE_BYTES.add(encoded.length);
+    return encoded;
+  }
+  
+  /**
+   * Returns a new accumulator for summing data points one at a time with 
+   * this codec's ID, e.g. while scanning cells.
+   * @param compression The compression of the result.
+   * @return A new accumulator.
+   * @throws IllegalArgumentException if the compression was not positive.
+   */
+  public TDigestAccumulator newAccumulator(final double compression) {
+    return new TDigestAccumulator(id, compression);
+  }
+  
+  /**
+   * Applies the codec settings found in the TSD config, all prefixed with 
+   * {@link #CONFIG_PREFIX}:
+   * <ul>
+   * <li>{@code lazy_decode} - see {@link #setLazyDecode(boolean)}</li>
+   * <li>{@code compact_encoding} and {@code compact_encoding.lossy_floats} - 
+   * see {@link #setCompactEncoding(boolean, boolean)}</li>
+   * <li>{@code summary_header} - see {@link #setSummaryHeader(boolean)}</li>
+   * <li>{@code max_compression} - see {@link #setMaxCompression(double)}</li>
+   * <li>{@code max_compression.metric.<metric>} - see 
+   * {@link #setMaxCompression(String, double)}</li>
+   * <li>{@code cache.max_bytes} - see {@link #setDecodeCache(long)}</li>
+   * <li>{@code aggregation.max_bytes} and {@code aggregation.spill_dir} - 
+   * see {@link #setAggregationBudget(long, File)}</li>
+   * <li>{@code parallel.threads} and {@code parallel.threshold} - see 
+   * {@link #setParallelAggregation(ForkJoinPool, int)}</li>
+   * </ul>
+   * @param config A non-null config.
+   * @throws IllegalArgumentException if the config was null or a value was
+   * invalid.
+   */
+  public void configure(final Config config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config cannot be null.");
+    }
+    try {
+      if (config.hasProperty(CONFIG_PREFIX + "lazy_decode")) {
+        setLazyDecode(config.getBoolean(CONFIG_PREFIX + "lazy_decode"));
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "compact_encoding")) {
+        setCompactEncoding(
+            config.getBoolean(CONFIG_PREFIX + "compact_encoding"),
+            config.hasProperty(CONFIG_PREFIX + "compact_encoding.lossy_floats") 
+              && config.getBoolean(
+                  CONFIG_PREFIX + "compact_encoding.lossy_floats"));
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "summary_header")) {
+        setSummaryHeader(config.getBoolean(CONFIG_PREFIX + "summary_header"));
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "max_compression")) {
+        setMaxCompression(config.getDouble(CONFIG_PREFIX + "max_compression"));
+      }
+      for (final Entry<String, String> entry : config.getMap().entrySet()) {
+        if (entry.getKey().startsWith(METRIC_COMPRESSION_PREFIX) && 
+            entry.getValue() != null && !entry.getValue().isEmpty()) {
+          setMaxCompression(
+              entry.getKey().substring(METRIC_COMPRESSION_PREFIX.length()), 
+              Double.parseDouble(entry.getValue().trim()));
+        }
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "cache.max_bytes")) {
+        setDecodeCache(config.getLong(CONFIG_PREFIX + "cache.max_bytes"));
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "aggregation.max_bytes")) {
+        final String dir = config.hasProperty(
+            CONFIG_PREFIX + "aggregation.spill_dir") 
+              ? config.getString(CONFIG_PREFIX + "aggregation.spill_dir") 
+              : null;
+        setAggregationBudget(
+            config.getLong(CONFIG_PREFIX + "aggregation.max_bytes"), 
+            dir == null || dir.isEmpty() ? null : new File(dir));
+      }
+      if (config.hasProperty(CONFIG_PREFIX + "parallel.threads")) {
+        final int threads = config.getInt(CONFIG_PREFIX + "parallel.threads");
+        final int threshold = 
+            config.hasProperty(CONFIG_PREFIX + "parallel.threshold") 
+              ? config.getInt(CONFIG_PREFIX + "parallel.threshold") 
+              : MergingTDigestImplementation.DEFAULT_PARALLEL_THRESHOLD;
+        // reconfiguring with the same thread count keeps the pool.
+        final ForkJoinPool new_pool = threads < 1 ? null : 
+          configured_pool != null && 
+          configured_pool.getParallelism() == threads 
+            ? configured_pool : new ForkJoinPool(threads);
+        setParallelAggregation(new_pool, threshold);
+        configured_pool = new_pool;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid t-digest codec config", e);
+    }
+  }
+  
+  /**
+   * Sets the maximum compression for stored digests. Incoming digests with a
+   * higher compression are recompressed to this bound before encoding, 
+   * capping the size of each cell and the cost of reading it.
+   * @param max_compression The maximum compression or 0 for no limit.
+   * @throws IllegalArgumentException if the value was negative.
+   */
+  public void setMaxCompression(final double max_compression) {
+    if (max_compression < 0) {
+      throw new IllegalArgumentException("Max compression cannot be "
+          + "negative.");
+    }
+    this.max_compression = max_compression;
+  }
+  
+  /**
+   * Overrides the maximum storage compression for a single metric. Only 
+   * applies when encoding through 
+   * {@link #encodeForMetric(Histogram, boolean, String)}.
+   * @param metric The non-null metric name.
+   * @param max_compression The maximum compression or 0 for no limit.
+   * @throws IllegalArgumentException if the metric was null or empty or the
+   * value was negative.
+   */
+  public void setMaxCompression(final String metric, 
+                                final double max_compression) {
+    if (metric == null || metric.isEmpty()) {
+      throw new IllegalArgumentException("Metric cannot be null or empty.");
+    }
+    if (max_compression < 0) {
+      throw new IllegalArgumentException("Max compression cannot be "
+          + "negative.");
+    }
+    metric_max_compression.put(metric, max_compression);
+  }
+  
+  /**
+   * @param metric An optional metric name.
+   * @return The maximum storage compression for the metric, 0 if unbounded.
+   */
+  public double getMaxCompression(final String metric) {
+    if (metric != null) {
+      final Double override = metric_max_compression.get(metric);
+      if (override != null) {
+        return override;
+      }
+    }
+    return max_compression;
+  }
+  
+  /**
+   * Reports the plugin's counters and latencies, e.g. from the TSD's stats
+   * collection so they show up under {@code /api/stats}. Counters for 
+   * decoding, encoding and aggregation are shared by every codec instance
+   * in the process.
+   * @param collector The non-null collector to record to.
+   * @throws IllegalArgumentException if the collector was null.
+   */
+  public void collectStats(final StatsCollector collector) {
+    if (collector == null) {
+      throw new IllegalArgumentException("Collector cannot be null.");
+    }
+    TDigestStats.collectStats(collector);
+    collector.record(TDigestStats.PREFIX + "encode.recompressed", 
+        recompressed.sum());
+    collector.record(TDigestStats.PREFIX + "encode.compact_bytes", 
+        compact_bytes.sum());
+    collector.record(TDigestStats.PREFIX + "encode.compact_legacy_bytes", 
+        legacy_bytes.sum());
+    final DigestCache cache = this.cache;
+    if (cache != null) {
+      collector.record(TDigestStats.PREFIX + "cache.hits", cache.hits());
+      collector.record(TDigestStats.PREFIX + "cache.misses", cache.misses());
+      collector.record(TDigestStats.PREFIX + "cache.evictions", 
+          cache.evictions());
+      collector.record(TDigestStats.PREFIX + "cache.size", cache.size());
+    }
+  }
+  
+  /**
+   * Enables or replaces the cache of decoded digests. Cells are looked up 
+   * by their content so only immutable data, e.g. historical cells that are
+   * queried again and again by dashboards, will hit. Histograms decoded from
+   * the cache share the cached digest and copy it only if they're modified.
+   * While the cache is enabled, misses are decoded eagerly regardless of 
+   * {@link #setLazyDecode(boolean)} so that they can be cached.
+   * @param max_bytes The approximate heap the cache may retain or 0 to 
+   * disable caching.
+   * @throws IllegalArgumentException if the bound was negative.
+   */
+  public void setDecodeCache(final long max_bytes) {
+    if (max_bytes < 0) {
+      throw new IllegalArgumentException("Max bytes cannot be negative.");
+    }
+    cache = max_bytes > 0 ? new DigestCache(max_bytes) : null;
+  }
+  
+  /** @return The number of decodes served from the cache. */
+  public long getCacheHits() {
+    final DigestCache cache = this.cache;
+    return cache == null ? 0 : cache.hits();
+  }
+  
+  /** @return The number of decodes that missed the cache. */
+  public long getCacheMisses() {
+    final DigestCache cache = this.cache;
+    return cache == null ? 0 : cache.misses();
+  }
+  
+  /** @return The number of digests evicted from the cache. */
+  public long getCacheEvictions() {
+    final DigestCache cache = this.cache;
+    return cache == null ? 0 : cache.evictions();
+  }
+  
+  /** @return The number of digests recompressed before storage. */
+  public long getRecompressedCount() {
+    return recompressed.sum();
+  }
+  
+  /**
+   * Enables or disables lazy decoding. When enabled, decoded histograms keep
+   * the raw bytes and only deserialize the digest when it's read, e.g. for
+   * percentiles or aggregation. Values that are passed straight through are
+   * re-encoded without a round trip.
+   * <b>Note:</b> Invalid data will only throw when the digest is read.
+   * @param lazy_decode Whether or not to decode lazily.
+   */
+  public void setLazyDecode(final boolean lazy_decode) {
+    this.lazy_decode = lazy_decode;
+  }
+  
+  /** @return Whether or not digests are decoded lazily. */
+  public boolean isLazyDecode() {
+    return lazy_decode;
+  }
+  
+  /**
+   * Bounds the heap used to aggregate lists of histograms decoded by this
+   * codec. See 
+   * {@link MergingTDigestImplementation#setAggregationBudget(long, File)}.
+   * @param max_bytes The approximate heap budget or 0 for no limit.
+   * @param spill_dir An optional directory for the spill files, the system
+   * temp directory if null.
+   * @throws IllegalArgumentException if the budget was invalid.
+   */
+  public void setAggregationBudget(final long max_bytes, 
+                                   final File spill_dir) {
+    if (max_bytes < 0 || 
+        (max_bytes > 0 && max_bytes < SpillingCentroidMerger.MIN_BYTES)) {
+      throw new IllegalArgumentException("Budget must be 0 or at least " 
+          + SpillingCentroidMerger.MIN_BYTES + " bytes.");
+    }
+    aggregation_max_bytes = max_bytes;
+    this.spill_dir = spill_dir;
+  }
+  
+  /**
+   * Enables parallel aggregation for histograms decoded by this codec. See
+   * {@link MergingTDigestImplementation#setParallelAggregation(ForkJoinPool, int)}.
+   * A pool previously created by {@link #configure(Config)} is shut down 
+   * when replaced. Histograms still holding it aggregate sequentially.
+   * @param pool The pool to run on. If null, aggregation is sequential.
+   * @param threshold The minimum list size to aggregate in parallel.
+   * @throws IllegalArgumentException if the threshold was less than 2.
+   */
+  public void setParallelAggregation(final ForkJoinPool pool, 
+                                     final int threshold) {
+    if (threshold < 2) {
+      throw new IllegalArgumentException("Threshold must be 2 or more.");
+    }
+    if (configured_pool != null && configured_pool != pool) {
+      configured_pool.shutdown();
+      configured_pool = null;
+    }
+    this.pool = pool;
+    parallel_threshold = threshold;
+  }
+  
+  /** @return The pool used for parallel work, null if sequential. */
+  ForkJoinPool getPool() {
+    return pool;
+  }
+  
+  /**
+   * Enables writing digests in the compact format (see 
+   * {@link CompactEncoding}): delta encoded means and varint weights behind a
+   * format byte. Both the compact and the original formats are always 
+   * decoded so this can be toggled without migrating data.
+   * @param compact_encoding Whether or not to write the compact format.
+   * @param lossy_float_means Whether or not to store means as floats when
+   * the values fit the float range, even if precision is lost. Means that
+   * are exact floats are always stored as floats.
+   */
+  public void setCompactEncoding(final boolean compact_encoding, 
+                                 final boolean lossy_float_means) {
+    this.compact_encoding = compact_encoding;
+    this.lossy_float_means = lossy_float_means;
+  }
+  
+  /** @return Whether or not the compact format is written. */
+  public boolean isCompactEncoding() {
+    return compact_encoding;
+  }
+  
+  /**
+   * Enables writing the count, min, max and sum of the values in a fixed 
+   * size header in front of the centroids so that 
+   * {@link MergingTDigestImplementation#getCount()}, 
+   * {@link MergingTDigestImplementation#getMean()} and the like are answered
+   * from lazily decoded data points without deserializing the digest. The
+   * header is part of the compact format so this implies the compact 
+   * encoding for the centroids, costing 16 bytes per data point.
+   * @param summary_header Whether or not to write the summary header.
+   */
+  public void setSummaryHeader(final boolean summary_header) {
+    this.summary_header = summary_header;
+  }
+  
+  /** @return Whether or not the summary header is written. */
+  public boolean isSummaryHeader() {
+    return summary_header;
+  }
+  
+  /** @return The size of the compact encodings written so far relative to 
+   * the size of the original format, e.g. 0.6 for 40% savings. NaN if 
+   * nothing was written in the compact format. */
+  public double getCompactRatio() {
+    final long legacy = legacy_bytes.sum();
+    if (legacy == 0) {
+      return Double.NaN;
+    }
+    return (double) compact_bytes.sum() / (double) legacy;
+  }
+  
+  /**
+   * Returns a copy of the histogram recompressed to the metric's maximum
+   * storage compression if it exceeds it. 
+   * @param histogram The histogram to check.
+   * @param metric An optional metric name.
+   * @return The histogram itself or a recompressed copy.
+   */
+  private MergingTDigestImplementation recompress(
+      final MergingTDigestImplementation histogram, final String metric) {
+    final double bound = getMaxCompression(metric);
+    if (bound <= 0) {
+      return histogram;
+    }
+    final MergingTDigestImplementation copy = histogram.recompress(bound);
+    if (copy != histogram) {
+      recompressed.increment();
+    }
+    return copy;
+  }
+  
+  /**
+   * Decodes the cells serially or on the pool.
+   * @param sources The array holding each cell.
+   * @param offsets The offset of each cell in its array.
+   * @param lengths The length of each cell.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @param results The histograms to decode into, null entries are created.
+   */
+  private void decodeBatch(final byte[][] sources, 
+                           final int[] offsets, 
+                           final int[] lengths, 
+                           final boolean includes_id, 
+                           final MergingTDigestImplementation[] results) {
+    final int size = sources.length;
+    final int min_length = includes_id ? 9 : 8;
+    long bytes = 0;
+    for (int i = 0; i < size; i++) {
+      if (sources[i] == null || lengths[i] < min_length) {
+        TDigestStats.DECODE_FAILURES.increment();
+        throw new IllegalArgumentException("Raw data cannot be null or less "
+            + "than 8 bytes.");
+      }
+      bytes += lengths[i];
+    }
+    final ForkJoinPool pool = this.pool;
+    if (pool != null && !pool.isShutdown() && !lazy_decode && 
+        size >= parallel_threshold) {
+      final int leaf = Math.max(MergingTDigestImplementation.MIN_PARALLEL_LEAF, 
+          size / (pool.getParallelism() * 4));
+      pool.invoke(new DecodeTask(sources, offsets, lengths, includes_id, 
+          results, 0, size, leaf));
+    } else {
+      decodeRange(sources, offsets, lengths, includes_id, results, 0, size);
+    }
+    TDigestStats.DECODES.add(size);
+    TDigestStats.DECODE_BYTES.add(bytes);
+  }
+  
+  /**
+   * Decodes a range of cells on the current thread.
+   * @param sources The array holding each cell.
+   * @param offsets The offset of each cell in its array.
+   * @param lengths The length of each cell.
+   * @param includes_id Whether or not the cells start with the ID.
+   * @param results The histograms to decode into, null entries are created.
+   * @param start The first cell to decode.
+   * @param end The cell to stop at, exclusive.
+   */
+  private void decodeRange(final byte[][] sources, 
+                           final int[] offsets, 
+                           final int[] lengths, 
+                           final boolean includes_id, 
+                           final MergingTDigestImplementation[] results,
+                           final int start, 
+                           final int end) {
+    final DigestCache cache = this.cache;
+    final int skip = includes_id ? 1 : 0;
+    for (int i = start; i < end; i++) {
+      MergingTDigestImplementation histogram = results[i];
+      if (histogram == null) {
+        histogram = new MergingTDigestImplementation(id);
+        histogram.setParallelAggregation(pool, parallel_threshold);
+        histogram.setAggregationBudget(aggregation_max_bytes, spill_dir);
+        results[i] = histogram;
+      }
+      if (cache != null) {
+        decodeCached(cache, histogram, sources[i], offsets[i] + skip, 
+            lengths[i] - skip);
+      } else {
+        histogram.fromByteBuffer(
+            ByteBuffer.wrap(sources[i], offsets[i], lengths[i]), 
+            includes_id, lazy_decode);
+      }
+    }
+  }
+  
+  /**
+   * Sets the histogram's digest from the cache, decoding and caching it on a
+   * miss.
+   * @param cache The cache to use.
+   * @param histogram The histogram to populate.
+   * @param raw The encoded cell.
+   * @param offset The offset of the digest, after the ID.
+   * @param length The length of the digest.
+   */
+  private static void decodeCached(final DigestCache cache, 
+                                   final MergingTDigestImplementation histogram,
+                                   final byte[] raw, 
+                                   final int offset, 
+                                   final int length) {
+    TDigest digest = cache.get(raw, offset, length);
+    if (digest == null) {
+      histogram.fromByteBuffer(ByteBuffer.wrap(raw, offset, length), false, 
+          false);
+      digest = histogram.materialize();
+      cache.put(raw, offset, length, digest);
+    }
+    histogram.setSharedDigest(digest);
+  }
+  
+  /**
+   * Encodes the histogram in the compact format, passing through data that 
+   * was lazily decoded from the compact format.
+   * @param histogram The histogram to encode.
+   * @param include_id Whether or not to prefix the ID.
+   * @return The encoded histogram.
+   */
+  private byte[] encodeCompact(final MergingTDigestImplementation histogram, 
+                               final boolean include_id) {
+    final byte format = histogram.lazyFormat();
+    if (CompactEncoding.isCompact(format) && 
+        CompactEncoding.hasSummary(format) == summary_header) {
+      return histogram.histogram(include_id);
+    }
+    final TDigest digest = histogram.materialize();
+    if (digest == null) {
+      throw new IllegalStateException("The sketch has not been set yet.");
+    }
+    final byte[] encoded = CompactEncoding.encode(digest, include_id, 
+        histogram.getId(), lossy_float_means, summary_header);
+    legacy_bytes.add(digest.smallByteSize() + (include_id ? 1 : 0));
+    compact_bytes.add(encoded.length);
+    return encoded;
+  }
+  
+  /**
+   * Decodes a range of a batch, splitting it in half until the range is 
+   * small enough to decode on a single thread.
+   */
+  private class DecodeTask extends RecursiveAction {
+    private static final long serialVersionUID = 5283346424513546961L;
+    
+    private final byte[][] sources;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean includes_id;
+    private final MergingTDigestImplementation[] results;
+    private final int start;
+    private final int end;
+    private final int leaf;
+    
+    DecodeTask(final byte[][] sources, 
+               final int[] offsets, 
+               final int[] lengths, 
+               final boolean includes_id, 
+               final MergingTDigestImplementation[] results, 
+               final int start, 
+               final int end, 
+               final int leaf) {
+      this.sources = sources;
+      this.offsets = offsets;
+      this.lengths = lengths;
+      this.includes_id = includes_id;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+      this.leaf = leaf;
+    }
+    
+    @Override
+    protected void compute() {
+      if (end - start <= leaf) {
+        decodeRange(sources, offsets, lengths, includes_id, results, start, 
+            end);
+        return;
+      }
+      final int mid = (start + end) >>> 1;
+      invokeAll(
+          new DecodeTask(sources, offsets, lengths, includes_id, results, 
+              start, mid, leaf), 
+          new DecodeTask(sources, offsets, lengths, includes_id, results, 
+              mid, end, leaf));
+    }
+  }
 }
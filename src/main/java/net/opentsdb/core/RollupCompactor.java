@@ -0,0 +1,566 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Batch tool that pre-merges stored digests into coarser time tiers, e.g. 
+ * one hour and one day, so that long range queries read one cell per tier
+ * interval instead of merging every minute level cell. 
+ * <p>
+ * Input and output are streams of records: a UTF series key, a timestamp
+ * in milliseconds and a length prefixed cell encoded by the codec (see 
+ * {@link #writeRecord(DataOutputStream, String, long, byte[])}), so the 
+ * tool can be fed from an export of any store. Input records must be in 
+ * time order across all series. Each tier is written to its own file in 
+ * the output directory, named {@code rollup-<tier>.bin}, in the same record
+ * format with the timestamp set to the start of the tier interval, and the
+ * cells encoded by the codec as configured.
+ * <p>
+ * Each open series interval holds a {@link TDigestAccumulator} so memory is 
+ * bounded per series and tier no matter how many cells are merged. Every
+ * {@link #setCheckpointInterval(int)} records the open intervals, the 
+ * number of records consumed and the output file lengths are written to
+ * a checkpoint in the output directory. A run that finds a checkpoint 
+ * truncates the outputs to the checkpointed lengths, restores the open 
+ * intervals and skips the records already consumed, so the input must be 
+ * replayed from the start. The checkpoint is deleted once a run completes.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 2.4
+ */
+public final class RollupCompactor {
+  
+  /** One hour in milliseconds. */
+  public static final long HOUR = 3600000L;
+  
+  /** One day in milliseconds. */
+  public static final long DAY = 24 * HOUR;
+  
+  /** The default number of records between checkpoints. */
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+  
+  /** The name of the checkpoint file in the output directory. */
+  public static final String CHECKPOINT_FILE = "rollup.checkpoint";
+  
+  /** The checkpoint format version. */
+  private static final byte CHECKPOINT_VERSION = 1;
+  
+  /** The codec used to encode the results. */
+  private final MergingTDigestTDigestCodec codec;
+  
+  /** The compression of the merged digests. */
+  private final double compression;
+  
+  /** Whether or not cells start with the ID. */
+  private final boolean includes_id;
+  
+  /** The tier widths in milliseconds, ascending. */
+  private final long[] widths;
+  
+  /** The number of records between checkpoints. */
+  private int checkpoint_interval = DEFAULT_CHECKPOINT_INTERVAL;
+  
+  /**
+   * Default ctor.
+   * @param codec The non-null codec to encode results with. Its ID is used
+   * for the merged digests.
+   * @param compression The compression of the merged digests.
+   * @param includes_id Whether or not input cells start with the ID, in 
+   * which case output cells do as well.
+   * @param widths One or more tier widths in milliseconds, e.g. 
+   * {@link #HOUR} and {@link #DAY}.
+   * @throws IllegalArgumentException if the codec was null, the compression
+   * was not positive or the widths were missing, not positive or repeated.
+   */
+  public RollupCompactor(final MergingTDigestTDigestCodec codec, 
+                         final double compression, 
+                         final boolean includes_id, 
+                         final long... widths) {
+    if (codec == null) {
+      throw new IllegalArgumentException("Codec cannot be null.");
+    }
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    if (widths == null || widths.length < 1) {
+      throw new IllegalArgumentException("At least one tier is required.");
+    }
+    this.widths = Arrays.copyOf(widths, widths.length);
+    Arrays.sort(this.widths);
+    for (int i = 0; i < this.widths.length; i++) {
+      if (this.widths[i] <= 0) {
+        throw new IllegalArgumentException("Tier widths must be greater than "
+            + "zero.");
+      }
+      if (i > 0 && this.widths[i] == this.widths[i - 1]) {
+        throw new IllegalArgumentException("Duplicate tier width: " 
+            + this.widths[i]);
+      }
+    }
+    this.codec = codec;
+    this.compression = compression;
+    this.includes_id = includes_id;
+  }
+  
+  /**
+   * @param checkpoint_interval The number of input records between 
+   * checkpoints.
+   * @throws IllegalArgumentException if the interval was less than 1.
+   */
+  public void setCheckpointInterval(final int checkpoint_interval) {
+    if (checkpoint_interval < 1) {
+      throw new IllegalArgumentException("Checkpoint interval must be at "
+          + "least 1.");
+    }
+    this.checkpoint_interval = checkpoint_interval;
+  }
+  
+  /**
+   * Rolls up the records in the file.
+   * @param input The non-null input file.
+   * @param output_dir The non-null directory to write the tiers to.
+   * @return The number of records merged by this run.
+   * @throws IOException if reading or writing failed.
+   * @throws IllegalArgumentException if a record was out of order or a 
+   * cell could not be read.
+   */
+  public long compact(final File input, final File output_dir) 
+      throws IOException {
+    if (input == null) {
+      throw new IllegalArgumentException("Input cannot be null.");
+    }
+    final InputStream stream = new FileInputStream(input);
+    try {
+      return compact(stream, output_dir);
+    } finally {
+      stream.close();
+    }
+  }
+  
+  /**
+   * Rolls up the records in the stream. The stream is not closed.
+   * @param input The non-null input stream.
+   * @param output_dir The non-null directory to write the tiers to.
+   * @return The number of records merged by this run.
+   * @throws IOException if reading or writing failed.
+   * @throws IllegalArgumentException if a record was out of order or a 
+   * cell could not be read.
+   * @throws IllegalStateException if the checkpoint was written for other
+   * tiers.
+   */
+  public long compact(final InputStream input, final File output_dir) 
+      throws IOException {
+    if (input == null || output_dir == null) {
+      throw new IllegalArgumentException("Input and output directory cannot "
+          + "be null.");
+    }
+    if (!output_dir.isDirectory() && !output_dir.mkdirs()) {
+      throw new IOException("Unable to create " + output_dir);
+    }
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(input));
+    final File checkpoint = new File(output_dir, CHECKPOINT_FILE);
+    final Tier[] tiers = new Tier[widths.length];
+    for (int i = 0; i < widths.length; i++) {
+      tiers[i] = new Tier(widths[i]);
+    }
+    
+    long consumed = 0;
+    if (checkpoint.exists()) {
+      consumed = restore(checkpoint, tiers);
+      for (long i = 0; i < consumed; i++) {
+        if (readRecord(in) == null) {
+          throw new IllegalStateException("Input ended before the " 
+              + consumed + " records in the checkpoint.");
+        }
+      }
+    }
+    long merged = 0;
+    try {
+      for (final Tier tier : tiers) {
+        tier.open(new File(output_dir, "rollup-" + label(tier.width) 
+            + ".bin"));
+      }
+      long latest = Long.MIN_VALUE;
+      Record record;
+      while ((record = readRecord(in)) != null) {
+        if (record.timestamp < latest) {
+          throw new IllegalArgumentException("Record for " + record.series 
+              + " at " + record.timestamp + " is earlier than " + latest);
+        }
+        latest = record.timestamp;
+        for (final Tier tier : tiers) {
+          tier.add(record);
+        }
+        consumed++;
+        merged++;
+        if (consumed % checkpoint_interval == 0) {
+          checkpoint(checkpoint, tiers, consumed);
+        }
+      }
+      for (final Tier tier : tiers) {
+        tier.flush();
+      }
+    } catch (IOException e) {
+      closeAll(tiers, e);
+      throw e;
+    } catch (RuntimeException e) {
+      closeAll(tiers, e);
+      throw e;
+    } catch (Error e) {
+      closeAll(tiers, e);
+      throw e;
+    }
+    closeAll(tiers, null);
+    if (checkpoint.exists() && !checkpoint.delete()) {
+      throw new IOException("Unable to delete " + checkpoint);
+    }
+    return merged;
+  }
+  
+  /**
+   * Closes every tier, even if an earlier one failed to close.
+   * @param tiers The tiers to close.
+   * @param failure The exception that aborted the compaction, if any. Close
+   * failures are attached to it as suppressed exceptions.
+   * @throws IOException if a tier failed to close and there was no earlier
+   * failure. Later close failures are suppressed by the first.
+   */
+  private static void closeAll(final Tier[] tiers, final Throwable failure) 
+      throws IOException {
+    IOException first = null;
+    for (final Tier tier : tiers) {
+      try {
+        tier.close();
+      } catch (IOException e) {
+        if (failure != null) {
+          failure.addSuppressed(e);
+        } else if (first == null) {
+          first = e;
+        } else {
+          first.addSuppressed(e);
+        }
+      }
+    }
+    if (first != null) {
+      throw first;
+    }
+  }
+  
+  /**
+   * Writes a record in the format read by the compactor.
+   * @param out The non-null stream to write to.
+   * @param series The non-null series key.
+   * @param timestamp The timestamp in milliseconds.
+   * @param cell The non-null encoded cell.
+   * @throws IOException if writing failed.
+   */
+  public static void writeRecord(final DataOutputStream out, 
+                                 final String series, 
+                                 final long timestamp, 
+                                 final byte[] cell) throws IOException {
+    out.writeUTF(series);
+    out.writeLong(timestamp);
+    out.writeInt(cell.length);
+    out.write(cell);
+  }
+  
+  /**
+   * Reads a record written by 
+   * {@link #writeRecord(DataOutputStream, String, long, byte[])}.
+   * @param in The non-null stream to read from.
+   * @return The record or null at the end of the stream.
+   * @throws IOException if reading failed or the record was truncated.
+   */
+  public static Record readRecord(final DataInputStream in) 
+      throws IOException {
+    final String series;
+    try {
+      series = in.readUTF();
+    } catch (EOFException e) {
+      return null;
+    }
+    final long timestamp = in.readLong();
+    final int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid cell length " + length + " for " 
+          + series);
+    }
+    final byte[] cell = new byte[length];
+    in.readFully(cell);
+    return new Record(series, timestamp, cell);
+  }
+  
+  /**
+   * @param width A tier width in milliseconds.
+   * @return A short label for the width, e.g. 1h or 1d.
+   */
+  static String label(final long width) {
+    if (width % DAY == 0) {
+      return (width / DAY) + "d";
+    }
+    if (width % HOUR == 0) {
+      return (width / HOUR) + "h";
+    }
+    if (width % 60000 == 0) {
+      return (width / 60000) + "m";
+    }
+    return width + "ms";
+  }
+  
+  /**
+   * Writes the open intervals and output lengths to a temp file and moves 
+   * it over the checkpoint.
+   * @param checkpoint The checkpoint file.
+   * @param tiers The tiers.
+   * @param consumed The number of input records consumed.
+   * @throws IOException if writing failed.
+   */
+  private void checkpoint(final File checkpoint, 
+                          final Tier[] tiers, 
+                          final long consumed) throws IOException {
+    final File temp = new File(checkpoint.getPath() + ".tmp");
+    final FileOutputStream file = new FileOutputStream(temp);
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(file));
+      out.writeByte(CHECKPOINT_VERSION);
+      out.writeLong(consumed);
+      out.writeInt(tiers.length);
+      for (final Tier tier : tiers) {
+        out.writeLong(tier.width);
+        out.writeLong(tier.length());
+        out.writeLong(tier.start);
+        out.writeInt(tier.open.size());
+        for (final Entry<String, TDigestAccumulator> entry : 
+            tier.open.entrySet()) {
+          final byte[] partial = entry.getValue().encodeBuffered();
+          out.writeUTF(entry.getKey());
+          out.writeInt(partial.length);
+          out.write(partial);
+        }
+      }
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+    Files.move(temp.toPath(), checkpoint.toPath(), 
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Restores the open intervals from the checkpoint and truncates the 
+   * outputs to their checkpointed lengths.
+   * @param checkpoint The checkpoint file.
+   * @param tiers The tiers to restore.
+   * @return The number of input records consumed.
+   * @throws IOException if reading failed.
+   * @throws IllegalStateException if the checkpoint was for other tiers.
+   */
+  private long restore(final File checkpoint, final Tier[] tiers) 
+      throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(checkpoint)));
+    try {
+      final byte version = in.readByte();
+      if (version != CHECKPOINT_VERSION) {
+        throw new IllegalStateException("Unknown checkpoint version " 
+            + version);
+      }
+      final long consumed = in.readLong();
+      final int count = in.readInt();
+      if (count != tiers.length) {
+        throw new IllegalStateException("Checkpoint has " + count 
+            + " tiers but " + tiers.length + " are configured.");
+      }
+      for (final Tier tier : tiers) {
+        final long width = in.readLong();
+        if (width != tier.width) {
+          throw new IllegalStateException("Checkpoint has tier " 
+              + label(width) + " but " + label(tier.width) 
+              + " is configured.");
+        }
+        tier.restored_length = in.readLong();
+        tier.start = in.readLong();
+        final int open = in.readInt();
+        for (int i = 0; i < open; i++) {
+          final String series = in.readUTF();
+          final byte[] partial = new byte[in.readInt()];
+          in.readFully(partial);
+          final TDigestAccumulator accumulator = 
+              codec.newAccumulator(compression);
+          accumulator.add(partial, false);
+          tier.open.put(series, accumulator);
+        }
+      }
+      return consumed;
+    } finally {
+      in.close();
+    }
+  }
+  
+  /** A record of the input or output. */
+  public static final class Record {
+    /** The series key. */
+    private final String series;
+    
+    /** The timestamp in milliseconds. */
+    private final long timestamp;
+    
+    /** The encoded cell. */
+    private final byte[] cell;
+    
+    /**
+     * Default ctor.
+     * @param series The series key.
+     * @param timestamp The timestamp in milliseconds.
+     * @param cell The encoded cell.
+     */
+    public Record(final String series, 
+                  final long timestamp, 
+                  final byte[] cell) {
+      this.series = series;
+      this.timestamp = timestamp;
+      this.cell = cell;
+    }
+    
+    /** @return The series key. */
+    public String series() {
+      return series;
+    }
+    
+    /** @return The timestamp in milliseconds. */
+    public long timestamp() {
+      return timestamp;
+    }
+    
+    /** @return The encoded cell. */
+    public byte[] cell() {
+      return cell;
+    }
+  }
+  
+  /** The open intervals and output of one tier. */
+  private final class Tier {
+    /** The width of the tier in milliseconds. */
+    private final long width;
+    
+    /** The open interval of every series, sorted for stable output. */
+    private final Map<String, TDigestAccumulator> open = Maps.newTreeMap();
+    
+    /** The start of the open intervals. As the input is in time order, all
+     * series share the same interval. */
+    private long start = Long.MIN_VALUE;
+    
+    /** The output length to truncate to when restoring, -1 for none. */
+    private long restored_length = -1;
+    
+    /** The output file. */
+    private FileOutputStream file;
+    
+    /** The buffered output. */
+    private DataOutputStream out;
+    
+    private Tier(final long width) {
+      this.width = width;
+    }
+    
+    /**
+     * Opens the output, truncating it to the restored length or empty.
+     * @param output The output file.
+     * @throws IOException if the file could not be opened.
+     */
+    private void open(final File output) throws IOException {
+      final RandomAccessFile truncate = new RandomAccessFile(output, "rw");
+      try {
+        truncate.setLength(Math.max(restored_length, 0));
+      } finally {
+        truncate.close();
+      }
+      file = new FileOutputStream(output, true);
+      out = new DataOutputStream(new BufferedOutputStream(file));
+    }
+    
+    /**
+     * Adds the record to its series' interval, first flushing the open 
+     * intervals if the record starts a new one.
+     * @param record The record to add.
+     * @throws IOException if writing failed.
+     */
+    private void add(final Record record) throws IOException {
+      final long interval = record.timestamp - 
+          Math.floorMod(record.timestamp, width);
+      if (interval != start) {
+        flush();
+        start = interval;
+      }
+      TDigestAccumulator accumulator = open.get(record.series);
+      if (accumulator == null) {
+        accumulator = codec.newAccumulator(compression);
+        open.put(record.series, accumulator);
+      }
+      accumulator.add(record.cell, includes_id);
+    }
+    
+    /**
+     * Encodes and writes the open intervals.
+     * @throws IOException if writing failed.
+     */
+    private void flush() throws IOException {
+      for (final Entry<String, TDigestAccumulator> entry : open.entrySet()) {
+        writeRecord(out, entry.getKey(), start, 
+            codec.encode(entry.getValue().finish(), includes_id));
+      }
+      open.clear();
+    }
+    
+    /**
+     * @return The length of the output after flushing the buffer.
+     * @throws IOException if writing failed.
+     */
+    private long length() throws IOException {
+      out.flush();
+      file.getFD().sync();
+      return file.getChannel().size();
+    }
+    
+    /** Closes the output. */
+    private void close() throws IOException {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+}
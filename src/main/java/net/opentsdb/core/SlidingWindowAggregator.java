@@ -0,0 +1,294 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import net.opentsdb.core.Histogram;
+
+/**
+ * Maintains the sum of the digests in a sliding window, e.g. for a rolling
+ * one hour p99 evaluated every minute. As digests can't be subtracted, the
+ * window is kept in two stacks: new digests are pushed on the back stack 
+ * and folded into a running back aggregate while the front stack holds the
+ * older digests, each with the aggregate of itself and every newer digest 
+ * in the front stack. Evicting pops the front and, only when the front is
+ * empty, flips the back stack over by computing the suffix aggregates once.
+ * The window sum is then the front top's aggregate plus the back aggregate
+ * so each step merges a constant number of digests, amortized, instead of 
+ * the whole window.
+ * <p>
+ * Windows may be bounded by the number of digests, by time or both. 
+ * Timestamps are in the caller's units and must not decrease.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 2.4
+ */
+public final class SlidingWindowAggregator {
+  
+  /** The ID of the resulting histograms. */
+  private final int id;
+  
+  /** The compression of the aggregates. */
+  private final double compression;
+  
+  /** The maximum number of digests in the window, 0 for no limit. */
+  private final int max_count;
+  
+  /** The width of the window in timestamp units, 0 for no limit. */
+  private final long width;
+  
+  /** The number of centroids to buffer in the back aggregate. */
+  private final int buffer_size;
+  
+  /** The older entries, oldest first, with suffix aggregates. */
+  private final ArrayDeque<Entry> front;
+  
+  /** The newer entries, oldest first. */
+  private final ArrayDeque<Entry> back;
+  
+  /** The running aggregate of the back stack. */
+  private final CentroidMerger back_aggregate;
+  
+  /** Scratch space for merging. */
+  private final CentroidMerger scratch;
+  
+  /** The latest timestamp seen. */
+  private long latest = Long.MIN_VALUE;
+  
+  /**
+   * Default ctor.
+   * @param id The ID of the resulting histograms within the TSD.
+   * @param compression The compression of the aggregates.
+   * @param max_count The maximum number of digests in the window or 0 to
+   * bound the window by time only.
+   * @param width The width of the window in timestamp units, e.g. 
+   * milliseconds, or 0 to bound the window by count only. A digest is 
+   * evicted once the latest timestamp is at least its timestamp plus the 
+   * width.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255,
+   * the compression was not positive, a bound was negative or both bounds
+   * were 0.
+   */
+  public SlidingWindowAggregator(final int id, 
+                                 final double compression, 
+                                 final int max_count,
+                                 final long width) {
+    if (id < 0 || id > 255) {
+      throw new IllegalArgumentException("ID must be between 0 and 255");
+    }
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    if (max_count < 0 || width < 0) {
+      throw new IllegalArgumentException("Window bounds cannot be negative.");
+    }
+    if (max_count == 0 && width == 0) {
+      throw new IllegalArgumentException("Window must be bounded by count, "
+          + "time or both.");
+    }
+    this.id = id;
+    this.compression = compression;
+    this.max_count = max_count;
+    this.width = width;
+    buffer_size = (int) Math.ceil(compression) 
+        * TDigestAccumulator.DEFAULT_BUFFER_FACTOR;
+    front = new ArrayDeque<Entry>();
+    back = new ArrayDeque<Entry>();
+    back_aggregate = new CentroidMerger(buffer_size);
+    scratch = new CentroidMerger(buffer_size);
+  }
+  
+  /**
+   * Adds a digest to the window and evicts any that fall out of it.
+   * @param timestamp The timestamp of the digest, not less than the 
+   * previous.
+   * @param histogram A non-null {@link MergingTDigestImplementation} or 
+   * {@link ArrayTDigestImplementation}.
+   * @throws IllegalArgumentException if the histogram was null or of another
+   * type or the timestamp was earlier than the latest.
+   */
+  public void add(final long timestamp, final Histogram histogram) {
+    if (timestamp < latest) {
+      throw new IllegalArgumentException("Timestamp " + timestamp 
+          + " is earlier than the latest " + latest);
+    }
+    scratch.reset();
+    if (histogram instanceof MergingTDigestImplementation) {
+      ((MergingTDigestImplementation) histogram).addTo(scratch);
+    } else if (histogram instanceof ArrayTDigestImplementation) {
+      scratch.add(((ArrayTDigestImplementation) histogram).centroids());
+    } else {
+      throw new IllegalArgumentException("Incoming histogram was not a "
+          + "t-digest: " + (histogram == null ? null : histogram.getClass()));
+    }
+    final Entry entry = new Entry(timestamp, snapshot(scratch));
+    back.addLast(entry);
+    add(back_aggregate, entry.digest);
+    if (back_aggregate.size() >= buffer_size) {
+      back_aggregate.compress(compression);
+    }
+    advance(timestamp);
+  }
+  
+  /**
+   * Moves the end of the window forward without adding a digest, evicting
+   * those that fall out of it.
+   * @param timestamp The new end of the window. Ignored if earlier than the
+   * latest timestamp.
+   */
+  public void advance(final long timestamp) {
+    if (timestamp > latest) {
+      latest = timestamp;
+    }
+    while (size() > 0 && expired(oldest())) {
+      evict();
+    }
+  }
+  
+  /**
+   * Returns the sum of the digests in the window.
+   * @return A new histogram, empty if the window is empty.
+   */
+  public MergingTDigestImplementation result() {
+    final long start = System.nanoTime();
+    scratch.reset();
+    int digests = 0;
+    if (!front.isEmpty()) {
+      add(scratch, front.peekFirst().aggregate);
+      digests++;
+    }
+    if (!back.isEmpty()) {
+      scratch.add(back_aggregate);
+      digests++;
+    }
+    final MergingTDigestImplementation histogram = 
+        new MergingTDigestImplementation(id);
+    histogram.setDigest(scratch.toDigest(compression));
+    TDigestStats.merged(start, digests, scratch.size());
+    return histogram;
+  }
+  
+  /** @return The number of digests in the window. */
+  public int size() {
+    return front.size() + back.size();
+  }
+  
+  /** Removes all digests from the window. */
+  public void clear() {
+    front.clear();
+    back.clear();
+    back_aggregate.reset();
+    latest = Long.MIN_VALUE;
+  }
+  
+  /** @return The timestamp of the oldest digest. */
+  private long oldest() {
+    return front.isEmpty() ? back.peekFirst().timestamp 
+        : front.peekFirst().timestamp;
+  }
+  
+  /**
+   * @param timestamp The timestamp of a digest.
+   * @return True if the digest is outside the window.
+   */
+  private boolean expired(final long timestamp) {
+    if (max_count > 0 && size() > max_count) {
+      return true;
+    }
+    return width > 0 && latest - timestamp >= width;
+  }
+  
+  /** Removes the oldest digest, flipping the back stack if needed. */
+  private void evict() {
+    if (front.isEmpty()) {
+      flip();
+    }
+    front.removeFirst();
+  }
+  
+  /**
+   * Moves the back stack onto the front, newest first, computing the 
+   * suffix aggregate of every entry.
+   */
+  private void flip() {
+    CentroidIndex suffix = null;
+    final Iterator<Entry> iterator = back.descendingIterator();
+    while (iterator.hasNext()) {
+      final Entry entry = iterator.next();
+      if (suffix == null) {
+        suffix = entry.digest;
+      } else {
+        scratch.reset();
+        add(scratch, entry.digest);
+        add(scratch, suffix);
+        scratch.compress(compression);
+        suffix = snapshot(scratch);
+      }
+      entry.aggregate = suffix;
+      front.addFirst(entry);
+    }
+    back.clear();
+    back_aggregate.reset();
+  }
+  
+  /**
+   * Compresses the merger and copies its centroids.
+   * @param merger The merger to snapshot.
+   * @return An immutable copy of the centroids.
+   */
+  private CentroidIndex snapshot(final CentroidMerger merger) {
+    final int size = merger.compress(compression);
+    return new CentroidIndex(merger.means(), merger.weights(), size, 
+        merger.min(), merger.max());
+  }
+  
+  /**
+   * Adds the centroids and range of a snapshot to a merger.
+   * @param merger The merger to add to.
+   * @param digest The snapshot to add.
+   */
+  private static void add(final CentroidMerger merger, 
+                          final CentroidIndex digest) {
+    if (digest.size() < 1) {
+      return;
+    }
+    merger.updateRange(digest.min(), digest.max());
+    final double[] means = digest.means();
+    final double[] weights = digest.weights();
+    for (int i = 0; i < digest.size(); i++) {
+      merger.add(means[i], weights[i]);
+    }
+  }
+  
+  /** A digest in the window. */
+  private static final class Entry {
+    /** The timestamp of the digest. */
+    private final long timestamp;
+    
+    /** The compressed centroids of the digest. */
+    private final CentroidIndex digest;
+    
+    /** The sum of this digest and all newer ones in the front stack. Only
+     * set once the entry is moved to the front. */
+    private CentroidIndex aggregate;
+    
+    private Entry(final long timestamp, final CentroidIndex digest) {
+      this.timestamp = timestamp;
+      this.digest = digest;
+    }
+  }
+}
@@ -0,0 +1,436 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+/**
+ * Merges an unbounded number of digests within a fixed budget for the 
+ * centroid buffer while compressing only once, like {@link CentroidMerger}.
+ * Each input's centroids are staged, then moved into the buffer and 
+ * whenever the buffer is full, part way through an input if need be, it
+ * is sorted and appended as a run to a temp file. {@link #finish()} maps 
+ * the file back in once, in segments of up to {@link #SEGMENT_BYTES}, 
+ * merges the runs with a heap over the run cursors and compresses the 
+ * merged stream in a single pass with the same size bound as 
+ * {@link CentroidMerger#compress(double)}.
+ * <p>
+ * The buffer, including the scratch space for sorting it, never grows past
+ * the budget. On top of it are the staged centroids of a single input, a 
+ * small write buffer and a cursor per run. The inputs themselves are held
+ * by the caller and aren't counted. The mappings are dropped once the 
+ * merge is done and are unmapped when collected.
+ * <p>
+ * Not thread safe. Call {@link #close()} to delete the spill file if 
+ * {@link #finish()} isn't called.
+ *
+ * @since 2.4
+ */
+final class SpillingCentroidMerger {
+
+  /** The file space used per centroid, a mean and a weight. */
+  static final int BYTES_PER_CENTROID = 16;
+  
+  /** The heap used per buffered centroid, including the sort scratch. */
+  static final int HEAP_BYTES_PER_CENTROID = 32;
+  
+  /** The smallest budget accepted. */
+  static final long MIN_BYTES = 1024;
+  
+  /** The largest mapping of the spill file. A multiple of a centroid. */
+  static final int SEGMENT_BYTES = 1 << 30;
+  
+  /** Shift and mask to find a file offset's segment and position. */
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+  
+  /** The size of the buffer runs are written through. */
+  private static final int WRITE_BUFFER_BYTES = 8192;
+  
+  /** The buffered centroids. */
+  private final CentroidMerger merger;
+  
+  /** The centroids of the input being added. */
+  private final CentroidMerger staging;
+  
+  /** The compression of the result. */
+  private final double compression;
+  
+  /** The maximum number of centroids to buffer. */
+  private final int max_centroids;
+  
+  /** The directory to create the spill file in, null for the default. */
+  private final File spill_dir;
+  
+  /** The smallest value seen by the inputs. */
+  private double min = Double.POSITIVE_INFINITY;
+  
+  /** The largest value seen by the inputs. */
+  private double max = Double.NEGATIVE_INFINITY;
+  
+  /** The total weight of the spilled centroids. */
+  private double spilled_weight;
+  
+  /** The spill file, created on the first spill. */
+  private File file;
+  
+  /** The open spill file. */
+  private RandomAccessFile spill;
+  
+  /** Reused to write runs, allocated on the first spill. */
+  private ByteBuffer write_buffer;
+  
+  /** The number of bytes spilled. */
+  private long spilled_bytes;
+  
+  /** The number of centroids in each spilled run. */
+  private int[] run_sizes = new int[16];
+  
+  /** The number of runs spilled. */
+  private int runs;
+  
+  /**
+   * Default ctor.
+   * @param compression The compression of the result.
+   * @param max_bytes The heap budget for buffered centroids.
+   * @param spill_dir An optional directory for the spill file, the system 
+   * temp directory if null.
+   * @throws IllegalArgumentException if the budget was less than 
+   * {@link #MIN_BYTES}.
+   */
+  SpillingCentroidMerger(final double compression, 
+                         final long max_bytes, 
+                         final File spill_dir) {
+    if (max_bytes < MIN_BYTES) {
+      throw new IllegalArgumentException("Budget of " + max_bytes 
+          + " bytes must be at least " + MIN_BYTES + " bytes.");
+    }
+    this.compression = compression;
+    this.spill_dir = spill_dir;
+    max_centroids = (int) Math.min(Integer.MAX_VALUE / BYTES_PER_CENTROID, 
+        max_bytes / HEAP_BYTES_PER_CENTROID);
+    merger = new CentroidMerger(
+        Math.min(max_centroids, (int) Math.ceil(compression) * 2), 
+        max_centroids);
+    staging = new CentroidMerger((int) Math.ceil(compression) * 2);
+  }
+  
+  /**
+   * Adds the centroids of the histogram, spilling if the budget is reached.
+   * @param histogram A non-null merging or array t-digest histogram.
+   * @throws IllegalStateException if spilling failed.
+   */
+  void add(final Histogram histogram) {
+    MergingTDigestImplementation.addTo(histogram, staging);
+    transfer();
+  }
+  
+  /**
+   * Adds the centroids of the digest, spilling if the budget is reached.
+   * @param digest A non-null digest.
+   * @throws IllegalStateException if spilling failed.
+   */
+  void add(final TDigest digest) {
+    staging.add(digest);
+    transfer();
+  }
+  
+  /**
+   * Merges the spilled runs with the buffered centroids, compresses once and
+   * deletes the spill file.
+   * @return A new digest with the merged centroids.
+   * @throws IllegalStateException if reading the spill file failed.
+   */
+  TDigest finish() {
+    try {
+      if (runs == 0) {
+        return merger.toDigest(compression);
+      }
+      if (merger.size() > 0) {
+        spillRun();
+      }
+      return mergeRuns();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read spilled centroids "
+          + "from " + file, e);
+    } finally {
+      close();
+    }
+  }
+  
+  /** Closes and deletes the spill file, if any. */
+  void close() {
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException e) {
+        // nothing we can do, it's deleted below
+      }
+      spill = null;
+    }
+    if (file != null) {
+      file.delete();
+      file = null;
+    }
+  }
+  
+  /** @return The number of runs spilled so far. */
+  int runs() {
+    return runs;
+  }
+  
+  /** @return The number of bytes spilled so far. */
+  long spilledBytes() {
+    return spilled_bytes;
+  }
+  
+  /** @return The number of centroids the buffer has room for. */
+  int bufferCapacity() {
+    return merger.capacity();
+  }
+  
+  /**
+   * Moves the staged centroids into the buffer, spilling each time it's 
+   * full, and clears the staging area.
+   * @throws IllegalStateException if spilling failed.
+   */
+  private void transfer() {
+    final int count = staging.size();
+    if (count > 0) {
+      staging.sort();
+      merger.updateRange(staging.min(), staging.max());
+      final double[] means = staging.means();
+      final double[] weights = staging.weights();
+      for (int i = 0; i < count; i++) {
+        if (merger.size() >= max_centroids) {
+          spillRun();
+        }
+        merger.add(means[i], weights[i]);
+      }
+    }
+    staging.reset();
+  }
+  
+  /**
+   * Sorts the buffer, appends it to the spill file through the write 
+   * buffer and resets the buffer.
+   * @throws IllegalStateException if writing failed.
+   */
+  private void spillRun() {
+    merger.sort();
+    final int count = merger.size();
+    final long size = (long) count * BYTES_PER_CENTROID;
+    try {
+      if (spill == null) {
+        file = File.createTempFile("tdigest-spill-", ".bin", spill_dir);
+        file.deleteOnExit();
+        spill = new RandomAccessFile(file, "rw");
+        write_buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+      }
+      final FileChannel channel = spill.getChannel();
+      final double[] means = merger.means();
+      final double[] weights = merger.weights();
+      for (int i = 0; i < count; i++) {
+        if (write_buffer.remaining() < BYTES_PER_CENTROID) {
+          write(channel);
+        }
+        write_buffer.putDouble(means[i]);
+        write_buffer.putDouble(weights[i]);
+        spilled_weight += weights[i];
+      }
+      write(channel);
+    } catch (IOException e) {
+      close();
+      throw new IllegalStateException("Failed to spill centroids to " 
+          + file, e);
+    }
+    if (merger.min() < min) {
+      min = merger.min();
+    }
+    if (merger.max() > max) {
+      max = merger.max();
+    }
+    if (runs >= run_sizes.length) {
+      final int[] temp = new int[run_sizes.length * 2];
+      System.arraycopy(run_sizes, 0, temp, 0, runs);
+      run_sizes = temp;
+    }
+    run_sizes[runs++] = count;
+    spilled_bytes += size;
+    merger.reset();
+  }
+  
+  /**
+   * Writes out and clears the write buffer.
+   * @param channel The spill file channel.
+   * @throws IOException if writing failed.
+   */
+  private void write(final FileChannel channel) throws IOException {
+    write_buffer.flip();
+    while (write_buffer.hasRemaining()) {
+      channel.write(write_buffer);
+    }
+    write_buffer.clear();
+  }
+  
+  /**
+   * Streams the runs through a k-way merge into a single compression pass.
+   * @return The merged digest.
+   * @throws IOException if mapping the file failed.
+   */
+  private TDigest mergeRuns() throws IOException {
+    final FileChannel channel = spill.getChannel();
+    final MappedByteBuffer[] segments = new MappedByteBuffer[
+        (int) ((spilled_bytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+    for (int i = 0; i < segments.length; i++) {
+      final long offset = (long) i * SEGMENT_BYTES;
+      segments[i] = channel.map(MapMode.READ_ONLY, offset, 
+          Math.min(SEGMENT_BYTES, spilled_bytes - offset));
+    }
+    
+    // the file offset of the next centroid and the end of each run, the 
+    // current mean of each run and a min-heap of run indices.
+    final long[] positions = new long[runs];
+    final long[] ends = new long[runs];
+    final double[] heads = new double[runs];
+    final int[] heap = new int[runs];
+    int heap_size = 0;
+    long offset = 0;
+    for (int run = 0; run < runs; run++) {
+      positions[run] = offset;
+      offset += (long) run_sizes[run] * BYTES_PER_CENTROID;
+      ends[run] = offset;
+      if (positions[run] < ends[run]) {
+        heads[run] = read(segments, positions[run]);
+        heap[heap_size] = run;
+        siftUp(heap, heads, heap_size++);
+      }
+    }
+    
+    // the same rule as CentroidMerger#compress, applied as a stream.
+    final CentroidMerger result = new CentroidMerger(
+        (int) Math.ceil(compression) * 2);
+    result.updateRange(min, max);
+    final double total = spilled_weight;
+    final double normalizer = compression / (Math.PI * total);
+    double weight_so_far = 0;
+    double current_mean = 0;
+    double current_weight = 0;
+    boolean first = true;
+    while (heap_size > 0) {
+      final int run = heap[0];
+      final double mean = read(segments, positions[run]);
+      final double weight = read(segments, positions[run] + 8);
+      positions[run] += BYTES_PER_CENTROID;
+      if (positions[run] < ends[run]) {
+        heads[run] = read(segments, positions[run]);
+      } else {
+        heap[0] = heap[--heap_size];
+      }
+      siftDown(heap, heads, heap_size);
+      
+      if (first) {
+        current_mean = mean;
+        current_weight = weight;
+        first = false;
+        continue;
+      }
+      final double proposed = current_weight + weight;
+      final double z = proposed * normalizer;
+      final double q0 = weight_so_far / total;
+      final double q2 = (weight_so_far + proposed) / total;
+      if (z * z <= q0 * (1 - q0) && z * z <= q2 * (1 - q2)) {
+        current_mean += (mean - current_mean) * weight / proposed;
+        current_weight = proposed;
+      } else {
+        result.add(current_mean, current_weight);
+        weight_so_far += current_weight;
+        current_mean = mean;
+        current_weight = weight;
+      }
+    }
+    if (!first) {
+      result.add(current_mean, current_weight);
+    }
+    if (result.size() < 1) {
+      return new MergingDigest(compression);
+    }
+    // already compressed by the stream so build the digest as is.
+    return CompactEncoding.toDigest(compression, min, max, result.means(), 
+        result.weights(), result.size(), false);
+  }
+  
+  /**
+   * Reads a double from the mapped segments. Centroids never straddle a
+   * segment as segments are a multiple of a centroid's size.
+   * @param segments The mapped segments.
+   * @param offset The offset in the file.
+   * @return The value.
+   */
+  private static double read(final MappedByteBuffer[] segments, 
+                             final long offset) {
+    return segments[(int) (offset >>> SEGMENT_SHIFT)]
+        .getDouble((int) (offset & SEGMENT_MASK));
+  }
+  
+  /** Restores the heap order after adding the entry at the index. */
+  private static void siftUp(final int[] heap, 
+                             final double[] heads, 
+                             int index) {
+    final int run = heap[index];
+    while (index > 0) {
+      final int parent = (index - 1) >>> 1;
+      if (heads[heap[parent]] <= heads[run]) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = run;
+  }
+  
+  /** Restores the heap order after the root changed. */
+  private static void siftDown(final int[] heap, 
+                               final double[] heads, 
+                               final int size) {
+    if (size == 0) {
+      return;
+    }
+    final int run = heap[0];
+    int index = 0;
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+        child++;
+      }
+      if (heads[run] <= heads[heap[child]]) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = run;
+  }
+}
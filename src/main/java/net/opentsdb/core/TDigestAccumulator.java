@@ -0,0 +1,245 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+
+import net.opentsdb.core.Histogram;
+
+/**
+ * Sums t-digests one at a time, e.g. straight from scanner results, without
+ * collecting the inputs in a list first. Centroids are read from encoded 
+ * cells or decoded histograms into a fixed size primitive buffer that is 
+ * compressed before an input that doesn't fit, the way {@link 
+ * com.tdunning.math.stats.MergingDigest} buffers incoming values, so memory
+ * stays constant no matter how many inputs are added. Each input is staged
+ * in a scratch buffer first and compressed itself if it's larger than the
+ * room left after compressing.
+ * <p>
+ * Not thread safe. The accumulator may be reused after {@link #finish()}.
+ *
+ * @since 2.4
+ */
+public final class TDigestAccumulator {
+  
+  /** The default buffer size as a multiple of the compression. */
+  public static final int DEFAULT_BUFFER_FACTOR = 10;
+  
+  /** The ID of the resulting histograms. */
+  private final int id;
+  
+  /** The compression of the result. */
+  private final double compression;
+  
+  /** The number of centroids to buffer before compressing. */
+  private final int buffer_size;
+  
+  /** The buffer. */
+  private final CentroidMerger merger;
+  
+  /** Holds the centroids of an encoded input until it's fully parsed. */
+  private final CentroidMerger scratch;
+  
+  /** The number of inputs added since the last finish. */
+  private int inputs;
+  
+  /** When the first input was added, for stats. */
+  private long start;
+  
+  /**
+   * Ctor with the default buffer size.
+   * @param id The ID of the resulting histograms within the TSD.
+   * @param compression The compression of the result.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255
+   * or the compression was not positive.
+   */
+  public TDigestAccumulator(final int id, final double compression) {
+    this(id, compression, 
+        (int) Math.ceil(compression) * DEFAULT_BUFFER_FACTOR);
+  }
+  
+  /**
+   * Default ctor.
+   * @param id The ID of the resulting histograms within the TSD.
+   * @param compression The compression of the result.
+   * @param buffer_size The number of centroids to buffer before 
+   * compressing. Larger buffers compress less often.
+   * @throws IllegalArgumentException if the ID was not a value from 0 to 255,
+   * the compression was not positive or the buffer could not hold at least
+   * four times the compression in centroids.
+   */
+  public TDigestAccumulator(final int id, 
+                            final double compression, 
+                            final int buffer_size) {
+    if (id < 0 || id > 255) {
+      throw new IllegalArgumentException("ID must be between 0 and 255");
+    }
+    if (compression <= 0) {
+      throw new IllegalArgumentException("Compression must be greater than "
+          + "zero.");
+    }
+    if (buffer_size < Math.ceil(compression) * 4) {
+      throw new IllegalArgumentException("Buffer size must be at least 4 "
+          + "times the compression.");
+    }
+    this.id = id;
+    this.compression = compression;
+    this.buffer_size = buffer_size;
+    merger = new CentroidMerger(buffer_size);
+    scratch = new CentroidMerger((int) Math.ceil(compression) * 2);
+  }
+  
+  /**
+   * Adds an encoded digest in any format the codecs read.
+   * @param raw The non-null encoded digest.
+   * @param includes_id Whether or not the first byte is the ID.
+   * @throws IllegalArgumentException if the data was null, too short or in
+   * an unrecognized format.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  public void add(final byte[] raw, final boolean includes_id) {
+    final int offset = includes_id ? 1 : 0;
+    if (raw == null || raw.length < 8 + offset) {
+      throw new IllegalArgumentException("Raw data cannot be null or less "
+          + "than 8 bytes.");
+    }
+    add(ByteBuffer.wrap(raw, offset, raw.length - offset));
+  }
+  
+  /**
+   * Adds the encoded digest at the buffer's position, advancing it. The 
+   * centroids are only added once the whole digest was read so a malformed
+   * input leaves the sum untouched.
+   * @param buf A non-null buffer positioned after the ID, if any.
+   * @throws IllegalArgumentException if the buffer was null or the format 
+   * was not recognized.
+   * @throws java.nio.BufferUnderflowException if the data was truncated.
+   */
+  public void add(final ByteBuffer buf) {
+    if (buf == null) {
+      throw new IllegalArgumentException("Buffer cannot be null.");
+    }
+    scratch.reset();
+    try {
+      CompactEncoding.readCentroids(buf, scratch);
+    } catch (RuntimeException e) {
+      TDigestStats.DECODE_FAILURES.increment();
+      throw e;
+    }
+    added();
+  }
+  
+  /**
+   * Adds a decoded histogram.
+   * @param histogram A non-null {@link MergingTDigestImplementation} or 
+   * {@link ArrayTDigestImplementation}.
+   * @throws IllegalArgumentException if the histogram was null or of another
+   * type.
+   */
+  public void add(final Histogram histogram) {
+    if (!(histogram instanceof MergingTDigestImplementation) && 
+        !(histogram instanceof ArrayTDigestImplementation)) {
+      throw new IllegalArgumentException("Incoming histogram was not a "
+          + "t-digest: " + (histogram == null ? null : histogram.getClass()));
+    }
+    // merging histograms may hold encoded bytes that are only parsed now
+    scratch.reset();
+    MergingTDigestImplementation.addTo(histogram, scratch);
+    added();
+  }
+  
+  /**
+   * Returns the sum of the inputs and resets the accumulator.
+   * @return A new histogram, empty if nothing was added.
+   */
+  public MergingTDigestImplementation finish() {
+    final MergingTDigestImplementation histogram = 
+        new MergingTDigestImplementation(id);
+    histogram.setDigest(merger.toDigest(compression));
+    finished();
+    return histogram;
+  }
+  
+  /**
+   * Returns the sum of the inputs in the small encoding written by
+   * {@link MergingTDigestImplementation#histogram(boolean)}, without 
+   * building a digest, and resets the accumulator.
+   * @param include_id Whether or not to prefix the ID.
+   * @return The encoded sum.
+   */
+  public byte[] finishEncoded(final boolean include_id) {
+    final int count = merger.compress(compression);
+    final byte[] encoded = CompactEncoding.encodeSmall(compression, 
+        merger.min(), merger.max(), merger.means(), merger.weights(), count,
+        include_id, id);
+    finished();
+    return encoded;
+  }
+  
+  /**
+   * Compresses the buffer and encodes the sum so far without resetting, 
+   * e.g. to checkpoint a partial result. Adding the encoding to a fresh
+   * accumulator restores exactly the same centroids and range.
+   * @return The verbose, double precision encoding of the sum so far, 
+   * without the ID.
+   */
+  byte[] encodeBuffered() {
+    final int count = merger.compress(compression);
+    return CompactEncoding.encodeVerbose(compression, merger.min(), 
+        merger.max(), merger.means(), merger.weights(), count);
+  }
+  
+  /** @return The number of inputs added since the last finish. */
+  public int inputs() {
+    return inputs;
+  }
+  
+  /** @return The number of centroids to buffer before compressing. */
+  public int bufferSize() {
+    return buffer_size;
+  }
+  
+  /** @return The number of centroids currently buffered. */
+  int buffered() {
+    return merger.size();
+  }
+  
+  /**
+   * Moves the parsed input from the scratch buffer into the buffer and 
+   * counts it. Compresses the buffer first if the input doesn't fit, then 
+   * the input if it still doesn't. Both compress to at most twice the 
+   * compression in centroids so the buffer never exceeds its size.
+   */
+  private void added() {
+    if (inputs == 0) {
+      start = System.nanoTime();
+    }
+    if (merger.size() + scratch.size() > buffer_size) {
+      merger.compress(compression);
+      if (merger.size() + scratch.size() > buffer_size) {
+        scratch.compress(compression);
+      }
+    }
+    merger.add(scratch);
+    inputs++;
+  }
+  
+  /** Records stats and resets the buffer. */
+  private void finished() {
+    if (inputs > 0) {
+      TDigestStats.merged(start, inputs, merger.size());
+    }
+    merger.reset();
+    inputs = 0;
+  }
+}
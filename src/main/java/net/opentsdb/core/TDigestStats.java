@@ -0,0 +1,166 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Process wide counters for the t-digest plugin. Counters are striped 
+ * {@link LongAdder}s so recording from many query threads doesn't contend 
+ * and only the periodic stats collection pays for summing them. Counts 
+ * are reported as monotonic totals like the TSD's own counters, while 
+ * latency percentiles cover only the time since the previous collection.
+ *
+ * @since 2.4
+ */
+final class TDigestStats {
+  
+  /** The prefix of every metric reported. */
+  static final String PREFIX = "histogram.tdigest.";
+  
+  /** The number of data points decoded. */
+  static final LongAdder DECODES = new LongAdder();
+  
+  /** The number of encoded bytes decoded, including IDs. */
+  static final LongAdder DECODE_BYTES = new LongAdder();
+  
+  /** The number of data points that failed to decode. */
+  static final LongAdder DECODE_FAILURES = new LongAdder();
+  
+  /** The number of centroids deserialized. */
+  static final LongAdder DECODED_CENTROIDS = new LongAdder();
+  
+  /** The number of data points encoded. */
+  static final LongAdder ENCODES = new LongAdder();
+  
+  /** The number of bytes encoded, including IDs. */
+  static final LongAdder ENCODE_BYTES = new LongAdder();
+  
+  /** The number of aggregate calls. */
+  static final LongAdder AGGREGATIONS = new LongAdder();
+  
+  /** The number of digests merged by aggregate calls. */
+  static final LongAdder MERGED_DIGESTS = new LongAdder();
+  
+  /** The number of centroids produced by aggregate calls. */
+  static final LongAdder MERGED_CENTROIDS = new LongAdder();
+  
+  /** The number of centroid runs spilled by bounded aggregations. */
+  static final LongAdder SPILLED_RUNS = new LongAdder();
+  
+  /** The number of bytes spilled by bounded aggregations. */
+  static final LongAdder SPILLED_BYTES = new LongAdder();
+  
+  /** The time spent deserializing digests. */
+  static final LatencyHistogram DECODE_LATENCY = new LatencyHistogram();
+  
+  /** The time spent in aggregate calls. */
+  static final LatencyHistogram MERGE_LATENCY = new LatencyHistogram();
+  
+  private TDigestStats() {
+    // static counters
+  }
+  
+  /**
+   * Records a deserialized digest.
+   * @param start_nanos The {@link System#nanoTime()} before decoding.
+   * @param centroids The number of centroids decoded.
+   */
+  static void decoded(final long start_nanos, final int centroids) {
+    DECODE_LATENCY.add(System.nanoTime() - start_nanos);
+    DECODED_CENTROIDS.add(centroids);
+  }
+  
+  /**
+   * Records an aggregate call.
+   * @param start_nanos The {@link System#nanoTime()} before merging.
+   * @param digests The number of digests merged into the result.
+   * @param centroids The number of centroids in the result.
+   */
+  static void merged(final long start_nanos, 
+                     final int digests, 
+                     final int centroids) {
+    MERGE_LATENCY.add(System.nanoTime() - start_nanos);
+    AGGREGATIONS.increment();
+    MERGED_DIGESTS.add(digests);
+    MERGED_CENTROIDS.add(centroids);
+  }
+  
+  /**
+   * Reports the counters and the latency percentiles since the previous 
+   * collection in microseconds.
+   * @param collector The non-null collector to record to.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record(PREFIX + "decode.count", DECODES.sum());
+    collector.record(PREFIX + "decode.bytes", DECODE_BYTES.sum());
+    collector.record(PREFIX + "decode.failures", DECODE_FAILURES.sum());
+    collector.record(PREFIX + "decode.centroids", DECODED_CENTROIDS.sum());
+    collector.record(PREFIX + "encode.count", ENCODES.sum());
+    collector.record(PREFIX + "encode.bytes", ENCODE_BYTES.sum());
+    collector.record(PREFIX + "aggregate.count", AGGREGATIONS.sum());
+    collector.record(PREFIX + "aggregate.digests", MERGED_DIGESTS.sum());
+    collector.record(PREFIX + "aggregate.centroids", MERGED_CENTROIDS.sum());
+    collector.record(PREFIX + "aggregate.spilled_runs", SPILLED_RUNS.sum());
+    collector.record(PREFIX + "aggregate.spilled_bytes", SPILLED_BYTES.sum());
+    recordLatency(collector, "decode", DECODE_LATENCY);
+    recordLatency(collector, "aggregate", MERGE_LATENCY);
+  }
+  
+  /** Clears every counter, e.g. between tests sharing the JVM. */
+  static void reset() {
+    DECODES.reset();
+    DECODE_BYTES.reset();
+    DECODE_FAILURES.reset();
+    DECODED_CENTROIDS.reset();
+    ENCODES.reset();
+    ENCODE_BYTES.reset();
+    AGGREGATIONS.reset();
+    MERGED_DIGESTS.reset();
+    MERGED_CENTROIDS.reset();
+    SPILLED_RUNS.reset();
+    SPILLED_BYTES.reset();
+    DECODE_LATENCY.reset();
+    MERGE_LATENCY.reset();
+  }
+  
+  /**
+   * Reports the usual latency percentiles in microseconds over the interval
+   * since the previous collection, plus the number of latencies recorded.
+   * @param collector The collector to record to.
+   * @param name The name of the operation.
+   * @param latency The latency histogram.
+   */
+  private static void recordLatency(final StatsCollector collector, 
+                                    final String name, 
+                                    final LatencyHistogram latency) {
+    final long[] counts = latency.interval();
+    long total = 0;
+    for (final long count : counts) {
+      total += count;
+    }
+    collector.record(PREFIX + name + ".latency_count", total);
+    collector.record(PREFIX + name + ".latency_50pct", 
+        LatencyHistogram.percentile(counts, 50) / 1000);
+    collector.record(PREFIX + name + ".latency_75pct", 
+        LatencyHistogram.percentile(counts, 75) / 1000);
+    collector.record(PREFIX + name + ".latency_90pct", 
+        LatencyHistogram.percentile(counts, 90) / 1000);
+    collector.record(PREFIX + name + ".latency_95pct", 
+        LatencyHistogram.percentile(counts, 95) / 1000);
+    collector.record(PREFIX + name + ".latency_99pct", 
+        LatencyHistogram.percentile(counts, 99) / 1000);
+  }
+}
@@ -0,0 +1,105 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tdunning.math.stats.TDigest;
+
+import net.opentsdb.utils.Config;
+
+public class TestArrayTDigestCodec {
+
+  private byte[] raw;
+  
+  @Before
+  public void before() throws Exception {
+    final TDigest digest = TestCompactEncoding.latencies(1000);
+    raw = TestArrayTDigestImplementation.smallBytes(digest);
+  }
+  
+  @Test
+  public void decodeEncode() throws Exception {
+    final ArrayTDigestTDigestCodec codec = new ArrayTDigestTDigestCodec();
+    codec.setId(42);
+    
+    final Histogram histo = codec.decode(raw, false);
+    assertTrue(histo instanceof ArrayTDigestImplementation);
+    assertEquals(42, histo.getId());
+    assertArrayEquals(raw, codec.encode(histo, false));
+    
+    final byte[] with_id = codec.encode(histo, true);
+    assertEquals(42, with_id[0]);
+    assertArrayEquals(raw, codec.encode(codec.decode(with_id, true), false));
+    
+    final ByteBuffer buf = ByteBuffer.wrap(with_id);
+    assertArrayEquals(raw, codec.encode(codec.decodeBuffer(buf, true), false));
+    assertEquals(0, buf.position());
+    
+    // interchangeable with the merging codec
+    final MergingTDigestTDigestCodec merging = 
+        new MergingTDigestTDigestCodec();
+    merging.setId(42);
+    assertArrayEquals(raw, merging.encode(codec.decode(raw, false), false));
+    assertArrayEquals(raw, codec.encode(merging.decode(raw, false), false));
+    
+    try {
+      codec.decode(new byte[] { 1 }, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.decodeBuffer(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.encode(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void compactEncoding() throws Exception {
+    final ArrayTDigestTDigestCodec codec = new ArrayTDigestTDigestCodec();
+    codec.setId(42);
+    final Config config = new Config(false);
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "compact_encoding", "true");
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "summary_header", "true");
+    codec.configure(config);
+    assertTrue(codec.isCompactEncoding());
+    assertTrue(codec.isSummaryHeader());
+    
+    final byte[] encoded = codec.encode(codec.decode(raw, false), true);
+    assertEquals(CompactEncoding.FORMAT_SUMMARY_FLOAT, encoded[1]);
+    assertTrue(encoded.length < raw.length);
+    
+    final MergingTDigestTDigestCodec merging = 
+        new MergingTDigestTDigestCodec();
+    merging.setId(42);
+    assertArrayEquals(raw, merging.encode(merging.decode(encoded, true), 
+        false));
+    
+    codec.setSummaryHeader(false);
+    codec.setCompactEncoding(false, false);
+    assertArrayEquals(raw, codec.encode(codec.decode(encoded, true), false));
+  }
+}
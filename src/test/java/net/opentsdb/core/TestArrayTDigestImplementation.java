@@ -0,0 +1,226 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestArrayTDigestImplementation {
+  
+  private TDigest digest;
+  private byte[] raw;
+  
+  @Before
+  public void before() throws Exception {
+    digest = TestCompactEncoding.latencies(10000);
+    raw = smallBytes(digest);
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    final ArrayTDigestImplementation histo = 
+        new ArrayTDigestImplementation(42);
+    assertEquals(42, histo.getId());
+    try {
+      histo.percentile(50);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+    try {
+      histo.histogram(false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+    
+    assertEquals(0, new ArrayTDigestImplementation(42, 100).getCount());
+    
+    try {
+      new ArrayTDigestImplementation(256);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new ArrayTDigestImplementation(42, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void fromHistogram() throws Exception {
+    final ArrayTDigestImplementation histo = 
+        new ArrayTDigestImplementation(42);
+    histo.fromHistogram(raw, false);
+    assertEquals(digest.centroidCount(), histo.centroidCount());
+    assertEquals(digest.compression(), histo.getCompression(), 0);
+    assertEquals(10000, histo.getCount());
+    assertEquals(digest.getMin(), histo.getMin(), 0);
+    assertEquals(digest.getMax(), histo.getMax(), 0);
+    
+    // same bytes as the digest
+    assertArrayEquals(raw, histo.histogram(false));
+    final byte[] with_id = histo.histogram(true);
+    assertEquals(42, with_id[0]);
+    histo.fromHistogram(with_id, true);
+    assertArrayEquals(raw, histo.histogram(false));
+    
+    // and the same values as the merging implementation
+    final MergingTDigestImplementation merging = 
+        new MergingTDigestImplementation(42);
+    merging.fromHistogram(raw, false);
+    final double[] ps = new double[] { 0, 1, 25, 50, 90, 99, 99.9, 100 };
+    assertArrayEquals(merging.percentiles(ps), histo.percentiles(ps), 0);
+    assertEquals(merging.percentile(99), histo.percentile(99), 0);
+    assertEquals(merging.percentiles(Lists.newArrayList(50.0, 99.0)), 
+        histo.percentiles(Lists.newArrayList(50.0, 99.0)));
+    assertEquals(merging.cdf(20), histo.cdf(20), 0);
+    assertEquals(merging.getSum(), histo.getSum(), 0.0001);
+    
+    // compact formats
+    histo.fromHistogram(histo.compactHistogram(true, false, true), true);
+    assertArrayEquals(raw, histo.histogram(false));
+    
+    try {
+      histo.fromHistogram(new byte[] { 0, 0, 0, 9, 0, 0, 0, 0 }, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histo.fromHistogram(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void aggregate() throws Exception {
+    final Random rnd = new Random(1);
+    final List<Histogram> arrays = Lists.newArrayList();
+    final List<Histogram> mergings = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      final TDigest input = MergingDigest.createDigest(100);
+      for (int j = 0; j < 500; j++) {
+        input.add(rnd.nextGaussian() * 10 + i);
+      }
+      final byte[] bytes = smallBytes(input);
+      final ArrayTDigestImplementation array = 
+          new ArrayTDigestImplementation(42);
+      array.fromHistogram(bytes, false);
+      arrays.add(array);
+      final MergingTDigestImplementation merging = 
+          new MergingTDigestImplementation(42);
+      merging.fromHistogram(bytes, false);
+      mergings.add(merging);
+    }
+    
+    final ArrayTDigestImplementation sum = 
+        new ArrayTDigestImplementation(42, 100);
+    sum.aggregate(arrays, HistogramAggregation.SUM);
+    final MergingTDigestImplementation expected = 
+        new MergingTDigestImplementation(42);
+    expected.setDigest(MergingDigest.createDigest(100));
+    expected.aggregate(mergings, HistogramAggregation.SUM);
+    assertEquals(10000, sum.getCount());
+    assertEquals(expected.percentile(50), sum.percentile(50), 0.5);
+    assertEquals(expected.percentile(99), sum.percentile(99), 0.5);
+    
+    // mixed inputs, one at a time
+    final ArrayTDigestImplementation mixed = 
+        new ArrayTDigestImplementation(42, 100);
+    for (int i = 0; i < arrays.size(); i++) {
+      mixed.aggregate(i % 2 == 0 ? arrays.get(i) : mergings.get(i), 
+          HistogramAggregation.SUM);
+    }
+    assertEquals(10000, mixed.getCount());
+    assertEquals(expected.percentile(50), mixed.percentile(50), 0.5);
+    
+    // into itself
+    mixed.aggregate(mixed, HistogramAggregation.SUM);
+    assertEquals(20000, mixed.getCount());
+    
+    // and the merging implementation accepts arrays the same way.
+    final MergingTDigestImplementation reverse = 
+        new MergingTDigestImplementation(42);
+    reverse.setDigest(MergingDigest.createDigest(100));
+    reverse.aggregate(arrays, HistogramAggregation.SUM);
+    assertEquals(10000, reverse.getCount());
+    assertEquals(sum.percentile(50), reverse.percentile(50), 0.5);
+    assertEquals(sum.percentile(99), reverse.percentile(99), 0.5);
+    assertEquals(sum.getMin(), reverse.getMin(), 0.0);
+    assertEquals(sum.getMax(), reverse.getMax(), 0.0);
+    reverse.aggregate(arrays.get(0), HistogramAggregation.SUM);
+    assertEquals(10500, reverse.getCount());
+    
+    try {
+      mixed.aggregate(arrays.get(0), null);
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) { }
+    try {
+      mixed.aggregate(new SimpleHistogram(42), HistogramAggregation.SUM);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void getClone() throws Exception {
+    final ArrayTDigestImplementation histo = 
+        new ArrayTDigestImplementation(42);
+    histo.fromHistogram(raw, false);
+    
+    final ArrayTDigestImplementation copy = 
+        (ArrayTDigestImplementation) histo.clone();
+    assertNotSame(histo, copy);
+    assertArrayEquals(raw, copy.histogram(false));
+    
+    copy.aggregate(histo, HistogramAggregation.SUM);
+    assertEquals(20000, copy.getCount());
+    assertEquals(10000, histo.getCount());
+    assertArrayEquals(raw, histo.histogram(false));
+  }
+  
+  @Test
+  public void getHistogram() throws Exception {
+    assertEquals(0, new ArrayTDigestImplementation(42, 100).getHistogram()
+        .size());
+    
+    final Random rnd = new Random(42);
+    final TDigest digest = MergingDigest.createDigest(100);
+    for (int i = 0; i < 10000; i++) {
+      digest.add(Math.exp(rnd.nextGaussian()));
+    }
+    final ArrayTDigestImplementation histogram = 
+        new ArrayTDigestImplementation(42);
+    histogram.fromHistogram(smallBytes(digest), false);
+    final MergingTDigestImplementation merging = 
+        new MergingTDigestImplementation(42);
+    merging.fromHistogram(smallBytes(digest), false);
+    
+    final double[] boundaries = HistogramBuckets.logBoundaries(0.1, 10, 20);
+    assertArrayEquals(merging.bucketCounts(boundaries), 
+        histogram.bucketCounts(boundaries), 0.0001);
+    assertEquals(merging.getHistogram(), histogram.getHistogram());
+  }
+  
+  static byte[] smallBytes(final TDigest digest) {
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    return buf.array();
+  }
+}
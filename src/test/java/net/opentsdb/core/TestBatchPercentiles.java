@@ -0,0 +1,190 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestBatchPercentiles {
+  
+  private static final double[] PERCENTILES = 
+      new double[] { 99.9, 50, 0, 25, 75, 100, 99, 1 };
+
+  private List<byte[]> cells;
+  private List<Histogram> histograms;
+  
+  @Before
+  public void before() throws Exception {
+    final Random rnd = new Random(42);
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    cells = Lists.newArrayList();
+    histograms = Lists.newArrayList();
+    for (int i = 0; i < 700; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      // vary the sizes, including a single value.
+      final int values = i % 50 == 0 ? 1 : rnd.nextInt(5000) + 2;
+      for (int j = 0; j < values; j++) {
+        digest.add(Math.exp(rnd.nextGaussian() + i % 5));
+      }
+      final MergingTDigestImplementation histogram = 
+          new MergingTDigestImplementation(42);
+      histogram.setDigest(digest);
+      // mix the encodings.
+      codec.setCompactEncoding(i % 3 == 1, false);
+      codec.setSummaryHeader(i % 3 == 2);
+      final byte[] cell = codec.encode(histogram, true);
+      cells.add(cell);
+      
+      if (i % 2 == 0) {
+        histograms.add(codec.decode(cell, true));
+      } else {
+        final ArrayTDigestImplementation array = 
+            new ArrayTDigestImplementation(42);
+        array.fromHistogram(cell, true);
+        histograms.add(array);
+      }
+    }
+  }
+  
+  @Test
+  public void evaluate() throws Exception {
+    final double[][] results = BatchPercentiles.evaluate(histograms, 
+        PERCENTILES, null);
+    assertExpected(results);
+  }
+  
+  @Test
+  public void evaluateEncoded() throws Exception {
+    final double[][] results = BatchPercentiles.evaluateEncoded(cells, true, 
+        PERCENTILES, null);
+    assertExpected(results);
+  }
+  
+  @Test
+  public void evaluateParallel() throws Exception {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertExpected(BatchPercentiles.evaluateEncoded(cells, true, 
+          PERCENTILES, pool));
+      assertExpected(BatchPercentiles.evaluate(histograms, PERCENTILES, 
+          pool));
+      
+      final MergingTDigestTDigestCodec codec = 
+          new MergingTDigestTDigestCodec();
+      codec.setParallelAggregation(pool, 2);
+      assertExpected(codec.percentiles(cells, true, PERCENTILES));
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void uncompressedDigests() throws Exception {
+    final Random rnd = new Random(42);
+    final List<Histogram> uncompressed = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int j = 0; j < 1000; j++) {
+        digest.add(10 + rnd.nextDouble() * 10);
+      }
+      digest.compress();
+      // buffered outside of the compressed range.
+      digest.add(i * 0.25);
+      digest.add(50 + i);
+      final MergingTDigestImplementation histogram = 
+          new MergingTDigestImplementation(42);
+      histogram.setDigest(digest);
+      uncompressed.add(histogram);
+    }
+    final double[] sorted = new double[] { 0, 1, 50, 99, 100 };
+    final double[][] results = BatchPercentiles.evaluate(uncompressed, 
+        sorted, null);
+    for (int i = 0; i < uncompressed.size(); i++) {
+      final Histogram histogram = uncompressed.get(i);
+      assertEquals(i * 0.25, results[i][0], 0.0);
+      assertEquals(50 + i, results[i][4], 0.0);
+      for (int j = 0; j < sorted.length; j++) {
+        assertEquals(histogram.percentile(sorted[j]), results[i][j], 0.0);
+      }
+    }
+  }
+  
+  @Test
+  public void emptyAndErrors() throws Exception {
+    assertEquals(0, BatchPercentiles.evaluateEncoded(
+        Lists.<byte[]>newArrayList(), true, PERCENTILES, null).length);
+    assertEquals(0, BatchPercentiles.evaluate(histograms, new double[0], 
+        null)[0].length);
+    
+    try {
+      BatchPercentiles.evaluate(histograms, new double[] { 101 }, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      BatchPercentiles.evaluate(histograms, new double[] { Double.NaN }, 
+          null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      BatchPercentiles.evaluate(histograms, null, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      BatchPercentiles.evaluate(null, PERCENTILES, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    final List<Histogram> bad = Lists.newArrayList(histograms);
+    bad.add(new SimpleHistogram(42));
+    try {
+      BatchPercentiles.evaluate(bad, PERCENTILES, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    final List<byte[]> bad_cells = Lists.newArrayList(cells);
+    bad_cells.add(new byte[] { 42, 1 });
+    try {
+      BatchPercentiles.evaluateEncoded(bad_cells, true, PERCENTILES, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  /** Compares against evaluating each histogram on its own. */
+  private void assertExpected(final double[][] results) {
+    assertEquals(histograms.size(), results.length);
+    for (int i = 0; i < histograms.size(); i++) {
+      final Histogram histogram = histograms.get(i);
+      final double[] expected = histogram instanceof ArrayTDigestImplementation
+          ? ((ArrayTDigestImplementation) histogram).percentiles(PERCENTILES)
+          : ((MergingTDigestImplementation) histogram).percentiles(
+              PERCENTILES);
+      assertEquals(PERCENTILES.length, results[i].length);
+      for (int j = 0; j < PERCENTILES.length; j++) {
+        assertEquals("digest " + i + " p" + PERCENTILES[j], expected[j], 
+            results[i][j], 0.0);
+      }
+      assertTrue(results[i][2] <= results[i][1]);
+    }
+  }
+}
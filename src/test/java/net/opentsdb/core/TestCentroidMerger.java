@@ -0,0 +1,92 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestCentroidMerger {
+
+  @Test
+  public void sortsRuns() throws Exception {
+    final CentroidMerger merger = new CentroidMerger(2);
+    merger.add(5, 1);
+    merger.add(6, 1);
+    merger.add(1, 1);
+    merger.add(7, 1);
+    merger.add(3, 1);
+    merger.add(2, 1);
+    
+    // no compression at this size.
+    assertEquals(6, merger.compress(100));
+    final double[] means = merger.means();
+    assertEquals(1, means[0], 0.0001);
+    assertEquals(2, means[1], 0.0001);
+    assertEquals(3, means[2], 0.0001);
+    assertEquals(5, means[3], 0.0001);
+    assertEquals(6, means[4], 0.0001);
+    assertEquals(7, means[5], 0.0001);
+    
+    merger.reset();
+    assertEquals(0, merger.size());
+    assertEquals(0, merger.compress(100));
+  }
+  
+  @Test
+  public void compressKeepsWeight() throws Exception {
+    final CentroidMerger merger = new CentroidMerger(16);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      merger.add(rnd.nextGaussian(), 1);
+    }
+    final int size = merger.compress(100);
+    assertTrue(size <= 200);
+    
+    double total = 0;
+    double last = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      total += merger.weights()[i];
+      assertTrue(merger.means()[i] >= last);
+      last = merger.means()[i];
+    }
+    assertEquals(10000, total, 0.0001);
+  }
+  
+  @Test
+  public void toDigest() throws Exception {
+    final Random rnd = new Random(42);
+    final TDigest expected = MergingDigest.createDigest(100);
+    final CentroidMerger merger = new CentroidMerger(16);
+    for (int i = 0; i < 500; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int x = 0; x < 50; x++) {
+        final double value = Math.exp(rnd.nextGaussian());
+        digest.add(value);
+        expected.add(value);
+      }
+      merger.add(digest);
+    }
+    
+    final TDigest merged = merger.toDigest(100);
+    assertEquals(25000, merged.size());
+    assertEquals(expected.quantile(0.5), merged.quantile(0.5), 0.05);
+    assertEquals(expected.quantile(0.99), merged.quantile(0.99), 0.5);
+  }
+}
@@ -0,0 +1,203 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestCompactEncoding {
+
+  @Test
+  public void roundTripFloats() throws Exception {
+    final TDigest digest = latencies(10000);
+    final TDigest legacy = fromSmallBytes(digest);
+    
+    final byte[] encoded = CompactEncoding.encode(legacy, false, 0, false);
+    assertEquals(CompactEncoding.FORMAT_FLOAT, encoded[0]);
+    assertTrue(encoded.length < legacy.smallByteSize());
+    
+    final TDigest decoded = CompactEncoding.decodeAny(
+        ByteBuffer.wrap(encoded));
+    assertSameCentroids(legacy, decoded);
+    assertEquals(legacy.getMin(), decoded.getMin(), 0);
+    assertEquals(legacy.getMax(), decoded.getMax(), 0);
+    assertEquals(legacy.compression(), decoded.compression(), 0);
+  }
+  
+  @Test
+  public void roundTripDoubles() throws Exception {
+    final TDigest digest = latencies(10000);
+    
+    byte[] encoded = CompactEncoding.encode(digest, true, 42, false);
+    assertEquals(42, encoded[0]);
+    assertEquals(CompactEncoding.FORMAT_DOUBLE, encoded[1]);
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    buf.position(1);
+    assertSameCentroids(digest, CompactEncoding.decodeAny(buf));
+    
+    // lossy floats
+    encoded = CompactEncoding.encode(digest, false, 42, true);
+    assertEquals(CompactEncoding.FORMAT_FLOAT, encoded[0]);
+    final TDigest decoded = CompactEncoding.decodeAny(
+        ByteBuffer.wrap(encoded));
+    assertEquals(digest.quantile(0.99), decoded.quantile(0.99), 0.0001);
+  }
+  
+  @Test
+  public void summaryHeader() throws Exception {
+    final TDigest digest = latencies(10000);
+    final TDigest legacy = fromSmallBytes(digest);
+    
+    byte[] encoded = CompactEncoding.encode(legacy, true, 42, false, true);
+    assertEquals(42, encoded[0]);
+    assertEquals(CompactEncoding.FORMAT_SUMMARY_FLOAT, encoded[1]);
+    assertEquals(CompactEncoding.encode(legacy, true, 42, false).length + 16,
+        encoded.length);
+    assertTrue(CompactEncoding.isCompact(encoded[1]));
+    assertTrue(CompactEncoding.hasSummary(encoded[1]));
+    
+    double sum = 0;
+    for (final Centroid centroid : legacy.centroids()) {
+      sum += centroid.mean() * centroid.count();
+    }
+    assertEquals(legacy.getMin(), CompactEncoding.headerMin(encoded, 1), 0);
+    assertEquals(legacy.getMax(), CompactEncoding.headerMax(encoded, 1), 0);
+    assertEquals(10000, CompactEncoding.headerCount(encoded, 1), 0);
+    assertEquals(sum, CompactEncoding.headerSum(encoded, 1), 0.0001);
+    assertEquals(legacy.centroidCount(), 
+        CompactEncoding.headerCentroids(encoded, 1));
+    
+    final ByteBuffer buf = ByteBuffer.wrap(encoded);
+    buf.position(1);
+    assertSameCentroids(legacy, CompactEncoding.decodeAny(buf));
+    
+    final CentroidMerger merger = new CentroidMerger(16);
+    CompactEncoding.readCentroids(
+        ByteBuffer.wrap(encoded, 1, encoded.length - 1), merger);
+    assertEquals(legacy.centroidCount(), merger.size());
+    
+    encoded = CompactEncoding.encode(digest, false, 42, false, true);
+    assertEquals(CompactEncoding.FORMAT_SUMMARY_DOUBLE, encoded[0]);
+    assertSameCentroids(digest, 
+        CompactEncoding.decodeAny(ByteBuffer.wrap(encoded)));
+    
+    // the min and max are at the same offsets in every format
+    final byte[] small = new byte[legacy.smallByteSize()];
+    legacy.asSmallBytes(ByteBuffer.wrap(small));
+    assertEquals(legacy.getMin(), CompactEncoding.headerMin(small, 0), 0);
+    assertEquals(legacy.getMax(), CompactEncoding.headerMax(small, 0), 0);
+    assertEquals(legacy.centroidCount(), 
+        CompactEncoding.headerCentroids(small, 0));
+    encoded = CompactEncoding.encode(digest, false, 42, false);
+    assertFalse(CompactEncoding.hasSummary(encoded[0]));
+    assertEquals(digest.getMax(), CompactEncoding.headerMax(encoded, 0), 0);
+  }
+  
+  @Test
+  public void negativeValues() throws Exception {
+    final TDigest digest = MergingDigest.createDigest(100);
+    digest.add(-42.5);
+    digest.add(-1);
+    digest.add(0);
+    digest.add(24.0);
+    final TDigest decoded = CompactEncoding.decodeAny(ByteBuffer.wrap(
+        CompactEncoding.encode(digest, false, 0, false)));
+    assertSameCentroids(digest, decoded);
+  }
+  
+  @Test
+  public void legacy() throws Exception {
+    final TDigest digest = latencies(100);
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    assertEquals(CompactEncoding.FORMAT_LEGACY, buf.array()[0]);
+    buf.flip();
+    assertSameCentroids(fromSmallBytes(digest), 
+        CompactEncoding.decodeAny(buf));
+  }
+  
+  @Test
+  public void malformed() throws Exception {
+    try {
+      CompactEncoding.decode(ByteBuffer.wrap(new byte[] { 0, 0, 0, 2 }));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    final byte[] encoded = CompactEncoding.encode(latencies(100), false, 0, 
+        false);
+    // claims more centroids than there are bytes
+    encoded[CompactEncoding.HEADER_SIZE] = 127;
+    try {
+      CompactEncoding.decode(ByteBuffer.wrap(encoded, 0, 
+          CompactEncoding.HEADER_SIZE + 10));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void varints() throws Exception {
+    final long[] values = new long[] { 0, 1, 127, 128, 16383, 16384, 
+        Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+    final ByteBuffer buf = ByteBuffer.allocate(128);
+    for (final long value : values) {
+      CompactEncoding.putVarint(buf, value);
+    }
+    buf.flip();
+    for (final long value : values) {
+      final int start = buf.position();
+      assertEquals(value, CompactEncoding.getVarint(buf));
+      assertEquals(CompactEncoding.varintSize(value), buf.position() - start);
+    }
+    assertEquals(-5, CompactEncoding.unZigZag(CompactEncoding.zigZag(-5)));
+    assertEquals(5, CompactEncoding.unZigZag(CompactEncoding.zigZag(5)));
+  }
+  
+  static TDigest latencies(final int count) {
+    final Random rnd = new Random(42);
+    final TDigest digest = MergingDigest.createDigest(100);
+    for (int i = 0; i < count; i++) {
+      digest.add(Math.exp(rnd.nextGaussian() + 3));
+    }
+    return digest;
+  }
+  
+  static TDigest fromSmallBytes(final TDigest digest) {
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    buf.flip();
+    return MergingDigest.fromBytes(buf);
+  }
+  
+  static void assertSameCentroids(final TDigest expected, 
+                                  final TDigest actual) {
+    assertEquals(expected.centroidCount(), actual.centroidCount());
+    final Iterator<Centroid> it = actual.centroids().iterator();
+    for (final Centroid centroid : expected.centroids()) {
+      final Centroid other = it.next();
+      assertEquals(centroid.mean(), other.mean(), 0);
+      assertEquals(centroid.count(), other.count());
+    }
+  }
+}
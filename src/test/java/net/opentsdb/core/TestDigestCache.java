@@ -0,0 +1,96 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestDigestCache {
+
+  @Test
+  public void ctor() throws Exception {
+    assertEquals(1024, new DigestCache(1024).maxBytes());
+    try {
+      new DigestCache(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void getPut() throws Exception {
+    final DigestCache cache = new DigestCache(1024 * 1024);
+    final TDigest digest = MergingDigest.createDigest(100);
+    final byte[] raw = new byte[] { 42, 0, 0, 0, 2, 1, 2, 3, 4, 5 };
+    
+    assertNull(cache.get(raw, 1, raw.length - 1));
+    cache.put(raw, 1, raw.length - 1, digest);
+    assertSame(digest, cache.get(raw, 1, raw.length - 1));
+    
+    // matched by content, not by array
+    final byte[] copy = new byte[] { 0, 0, 0, 2, 1, 2, 3, 4, 5 };
+    assertSame(digest, cache.get(copy, 0, copy.length));
+    copy[8] = 6;
+    assertNull(cache.get(copy, 0, copy.length));
+    assertNull(cache.get(raw, 1, raw.length - 2));
+    
+    assertEquals(2, cache.hits());
+    assertEquals(3, cache.misses());
+    assertEquals(0, cache.evictions());
+    assertEquals(1, cache.size());
+    
+    // the cache copies the slice so callers may reuse their buffers.
+    raw[5] = 9;
+    assertNull(cache.get(raw, 1, raw.length - 1));
+    assertSame(digest, cache.get(
+        new byte[] { 0, 0, 0, 2, 1, 2, 3, 4, 5 }, 0, 9));
+  }
+  
+  @Test
+  public void evictsByBytes() throws Exception {
+    final TDigest digest = MergingDigest.createDigest(100);
+    final int entry = DigestCache.retainedBytes(digest) + 4;
+    final DigestCache cache = new DigestCache(entry * 3);
+    for (int i = 0; i < 5; i++) {
+      cache.put(new byte[] { 0, 0, 0, (byte) i }, 0, 4, digest);
+    }
+    assertEquals(3, cache.size());
+    assertEquals(2, cache.evictions());
+    assertNull(cache.get(new byte[] { 0, 0, 0, 0 }, 0, 4));
+    assertSame(digest, cache.get(new byte[] { 0, 0, 0, 4 }, 0, 4));
+    
+    // larger compressions retain more
+    assertTrue(DigestCache.retainedBytes(MergingDigest.createDigest(200)) 
+        > DigestCache.retainedBytes(digest));
+  }
+  
+  @Test
+  public void keys() throws Exception {
+    final DigestCache.Key key = new DigestCache.Key(
+        new byte[] { 1, 2, 3, 4 }, 1, 2);
+    assertEquals(key, new DigestCache.Key(new byte[] { 2, 3 }, 0, 2));
+    assertEquals(key.hashCode(), 
+        new DigestCache.Key(new byte[] { 2, 3 }, 0, 2).hashCode());
+    assertFalse(key.equals(new DigestCache.Key(new byte[] { 2, 4 }, 0, 2)));
+    assertFalse(key.equals(new DigestCache.Key(new byte[] { 2, 3 }, 0, 1)));
+    assertFalse(key.equals(null));
+  }
+}
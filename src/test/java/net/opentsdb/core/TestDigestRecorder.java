@@ -0,0 +1,139 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestDigestRecorder {
+
+  @Test
+  public void ctor() throws Exception {
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    assertTrue(recorder.intervalStart() > 0);
+    
+    try {
+      new DigestRecorder(256, 100);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new DigestRecorder(42, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void record() throws Exception {
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    for (int i = 1; i <= 1000; i++) {
+      recorder.record(i);
+    }
+    recorder.record(42, 10);
+    
+    MergingTDigestImplementation histogram = recorder.intervalHistogram();
+    assertEquals(42, histogram.getId());
+    assertEquals(1010, histogram.getCount());
+    assertEquals(1, histogram.getMin(), 0.0);
+    assertEquals(1000, histogram.getMax(), 0.0);
+    assertEquals(1, histogram.percentile(0), 0.0);
+    assertEquals(1000, histogram.percentile(100), 0.0);
+    assertEquals(500, histogram.percentile(50), 10);
+    
+    // new interval is empty
+    histogram = recorder.intervalHistogram();
+    assertEquals(0, histogram.getCount());
+    
+    try {
+      recorder.record(Double.NaN);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      recorder.record(42, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void intervalEncoded() throws Exception {
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    for (int i = 1; i <= 1000; i++) {
+      recorder.record(i);
+    }
+    final byte[] encoded = recorder.intervalEncoded(true);
+    assertEquals(42, encoded[0]);
+    
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    final Histogram histogram = codec.decode(encoded, true);
+    assertEquals(1000, ((MergingTDigestImplementation) histogram).getCount());
+    assertEquals(990, histogram.percentile(99), 5);
+    assertEquals(1, ((MergingTDigestImplementation) histogram).getMin(), 0.0);
+    assertEquals(1000, ((MergingTDigestImplementation) histogram).getMax(), 
+        0.0);
+    
+    final byte[] empty = recorder.intervalEncoded(false);
+    assertEquals(0, ((MergingTDigestImplementation) 
+        codec.decode(empty, false)).getCount());
+  }
+  
+  @Test
+  public void concurrentIntervals() throws Exception {
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    final int threads = 4;
+    final int values = 100000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    for (int t = 0; t < threads; t++) {
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < values; i++) {
+              recorder.record(i % 1000);
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    
+    start.countDown();
+    long total = 0;
+    int intervals = 0;
+    while (done.getCount() > 0) {
+      final MergingTDigestImplementation histogram = 
+          recorder.intervalHistogram();
+      total += histogram.getCount();
+      intervals++;
+      Thread.sleep(1);
+    }
+    total += recorder.intervalHistogram().getCount();
+    assertEquals(null, error.get());
+    // nothing lost or counted twice across the swaps.
+    assertEquals((long) threads * values, total);
+    assertTrue(intervals > 0);
+  }
+}
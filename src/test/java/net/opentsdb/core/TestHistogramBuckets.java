@@ -0,0 +1,84 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestHistogramBuckets {
+
+  @Test
+  public void logBoundaries() throws Exception {
+    assertArrayEquals(new double[] { 1, 10, 100, 1000 }, 
+        HistogramBuckets.logBoundaries(1, 1000, 3), 1e-9);
+    assertArrayEquals(new double[] { 5, 5 }, 
+        HistogramBuckets.logBoundaries(5, 5, 1), 0.0);
+    
+    try {
+      HistogramBuckets.logBoundaries(0, 1000, 3);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      HistogramBuckets.logBoundaries(10, 1, 3);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      HistogramBuckets.logBoundaries(1, 1000, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void linearBoundaries() throws Exception {
+    assertArrayEquals(new double[] { -10, -5, 0, 5, 10 }, 
+        HistogramBuckets.linearBoundaries(-10, 10, 4), 1e-9);
+    
+    try {
+      HistogramBuckets.linearBoundaries(10, -10, 4);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      HistogramBuckets.linearBoundaries(Double.NEGATIVE_INFINITY, 10, 4);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void defaultBoundaries() throws Exception {
+    assertEquals(HistogramBuckets.DEFAULT_BUCKETS + 1, 
+        HistogramBuckets.defaultBoundaries(1, 1000).length);
+    // doubles per bucket over 32 buckets
+    assertEquals(65536, HistogramBuckets.defaultBoundaries(1, 
+        Math.pow(2, 32))[16], 1e-6);
+    assertEquals(0, HistogramBuckets.defaultBoundaries(-1, 1)[
+        HistogramBuckets.DEFAULT_BUCKETS / 2], 1e-9);
+    assertArrayEquals(new double[] { 42 }, 
+        HistogramBuckets.defaultBoundaries(42, 42), 0.0);
+  }
+  
+  @Test
+  public void toMap() throws Exception {
+    final Map<Double, Long> map = HistogramBuckets.toMap(
+        new double[] { 1, 2, 2 }, new double[] { 0.4, 0.4, 0.4, 0.8 });
+    assertEquals(3, map.size());
+    // rounded on the cumulative sum so the total is kept.
+    assertEquals(0, (long) map.get(1.0));
+    assertEquals(1, (long) map.get(2.0));
+    assertEquals(1, (long) map.get(Double.POSITIVE_INFINITY));
+  }
+}
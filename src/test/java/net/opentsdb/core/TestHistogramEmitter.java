@@ -0,0 +1,406 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestHistogramEmitter {
+  private static final Pattern VALUE = 
+      Pattern.compile("\"value\":\"([^\"]+)\"");
+  private static final Map<String, String> TAGS = 
+      ImmutableMap.of("host", "web01");
+  
+  private MergingTDigestTDigestCodec codec;
+  private HttpServer server;
+  private List<String> bodies;
+  private List<String> encodings;
+  private volatile int status;
+  
+  @Before
+  public void before() throws Exception {
+    codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    bodies = new CopyOnWriteArrayList<String>();
+    encodings = new CopyOnWriteArrayList<String>();
+    status = 204;
+    
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(HistogramEmitter.ENDPOINT, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        final String encoding = 
+            exchange.getRequestHeaders().getFirst("Content-Encoding");
+        encodings.add(String.valueOf(encoding));
+        final InputStream in = "gzip".equals(encoding) 
+            ? new GZIPInputStream(exchange.getRequestBody()) 
+            : exchange.getRequestBody();
+        bodies.add(new String(readFully(in), "UTF-8"));
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+  
+  @After
+  public void after() throws Exception {
+    server.stop(0);
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    try {
+      new HistogramEmitter(null, 4242, HistogramEmitter.Protocol.HTTP, 
+          codec, 10);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new HistogramEmitter("localhost", 0, HistogramEmitter.Protocol.HTTP, 
+          codec, 10);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new HistogramEmitter("localhost", 4242, null, codec, 10);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new HistogramEmitter("localhost", 4242, HistogramEmitter.Protocol.HTTP, 
+          null, 10);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new HistogramEmitter("localhost", 4242, HistogramEmitter.Protocol.HTTP, 
+          codec, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    final HistogramEmitter emitter = new HistogramEmitter("localhost", 4242, 
+        HistogramEmitter.Protocol.HTTP, codec, 10);
+    try {
+      emitter.setBatchSize(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.setFlushInterval(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    emitter.start();
+    try {
+      emitter.setBatchSize(10);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+    try {
+      emitter.start();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+    emitter.close();
+  }
+  
+  @Test
+  public void emitValidation() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(10);
+    try {
+      emitter.emit(null, 1L, TAGS, histogram(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys.lat", 1L, ImmutableMap.<String, String>of(), 
+          histogram(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys.lat", 1L, TAGS, (Histogram) null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys.lat", 1L, TAGS, new byte[0]);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys lat", 1L, TAGS, histogram(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys.lat", 1L, ImmutableMap.of("host", "web01\ndc=lga"), 
+          histogram(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      emitter.emit("sys.lat", 1L, ImmutableMap.of("host name", "web01"), 
+          histogram(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    assertEquals(0, emitter.queued());
+    emitter.close();
+    try {
+      emitter.emit("sys.lat", 1L, TAGS, histogram(1));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
+  @Test
+  public void httpBatches() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(100);
+    emitter.setBatchSize(10);
+    emitter.setFlushInterval(60000);
+    emitter.setOfferTimeout(10000);
+    emitter.start();
+    for (int i = 0; i < 25; i++) {
+      assertTrue(emitter.emit("sys.lat", 1346846400L + i, TAGS, 
+          histogram(i + 1)));
+    }
+    emitter.close();
+    
+    assertEquals(25, emitter.sent());
+    assertEquals(3, emitter.batches());
+    assertEquals(0, emitter.failed());
+    assertEquals(3, bodies.size());
+    int points = 0;
+    for (final String body : bodies) {
+      assertTrue(body.startsWith("[{\"metric\":\"sys.lat\",\"timestamp\":"));
+      assertTrue(body.endsWith("\"tags\":{\"host\":\"web01\"}}]"));
+      assertTrue(body.contains("\"id\":42"));
+      final Matcher matcher = VALUE.matcher(body);
+      while (matcher.find()) {
+        final Histogram histogram = codec.decode(
+            Base64.getDecoder().decode(matcher.group(1)), false);
+        points++;
+        assertEquals(points, histogram.percentile(100), 0.0001);
+      }
+    }
+    assertEquals(25, points);
+    assertEquals("null", encodings.get(0));
+  }
+  
+  @Test
+  public void httpGzip() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(100);
+    emitter.setGzip(true);
+    emitter.start();
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    recorder.record(42.5);
+    recorder.record(1);
+    recorder.record(24);
+    assertTrue(emitter.emit("sys.lat", 1346846400L, 
+        ImmutableMap.of("host", "web01"), recorder.intervalEncoded(false)));
+    emitter.close();
+    
+    assertEquals(1, emitter.sent());
+    assertEquals("gzip", encodings.get(0));
+    final String body = bodies.get(0);
+    assertTrue(body.contains("\"tags\":{\"host\":\"web01\"}"));
+    final Matcher matcher = VALUE.matcher(body);
+    assertTrue(matcher.find());
+    final Histogram histogram = codec.decode(
+        Base64.getDecoder().decode(matcher.group(1)), false);
+    assertEquals(42.5, histogram.percentile(100), 0.0001);
+  }
+  
+  @Test
+  public void httpFlushInterval() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(100);
+    emitter.setBatchSize(1000);
+    emitter.setFlushInterval(50);
+    emitter.start();
+    for (int i = 0; i < 3; i++) {
+      emitter.emit("sys.lat", 1346846400L, TAGS, histogram(i + 1));
+    }
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (emitter.sent() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    // sent by the timer, not the close
+    assertEquals(1, bodies.size());
+    assertEquals(3, emitter.sent());
+    emitter.close();
+    assertEquals(1, bodies.size());
+  }
+  
+  @Test
+  public void httpMaxBatchBytes() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(100);
+    emitter.setMaxBatchBytes(1);
+    for (int i = 0; i < 4; i++) {
+      emitter.emit("sys.lat", 1346846400L, TAGS, histogram(i + 1));
+    }
+    // never started so close sends from this thread
+    emitter.close();
+    assertEquals(4, emitter.batches());
+    assertEquals(4, bodies.size());
+  }
+  
+  @Test
+  public void httpFailure() throws Exception {
+    status = 500;
+    final HistogramEmitter emitter = httpEmitter(100);
+    emitter.start();
+    emitter.emit("sys.lat", 1346846400L, TAGS, histogram(1));
+    emitter.emit("sys.lat", 1346846400L, TAGS, histogram(2));
+    emitter.close();
+    assertEquals(0, emitter.sent());
+    assertEquals(2, emitter.failed());
+  }
+  
+  @Test
+  public void closeWhenStuck() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.removeContext(HistogramEmitter.ENDPOINT);
+    server.createContext(HistogramEmitter.ENDPOINT, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) { }
+        exchange.close();
+      }
+    });
+    final HistogramEmitter emitter = httpEmitter(1);
+    emitter.setBatchSize(1);
+    emitter.setTimeout(200);
+    emitter.start();
+    emitter.emit("sys.lat", 1L, TAGS, histogram(1));
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (emitter.queued() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    emitter.emit("sys.lat", 2L, TAGS, histogram(2));
+    
+    // returns even though the server never answers
+    emitter.close();
+    release.countDown();
+    assertEquals(0, emitter.sent());
+    assertEquals(2, emitter.failed() + emitter.dropped());
+  }
+  
+  @Test
+  public void backpressure() throws Exception {
+    final HistogramEmitter emitter = httpEmitter(2);
+    assertTrue(emitter.emit("sys.lat", 1L, TAGS, histogram(1)));
+    assertTrue(emitter.emit("sys.lat", 2L, TAGS, histogram(2)));
+    assertFalse(emitter.emit("sys.lat", 3L, TAGS, histogram(3)));
+    assertEquals(2, emitter.queued());
+    assertEquals(1, emitter.dropped());
+    
+    emitter.close();
+    assertEquals(2, emitter.sent());
+    assertEquals(0, emitter.queued());
+  }
+  
+  @Test
+  public void telnet() throws Exception {
+    final ServerSocket listener = new ServerSocket(0);
+    final List<String> lines = new CopyOnWriteArrayList<String>();
+    final Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final Socket socket = listener.accept();
+          final BufferedReader in = new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), "UTF-8"));
+          String line;
+          while ((line = in.readLine()) != null) {
+            lines.add(line);
+          }
+          socket.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    reader.start();
+    
+    final HistogramEmitter emitter = new HistogramEmitter("127.0.0.1", 
+        listener.getLocalPort(), HistogramEmitter.Protocol.TELNET, codec, 100);
+    emitter.setBatchSize(2);
+    emitter.start();
+    for (int i = 0; i < 5; i++) {
+      emitter.emit("sys.lat", 1346846400L + i, 
+          ImmutableMap.of("host", "web01", "dc", "lga"), histogram(i + 1));
+    }
+    emitter.close();
+    reader.join(10000);
+    listener.close();
+    
+    assertEquals(5, emitter.sent());
+    assertEquals(3, emitter.batches());
+    assertEquals(5, lines.size());
+    for (int i = 0; i < 5; i++) {
+      final String[] parts = lines.get(i).split(" ");
+      assertEquals(7, parts.length);
+      assertEquals("histogram", parts[0]);
+      assertEquals("sys.lat", parts[1]);
+      assertEquals(Long.toString(1346846400L + i), parts[2]);
+      assertEquals("42", parts[3]);
+      assertEquals("dc=lga", parts[5]);
+      assertEquals("host=web01", parts[6]);
+      final Histogram histogram = codec.decode(
+          Base64.getDecoder().decode(parts[4]), false);
+      assertEquals(i + 1, histogram.percentile(100), 0.0001);
+    }
+  }
+  
+  private HistogramEmitter httpEmitter(final int queue_size) {
+    return new HistogramEmitter("127.0.0.1", 
+        server.getAddress().getPort(), HistogramEmitter.Protocol.HTTP, codec, 
+        queue_size);
+  }
+  
+  /** @return A digest of the values 1 through max. */
+  private static Histogram histogram(final int max) {
+    final DigestRecorder recorder = new DigestRecorder(42, 100);
+    for (int i = 1; i <= max; i++) {
+      recorder.record(i);
+    }
+    return recorder.intervalHistogram();
+  }
+  
+  private static byte[] readFully(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int read;
+    while ((read = in.read(buf)) >= 0) {
+      out.write(buf, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
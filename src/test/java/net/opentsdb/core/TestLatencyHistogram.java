@@ -0,0 +1,96 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+  @Test
+  public void buckets() throws Exception {
+    for (long nanos = 0; nanos < 100000; nanos++) {
+      final int bucket = LatencyHistogram.bucket(nanos);
+      assertTrue(nanos <= LatencyHistogram.upperBound(bucket));
+      if (bucket > 0) {
+        assertTrue(nanos > LatencyHistogram.upperBound(bucket - 1));
+      }
+    }
+    final int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+    assertTrue(last < 64 * LatencyHistogram.SUB_BUCKETS);
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+  }
+  
+  @Test
+  public void percentile() throws Exception {
+    final LatencyHistogram latency = new LatencyHistogram();
+    assertEquals(0, latency.percentile(99));
+    
+    for (int i = 1; i <= 1000; i++) {
+      latency.add(i * 1000L);
+    }
+    latency.add(-5);
+    assertEquals(1001, latency.count());
+    
+    assertEquals(0, latency.percentile(0));
+    // within the 25% bucket resolution.
+    assertEquals(500000, latency.percentile(50), 500000 * 0.25);
+    assertEquals(990000, latency.percentile(99), 990000 * 0.25);
+    assertTrue(latency.percentile(100) >= 1000000);
+    
+    try {
+      latency.percentile(100.1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      latency.percentile(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void interval() throws Exception {
+    final LatencyHistogram latency = new LatencyHistogram();
+    for (int i = 0; i < 100; i++) {
+      latency.add(1000000);
+    }
+    long[] counts = latency.interval();
+    assertEquals(1000000, LatencyHistogram.percentile(counts, 50), 
+        1000000 * 0.25);
+    
+    // only the new latencies count towards the next interval
+    for (int i = 0; i < 10; i++) {
+      latency.add(1000);
+    }
+    counts = latency.interval();
+    assertEquals(1000, LatencyHistogram.percentile(counts, 99), 1000 * 0.25);
+    long total = 0;
+    for (final long count : counts) {
+      total += count;
+    }
+    assertEquals(10, total);
+    assertEquals(0, LatencyHistogram.percentile(latency.interval(), 50));
+    // lifetime totals are kept until reset
+    assertEquals(110, latency.count());
+    
+    latency.reset();
+    assertEquals(0, latency.count());
+    assertEquals(0, latency.percentile(50));
+    latency.add(1000);
+    assertEquals(1000, LatencyHistogram.percentile(latency.interval(), 50), 
+        1000 * 0.25);
+  }
+}
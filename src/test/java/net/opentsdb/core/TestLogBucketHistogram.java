@@ -0,0 +1,368 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestLogBucketHistogram {
+  
+  @Test
+  public void ctor() throws Exception {
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    assertEquals(42, histogram.getId());
+    assertEquals(0.01, histogram.getRelativeAccuracy(), 0.0);
+    assertEquals(2048, histogram.getMaxBuckets());
+    assertEquals(0, histogram.getCount());
+    assertTrue(Double.isNaN(histogram.percentile(50)));
+    
+    try {
+      new LogBucketHistogram(256);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new LogBucketHistogram(42, 0, 2048);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new LogBucketHistogram(42, 1, 2048);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new LogBucketHistogram(42, 0.01, 15);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new LogBucketHistogram(42).percentile(50);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
+  @Test
+  public void relativeAccuracy() throws Exception {
+    final Random rnd = new Random(42);
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    final double[] values = new double[100000];
+    double sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      // mix of negatives, zeros and a long tail.
+      values[i] = i % 100 == 0 ? 0 : (i % 10 == 0 ? -1 : 1) 
+          * Math.exp(rnd.nextGaussian() * 2);
+      histogram.add(values[i]);
+      sum += values[i];
+    }
+    Arrays.sort(values);
+    assertEquals(values.length, histogram.getCount());
+    assertEquals(sum, histogram.getSum(), 0.0001);
+    assertEquals(values[0], histogram.getMin(), 0.0);
+    assertEquals(values[values.length - 1], histogram.getMax(), 0.0);
+    assertEquals(values[0], histogram.percentile(0), 0.0);
+    assertEquals(values[values.length - 1], histogram.percentile(100), 0.0);
+    for (final double p : new double[] { 1, 5, 10, 25, 50, 75, 90, 99, 
+        99.9 }) {
+      final double expected = values[(int) (p / 100 * (values.length - 1))];
+      assertEquals("p" + p, expected, histogram.percentile(p), 
+          Math.abs(expected) * 0.01 + 1e-9);
+    }
+    
+    final List<Double> percentiles = 
+        histogram.percentiles(Lists.newArrayList(50.0, 99.0));
+    assertEquals(histogram.percentile(50), percentiles.get(0), 0.0);
+    assertEquals(histogram.percentile(99), percentiles.get(1), 0.0);
+    
+    try {
+      histogram.percentile(101);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histogram.add(Double.NaN);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histogram.add(42, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void percentilesSingleWalk() throws Exception {
+    final Random rnd = new Random(42);
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    assertTrue(Double.isNaN(histogram.percentiles(
+        Lists.newArrayList(50.0)).get(0)));
+    for (int i = 0; i < 1000; i++) {
+      histogram.add(rnd.nextGaussian() * 100);
+    }
+    histogram.add(0, 50);
+    
+    // unsorted with duplicates and both extremes.
+    final List<Double> ps = Lists.newArrayList(99.9, 0.0, 50.0, 100.0, 
+        1.0, 50.0, 47.5, 25.0, 75.0, 0.1);
+    final List<Double> percentiles = histogram.percentiles(ps);
+    assertEquals(ps.size(), percentiles.size());
+    for (int i = 0; i < ps.size(); i++) {
+      assertEquals(histogram.percentile(ps.get(i)), percentiles.get(i), 0.0);
+    }
+    for (int p = 0; p <= 100; p++) {
+      assertEquals(histogram.percentile(p), 
+          histogram.percentiles(Lists.newArrayList((double) p)).get(0), 0.0);
+    }
+    assertTrue(histogram.percentiles(Lists.<Double>newArrayList()).isEmpty());
+    
+    // positive values only, so the negative store was never allocated.
+    final LogBucketHistogram positive = new LogBucketHistogram(42, 0.01, 
+        2048);
+    for (int i = 1; i <= 1000; i++) {
+      positive.add(i);
+    }
+    final List<Double> results = positive.percentiles(ps);
+    for (int i = 0; i < ps.size(); i++) {
+      assertEquals(positive.percentile(ps.get(i)), results.get(i), 0.0);
+    }
+    
+    try {
+      histogram.percentiles(Lists.newArrayList(50.0, 100.5));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histogram.percentiles(Lists.newArrayList(-1.0));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void encodeDecode() throws Exception {
+    final Random rnd = new Random(42);
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    for (int i = 0; i < 10000; i++) {
+      histogram.add(rnd.nextGaussian() * 100);
+    }
+    histogram.add(0);
+    
+    final byte[] encoded = histogram.histogram(true);
+    assertEquals(42, encoded[0]);
+    final LogBucketHistogram decoded = new LogBucketHistogram(42);
+    decoded.fromHistogram(encoded, true);
+    assertEquals(histogram.getCount(), decoded.getCount());
+    assertEquals(histogram.getSum(), decoded.getSum(), 0.0);
+    assertEquals(histogram.getMin(), decoded.getMin(), 0.0);
+    assertEquals(histogram.getMax(), decoded.getMax(), 0.0);
+    assertEquals(histogram.bucketCount(), decoded.bucketCount());
+    for (int p = 0; p <= 100; p++) {
+      assertEquals(histogram.percentile(p), decoded.percentile(p), 0.0);
+    }
+    assertArrayEquals(encoded, decoded.histogram(true));
+    
+    // a few far apart values use the sparse layout, after the format, 
+    // accuracy, limit, zero count and min, max and sum.
+    final LogBucketHistogram sparse = new LogBucketHistogram(42, 0.01, 
+        2048);
+    sparse.add(0.001);
+    sparse.add(1);
+    sparse.add(1000000);
+    final byte[] sparse_encoded = sparse.histogram(false);
+    assertEquals(LogBucketHistogram.STORE_SPARSE, sparse_encoded[36]);
+    assertTrue(sparse_encoded.length < 60);
+    final LogBucketHistogram sparse_decoded = new LogBucketHistogram(42);
+    sparse_decoded.fromHistogram(sparse_encoded, false);
+    assertEquals(3, sparse_decoded.getCount());
+    assertEquals(1, sparse_decoded.percentile(50), 0.01);
+    
+    // empty
+    final LogBucketHistogram empty = new LogBucketHistogram(42, 0.01, 2048);
+    final byte[] empty_encoded = empty.histogram(false);
+    // plus one as the bucket limit takes two varint bytes.
+    assertEquals(LogBucketHistogram.MIN_ENCODED_SIZE + 1, 
+        empty_encoded.length);
+    final LogBucketHistogram empty_decoded = new LogBucketHistogram(42);
+    empty_decoded.fromHistogram(empty_encoded, false);
+    assertEquals(0, empty_decoded.getCount());
+    
+    try {
+      decoded.fromHistogram(new byte[] { 1, 2, 3 }, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    final byte[] bad = Arrays.copyOf(encoded, encoded.length);
+    bad[1] = 42;
+    try {
+      decoded.fromHistogram(bad, true);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      decoded.getCount();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
+  @Test
+  public void aggregate() throws Exception {
+    final Random rnd = new Random(42);
+    final LogBucketHistogram all = new LogBucketHistogram(42, 0.01, 2048);
+    final List<Histogram> parts = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      final LogBucketHistogram part = new LogBucketHistogram(42, 0.01, 2048);
+      for (int j = 0; j < 1000; j++) {
+        final double value = Math.exp(rnd.nextGaussian() + i);
+        part.add(value);
+        all.add(value);
+      }
+      parts.add(part);
+    }
+    
+    final LogBucketHistogram sum = new LogBucketHistogram(42, 0.01, 2048);
+    sum.aggregate(parts, HistogramAggregation.SUM);
+    assertEquals(all.getCount(), sum.getCount());
+    assertEquals(all.getMin(), sum.getMin(), 0.0);
+    assertEquals(all.getMax(), sum.getMax(), 0.0);
+    // bucket counts add exactly so the percentiles match.
+    for (int p = 0; p <= 100; p++) {
+      assertEquals(all.percentile(p), sum.percentile(p), 0.0);
+    }
+    
+    final LogBucketHistogram single = (LogBucketHistogram) parts.get(0)
+        .clone();
+    single.aggregate(parts.get(1), HistogramAggregation.SUM);
+    assertEquals(2000, single.getCount());
+    assertEquals(1000, ((LogBucketHistogram) parts.get(0)).getCount());
+    
+    try {
+      sum.aggregate(new LogBucketHistogram(42, 0.02, 2048), 
+          HistogramAggregation.SUM);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      sum.aggregate(new SimpleHistogram(42), HistogramAggregation.SUM);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      sum.aggregate(parts.get(0), null);
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) { }
+  }
+  
+  @Test
+  public void collapse() throws Exception {
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 16);
+    for (int i = 1; i <= 1000; i++) {
+      histogram.add(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertTrue(histogram.bucketCount() <= 16);
+    // the top of the range keeps its accuracy.
+    assertEquals(990, histogram.percentile(99), 990 * 0.01);
+    assertEquals(1, histogram.percentile(0), 0.0);
+    
+    // values below the kept range fold into the lowest bucket.
+    histogram.add(0.5);
+    assertEquals(1001, histogram.getCount());
+    assertTrue(histogram.bucketCount() <= 16);
+    
+    final LogBucketHistogram other = new LogBucketHistogram(42, 0.01, 16);
+    other.add(1000000);
+    histogram.aggregate(other, HistogramAggregation.SUM);
+    assertEquals(1002, histogram.getCount());
+    assertTrue(histogram.bucketCount() <= 16);
+    assertEquals(1000000, histogram.percentile(100), 0.0);
+    
+    final LogBucketHistogram decoded = new LogBucketHistogram(42);
+    decoded.fromHistogram(histogram.histogram(false), false);
+    assertEquals(1002, decoded.getCount());
+  }
+  
+  @Test
+  public void cloneIsIndependent() throws Exception {
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    histogram.add(42);
+    final LogBucketHistogram clone = (LogBucketHistogram) histogram.clone();
+    assertNotSame(histogram, clone);
+    clone.add(24);
+    assertEquals(1, histogram.getCount());
+    assertEquals(2, clone.getCount());
+    assertEquals(42, histogram.percentile(50), 0.42);
+  }
+  
+  @Test
+  public void getHistogram() throws Exception {
+    final LogBucketHistogram histogram = new LogBucketHistogram(42, 0.01, 
+        2048);
+    assertTrue(histogram.getHistogram().isEmpty());
+    for (int i = 1; i <= 1000; i++) {
+      histogram.add(i);
+    }
+    histogram.add(0);
+    histogram.add(-5, 3);
+    
+    final double[] boundaries = new double[] { -10, 0, 100, 500, 999.5 };
+    final double[] counts = histogram.bucketCounts(boundaries);
+    assertEquals(boundaries.length + 1, counts.length);
+    assertEquals(0, counts[0], 0.0);
+    assertEquals(4, counts[1], 0.0);
+    // values within the relative accuracy of a boundary may fall on either
+    // side of it.
+    assertEquals(100, counts[2], 1);
+    assertEquals(400, counts[3], 5);
+    assertEquals(500, counts[4], 10);
+    assertEquals(1, counts[5], 10);
+    double sum = 0;
+    for (final double count : counts) {
+      sum += count;
+    }
+    assertEquals(1004, sum, 0.0);
+    
+    final Map<Double, Long> map = histogram.getHistogram(boundaries);
+    assertEquals(boundaries.length + 1, map.size());
+    assertEquals(Double.POSITIVE_INFINITY, 
+        ((TreeMap<Double, Long>) map).lastKey(), 0.0);
+    
+    // default buckets, linear as the range includes negatives.
+    @SuppressWarnings("unchecked")
+    final Map<Double, Long> defaults = histogram.getHistogram();
+    assertEquals(HistogramBuckets.DEFAULT_BUCKETS + 2, defaults.size());
+    long total = 0;
+    for (final long count : defaults.values()) {
+      total += count;
+    }
+    assertEquals(1004, total);
+    
+    try {
+      histogram.bucketCounts(null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histogram.bucketCounts(new double[] { 2, 1 });
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new LogBucketHistogram(42).getHistogram();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+}
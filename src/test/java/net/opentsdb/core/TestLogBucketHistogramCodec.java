@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import net.opentsdb.utils.Config;
+
+public class TestLogBucketHistogramCodec {
+
+  @Test
+  public void encodeDecode() throws Exception {
+    final LogBucketHistogramCodec codec = new LogBucketHistogramCodec();
+    codec.setId(42);
+    final LogBucketHistogram histogram = codec.newHistogram();
+    assertEquals(42, histogram.getId());
+    for (int i = 1; i <= 100; i++) {
+      histogram.add(i);
+    }
+    
+    final byte[] encoded = codec.encode(histogram, true);
+    assertArrayEquals(histogram.histogram(true), encoded);
+    Histogram decoded = codec.decode(encoded, true);
+    assertEquals(42, decoded.getId());
+    assertEquals(50, decoded.percentile(50), 0.5);
+    
+    final ByteBuffer buf = ByteBuffer.allocate(encoded.length + 2);
+    buf.put((byte) 0);
+    buf.put(encoded);
+    buf.put((byte) 0);
+    buf.position(1);
+    decoded = codec.decodeBuffer(buf, true);
+    assertEquals(1, buf.position());
+    assertEquals(100, ((LogBucketHistogram) decoded).getCount());
+    
+    try {
+      codec.decode(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.decodeBuffer(ByteBuffer.allocate(8), false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.encode(new SimpleHistogram(42), false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.encode(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void configure() throws Exception {
+    final LogBucketHistogramCodec codec = new LogBucketHistogramCodec();
+    assertEquals(LogBucketHistogram.DEFAULT_RELATIVE_ACCURACY, 
+        codec.getRelativeAccuracy(), 0.0);
+    assertEquals(LogBucketHistogram.DEFAULT_MAX_BUCKETS, 
+        codec.getMaxBuckets());
+    
+    final Config config = new Config(false);
+    config.overrideConfig(LogBucketHistogramCodec.CONFIG_PREFIX 
+        + "relative_accuracy", "0.02");
+    config.overrideConfig(LogBucketHistogramCodec.CONFIG_PREFIX 
+        + "max_buckets", "512");
+    codec.configure(config);
+    assertEquals(0.02, codec.getRelativeAccuracy(), 0.0);
+    assertEquals(512, codec.getMaxBuckets());
+    assertEquals(0.02, codec.newHistogram().getRelativeAccuracy(), 0.0);
+    
+    config.overrideConfig(LogBucketHistogramCodec.CONFIG_PREFIX 
+        + "relative_accuracy", "2");
+    try {
+      codec.configure(config);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    assertEquals(0.02, codec.getRelativeAccuracy(), 0.0);
+    try {
+      codec.configure(null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+}
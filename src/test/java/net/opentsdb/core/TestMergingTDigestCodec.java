@@ -14,16 +14,29 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.tdunning.math.stats.MergingDigest;
 import com.tdunning.math.stats.TDigest;
 
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
 public class TestMergingTDigestCodec {
 
 private TDigest digest;
@@ -68,6 +81,382 @@ private TDigest digest;
     } catch (IllegalArgumentException e) { }
   }
   
+  @Test
+  public void decodeLazy() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    codec.setLazyDecode(true);
+    
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    
+    final byte[] raw = buf.array();
+    byte[] with_id = new byte[raw.length + 1];
+    with_id[0] = 42;
+    System.arraycopy(raw, 0, with_id, 1, raw.length);
+    
+    final MergingTDigestImplementation histo = 
+        (MergingTDigestImplementation) codec.decode(with_id, true);
+    assertTrue(histo.isLazy());
+    assertSame(with_id, codec.encode(histo, true));
+    assertArrayEquals(raw, codec.encode(histo, false));
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    assertArrayEquals(with_id, codec.encode(histo, true));
+  }
+  
+  @Test
+  public void decodeByteBuffer() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize() + 3);
+    buf.put((byte) 1);
+    buf.put((byte) 42);
+    digest.asSmallBytes(buf);
+    buf.flip();
+    buf.position(1);
+    final ByteBuffer cell = buf.slice();
+    
+    Histogram histo = codec.decodeBuffer(cell, true);
+    assertEquals(0, cell.position());
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    
+    codec.setLazyDecode(true);
+    histo = codec.decodeBuffer(cell, true);
+    assertEquals(smallBytes().length + 1, histo.histogram(true).length);
+    assertArrayEquals(smallBytes(), histo.histogram(false));
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    
+    final ByteBuffer direct = ByteBuffer.allocateDirect(cell.remaining());
+    direct.put(cell.duplicate());
+    direct.flip();
+    histo = codec.decodeBuffer(direct, true);
+    assertArrayEquals(smallBytes(), histo.histogram(false));
+    
+    try {
+      codec.decodeBuffer(null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.decodeBuffer(ByteBuffer.allocate(0), false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void encodeByteBuffer() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    final byte[] raw = smallBytes();
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.fromHistogram(raw, false);
+    assertEquals(raw.length + 1, histo.encodedSize(true));
+    
+    final ByteBuffer buf = ByteBuffer.allocate(raw.length * 2 + 1);
+    assertEquals(raw.length + 1, codec.encode(histo, true, buf));
+    assertEquals(raw.length, codec.encode(histo, false, buf));
+    
+    final byte[] expected = new byte[raw.length * 2 + 1];
+    expected[0] = 42;
+    System.arraycopy(raw, 0, expected, 1, raw.length);
+    System.arraycopy(raw, 0, expected, raw.length + 1, raw.length);
+    assertArrayEquals(expected, buf.array());
+    
+    try {
+      codec.encode(null, false, buf);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.encode(histo, false, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void compactEncoding() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    assertTrue(Double.isNaN(codec.getCompactRatio()));
+    
+    final byte[] raw = smallBytes();
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.fromHistogram(raw, false);
+    
+    codec.setCompactEncoding(true, false);
+    final byte[] compact = codec.encode(histo, true);
+    assertEquals(42, compact[0]);
+    assertEquals(CompactEncoding.FORMAT_FLOAT, compact[1]);
+    assertTrue(compact.length < raw.length + 1);
+    assertTrue(codec.getCompactRatio() < 1);
+    
+    // both formats decode regardless of the setting
+    Histogram decoded = codec.decode(compact, true);
+    assertEquals(42.5, decoded.percentile(95.0), 0.001);
+    assertEquals(1.0, decoded.percentile(0.0), 0.001);
+    decoded = codec.decode(raw, false);
+    assertEquals(42.5, decoded.percentile(95.0), 0.001);
+    
+    // lazy compact data passes through
+    codec.setLazyDecode(true);
+    decoded = codec.decode(compact, true);
+    assertSame(compact, codec.encode(decoded, true));
+    assertEquals(24.0, decoded.percentile(50.0), 0.001);
+    
+    codec.setCompactEncoding(false, false);
+    codec.setLazyDecode(false);
+    decoded = codec.decode(compact, true);
+    assertArrayEquals(raw, codec.encode(decoded, false));
+  }
+  
+  @Test
+  public void maxCompression() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    
+    final Random rnd = new Random(42);
+    final TDigest big = MergingDigest.createDigest(1000);
+    for (int i = 0; i < 100000; i++) {
+      big.add(Math.exp(rnd.nextGaussian()));
+    }
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(big);
+    final int original = codec.encode(histo, false).length;
+    
+    codec.setMaxCompression(100);
+    byte[] encoded = codec.encode(histo, false);
+    assertTrue(encoded.length < original);
+    assertEquals(1, codec.getRecompressedCount());
+    assertSame(big, histo.getDigest());
+    
+    Histogram decoded = codec.decode(encoded, false);
+    assertEquals(100, ((MergingTDigestImplementation) decoded).getDigest()
+        .compression(), 0.001);
+    assertEquals(100000, ((MergingTDigestImplementation) decoded).getDigest()
+        .size());
+    assertEquals(big.quantile(0.5), decoded.percentile(50), 0.01);
+    
+    // digests within the bound are untouched
+    final MergingTDigestImplementation small = 
+        new MergingTDigestImplementation(42);
+    small.setDigest(digest);
+    assertArrayEquals(smallBytes(), codec.encode(small, false));
+    assertEquals(1, codec.getRecompressedCount());
+    
+    // per-metric overrides
+    codec.setMaxCompression("sys.latency", 0);
+    assertEquals(original, 
+        codec.encodeForMetric(histo, false, "sys.latency").length);
+    codec.setMaxCompression("sys.latency", 50);
+    encoded = codec.encodeForMetric(histo, false, "sys.latency");
+    decoded = codec.decode(encoded, false);
+    assertEquals(50, ((MergingTDigestImplementation) decoded).getDigest()
+        .compression(), 0.001);
+    assertEquals(100, codec.getMaxCompression("sys.cpu"), 0.001);
+    
+    try {
+      codec.setMaxCompression(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.setMaxCompression(null, 100);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void configure() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.core.histograms.tdigest.lazy_decode", "true");
+    config.overrideConfig("tsd.core.histograms.tdigest.compact_encoding", 
+        "true");
+    config.overrideConfig("tsd.core.histograms.tdigest.max_compression", 
+        "200");
+    config.overrideConfig(
+        "tsd.core.histograms.tdigest.max_compression.metric.sys.latency", 
+        "50");
+    codec.configure(config);
+    
+    assertTrue(codec.isLazyDecode());
+    assertTrue(codec.isCompactEncoding());
+    assertEquals(200, codec.getMaxCompression(null), 0.001);
+    assertEquals(200, codec.getMaxCompression("sys.cpu"), 0.001);
+    assertEquals(50, codec.getMaxCompression("sys.latency"), 0.001);
+    
+    config.overrideConfig("tsd.core.histograms.tdigest.max_compression", 
+        "notanumber");
+    try {
+      codec.configure(config);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.configure(null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void configureParallelPool() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    final Config config = new Config(false);
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "parallel.threads", "2");
+    codec.configure(config);
+    final ForkJoinPool first = codec.getPool();
+    assertEquals(2, first.getParallelism());
+    
+    // the same thread count keeps the pool
+    codec.configure(config);
+    assertSame(first, codec.getPool());
+    
+    // a new thread count replaces and shuts down the old pool
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "parallel.threads", "3");
+    codec.configure(config);
+    final ForkJoinPool second = codec.getPool();
+    assertEquals(3, second.getParallelism());
+    assertTrue(first.isShutdown());
+    assertFalse(second.isShutdown());
+    
+    // histograms still holding the old pool aggregate sequentially
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(MergingDigest.createDigest(100));
+    histo.setParallelAggregation(first, 2);
+    final List<Histogram> histos = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      final MergingTDigestImplementation other = 
+          new MergingTDigestImplementation(42);
+      other.setDigest(digest);
+      histos.add(other);
+    }
+    histo.aggregate(histos, HistogramAggregation.SUM);
+    assertEquals(12, histo.getDigest().size());
+    
+    // disabling shuts it down too
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "parallel.threads", "0");
+    codec.configure(config);
+    assertNull(codec.getPool());
+    assertTrue(second.isShutdown());
+    
+    // a caller supplied pool replaces the configured one but is left alone
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "parallel.threads", "2");
+    codec.configure(config);
+    final ForkJoinPool third = codec.getPool();
+    final ForkJoinPool mine = new ForkJoinPool(1);
+    codec.setParallelAggregation(mine, 16);
+    assertTrue(third.isShutdown());
+    codec.setParallelAggregation(null, 16);
+    assertFalse(mine.isShutdown());
+    mine.shutdown();
+  }
+  
+  @Test
+  public void mergeEncoded() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    
+    final Random rnd = new Random(42);
+    final TDigest expected = MergingDigest.createDigest(100);
+    final List<byte[]> cells = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int x = 0; x < 100; x++) {
+        final double value = Math.exp(rnd.nextGaussian());
+        digest.add(value);
+        expected.add(value);
+      }
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(42);
+      histo.setDigest(digest);
+      // mix of formats
+      codec.setCompactEncoding(i % 2 == 0, false);
+      cells.add(codec.encode(histo, true));
+    }
+    
+    codec.setCompactEncoding(false, false);
+    byte[] merged = codec.mergeEncoded(cells, true, 100);
+    assertEquals(42, merged[0]);
+    assertEquals(0, merged[1]);
+    Histogram histo = codec.decode(merged, true);
+    TDigest digest = ((MergingTDigestImplementation) histo).getDigest();
+    assertEquals(20000, digest.size());
+    assertEquals(expected.getMin(), digest.getMin(), 0.0001);
+    assertEquals(expected.getMax(), digest.getMax(), 0.0001);
+    assertEquals(expected.quantile(0.5), histo.percentile(50), 0.05);
+    assertEquals(expected.quantile(0.99), histo.percentile(99), 0.5);
+    
+    codec.setCompactEncoding(true, false);
+    merged = codec.mergeEncoded(cells, true, 50);
+    assertTrue(CompactEncoding.isCompact(merged[1]));
+    histo = codec.decode(merged, true);
+    digest = ((MergingTDigestImplementation) histo).getDigest();
+    assertEquals(20000, digest.size());
+    assertEquals(50, digest.compression(), 0.0001);
+    
+    try {
+      codec.mergeEncoded(Lists.<byte[]>newArrayList(), true, 100);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.mergeEncoded(cells, true, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    try {
+      codec.mergeEncoded(Lists.<byte[]>newArrayList(new byte[4]), true, 100);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void mergeEncodedMatchesAggregate() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    
+    final Random rnd = new Random(42);
+    final List<byte[]> cells = Lists.newArrayList();
+    final List<Histogram> histos = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int x = 0; x < 100; x++) {
+        digest.add(Math.exp(rnd.nextGaussian()));
+      }
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(42);
+      histo.setDigest(digest);
+      cells.add(codec.encode(histo, false));
+      histos.add(codec.decode(codec.encode(histo, false), false));
+    }
+    
+    final Histogram merged = codec.decode(
+        codec.mergeEncoded(cells, false, 100), false);
+    final MergingTDigestImplementation aggregated = 
+        new MergingTDigestImplementation(42);
+    aggregated.setDigest(MergingDigest.createDigest(100));
+    aggregated.aggregate(histos, HistogramAggregation.SUM);
+    
+    final TDigest expected = ((MergingTDigestImplementation) merged)
+        .getDigest();
+    final TDigest actual = aggregated.getDigest();
+    assertEquals(expected.getMin(), actual.getMin(), 0.0);
+    assertEquals(expected.getMax(), actual.getMax(), 0.0);
+    assertEquals(expected.size(), actual.size());
+    assertEquals(merged.percentile(0), aggregated.percentile(0), 0.0);
+    assertEquals(merged.percentile(100), aggregated.percentile(100), 0.0);
+    assertEquals(merged.percentile(50), aggregated.percentile(50), 0.0001);
+  }
+  
   @Test
   public void encode() throws Exception {
     final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
@@ -94,4 +483,274 @@ private TDigest digest;
       fail("Expected IllegalArgumentException");
     } catch (IllegalArgumentException e) { }
   }
+  
+  @Test
+  public void summaryHeader() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    codec.setLazyDecode(true);
+    assertFalse(codec.isSummaryHeader());
+    
+    final byte[] raw = smallBytes();
+    codec.setSummaryHeader(true);
+    final byte[] encoded = codec.encode(codec.decode(raw, false), true);
+    assertEquals(42, encoded[0]);
+    assertEquals(CompactEncoding.FORMAT_SUMMARY_FLOAT, encoded[1]);
+    
+    final MergingTDigestImplementation histo = 
+        (MergingTDigestImplementation) codec.decode(encoded, true);
+    assertEquals(3, histo.getCount());
+    assertEquals(42.5, histo.getMax(), 0);
+    assertTrue(histo.isLazy());
+    // passed through as is
+    assertSame(encoded, codec.encode(histo, true));
+    
+    final byte[] merged = codec.mergeEncoded(
+        Lists.newArrayList(encoded, encoded), true, 100);
+    assertTrue(CompactEncoding.hasSummary(merged[1]));
+    assertEquals(6, ((MergingTDigestImplementation) codec.decode(merged, true))
+        .getCount());
+    
+    codec.setSummaryHeader(false);
+    codec.setLazyDecode(false);
+    assertArrayEquals(raw, codec.encode(codec.decode(encoded, true), false));
+    
+    final Config config = new Config(false);
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "summary_header", "true");
+    codec.configure(config);
+    assertTrue(codec.isSummaryHeader());
+  }
+  
+  @Test
+  public void decodeCache() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    codec.setLazyDecode(true);
+    codec.setDecodeCache(1024 * 1024);
+    
+    final byte[] raw = smallBytes();
+    final byte[] with_id = new byte[raw.length + 1];
+    with_id[0] = 42;
+    System.arraycopy(raw, 0, with_id, 1, raw.length);
+    
+    final MergingTDigestImplementation first = 
+        (MergingTDigestImplementation) codec.decode(raw, false);
+    assertFalse(first.isLazy());
+    assertTrue(first.isShared());
+    assertEquals(1, codec.getCacheMisses());
+    
+    final MergingTDigestImplementation second = 
+        (MergingTDigestImplementation) codec.decode(with_id, true);
+    final MergingTDigestImplementation third = 
+        (MergingTDigestImplementation) codec.decodeBuffer(
+            ByteBuffer.wrap(raw.clone()), false);
+    assertEquals(2, codec.getCacheHits());
+    assertEquals(1, codec.getCacheMisses());
+    assertSame(first.materialize(), second.materialize());
+    assertSame(first.materialize(), third.materialize());
+    
+    // aggregating copies the shared digest first
+    second.aggregate(third, HistogramAggregation.SUM);
+    assertFalse(second.isShared());
+    assertEquals(6, second.getCount());
+    assertEquals(3, first.getCount());
+    assertEquals(3, ((MergingTDigestImplementation) codec.decode(raw, false))
+        .getCount());
+    assertArrayEquals(raw, codec.encode(first, false));
+    
+    codec.setDecodeCache(0);
+    assertEquals(0, codec.getCacheHits());
+    assertTrue(((MergingTDigestImplementation) codec.decode(raw, false))
+        .isLazy());
+    try {
+      codec.setDecodeCache(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    final Config config = new Config(false);
+    config.overrideConfig(MergingTDigestTDigestCodec.CONFIG_PREFIX 
+        + "cache.max_bytes", "1048576");
+    codec.configure(config);
+    codec.decode(raw, false);
+    assertEquals(1, codec.getCacheMisses());
+  }
+  
+  @Test
+  public void decodeBatch() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    final Random rnd = new Random(42);
+    final List<byte[]> cells = Lists.newArrayList();
+    for (int i = 0; i < 300; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int j = 0; j < 50; j++) {
+        digest.add(i + rnd.nextDouble());
+      }
+      final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize() + 1);
+      buf.put((byte) 42);
+      digest.asSmallBytes(buf);
+      cells.add(buf.array());
+    }
+    
+    List<Histogram> histograms = codec.decodeBatch(cells, true);
+    assertEquals(300, histograms.size());
+    for (int i = 0; i < cells.size(); i++) {
+      assertArrayEquals(cells.get(i), histograms.get(i).histogram(true));
+    }
+    
+    // parallel
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      codec.setParallelAggregation(pool, 2);
+      histograms = codec.decodeBatch(cells, true);
+      assertEquals(300, histograms.size());
+      for (int i = 0; i < cells.size(); i++) {
+        final MergingTDigestImplementation histogram = 
+            (MergingTDigestImplementation) histograms.get(i);
+        assertFalse(histogram.isLazy());
+        assertEquals(i + 0.5, histogram.percentile(50), 0.5);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    
+    cells.add(new byte[] { 42, 0, 0 });
+    try {
+      codec.decodeBatch(cells, true);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.decodeBatch(null, true);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void decodeBatchBuffer() throws Exception {
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    final byte[] raw = smallBytes();
+    final TDigest other = MergingDigest.createDigest(100);
+    other.add(1000);
+    final ByteBuffer other_buf = ByteBuffer.allocate(other.smallByteSize());
+    other.asSmallBytes(other_buf);
+    final byte[] other_raw = other_buf.array();
+    
+    // two cells in one buffer with some padding in front.
+    final byte[] buffer = new byte[3 + raw.length + other_raw.length];
+    System.arraycopy(raw, 0, buffer, 3, raw.length);
+    System.arraycopy(other_raw, 0, buffer, 3 + raw.length, other_raw.length);
+    final int[] offsets = new int[] { 3, 3 + raw.length };
+    final int[] lengths = new int[] { raw.length, other_raw.length };
+    
+    final MergingTDigestImplementation[] results = 
+        new MergingTDigestImplementation[2];
+    codec.decodeBatch(buffer, offsets, lengths, false, results);
+    assertEquals(42.5, results[0].percentile(95.0), 0.001);
+    assertEquals(1000, results[1].percentile(95.0), 0.001);
+    
+    // reuse with the cells swapped
+    final MergingTDigestImplementation first = results[0];
+    final MergingTDigestImplementation second = results[1];
+    codec.decodeBatch(buffer, new int[] { 3 + raw.length, 3 }, 
+        new int[] { other_raw.length, raw.length }, false, results);
+    assertSame(first, results[0]);
+    assertSame(second, results[1]);
+    assertEquals(1000, results[0].percentile(95.0), 0.001);
+    assertEquals(42.5, results[1].percentile(95.0), 0.001);
+    
+    try {
+      codec.decodeBatch(buffer, offsets, new int[] { raw.length, 
+          other_raw.length + 1 }, false, results);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.decodeBatch(buffer, offsets, lengths, false, 
+          new MergingTDigestImplementation[1]);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      codec.decodeBatch(null, offsets, lengths, false, results);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void collectStats() throws Exception {
+    TDigestStats.reset();
+    final MergingTDigestTDigestCodec codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    final Map<String, Long> before = collect(codec);
+    assertEquals(0, (long) before.get(TDigestStats.PREFIX + "decode.count"));
+    
+    final byte[] raw = smallBytes();
+    final Histogram histo = codec.decode(raw, false);
+    histo.aggregate(Lists.newArrayList(codec.decode(raw, false)), 
+        HistogramAggregation.SUM);
+    final byte[] encoded = codec.encode(histo, true);
+    try {
+      codec.decode(new byte[] { 1, 2 }, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    
+    final Map<String, Long> after = collect(codec);
+    assertEquals(2, delta(before, after, "decode.count"));
+    assertEquals(raw.length * 2, delta(before, after, "decode.bytes"));
+    assertEquals(1, delta(before, after, "decode.failures"));
+    assertEquals(6, delta(before, after, "decode.centroids"));
+    assertEquals(1, delta(before, after, "encode.count"));
+    assertEquals(encoded.length, delta(before, after, "encode.bytes"));
+    assertEquals(1, delta(before, after, "aggregate.count"));
+    assertEquals(1, delta(before, after, "aggregate.digests"));
+    assertTrue(after.containsKey(
+        TDigestStats.PREFIX + "aggregate.latency_99pct"));
+    assertTrue(after.containsKey(TDigestStats.PREFIX + "decode.latency_50pct"));
+    assertEquals(0, (long) after.get(
+        TDigestStats.PREFIX + "encode.recompressed"));
+    assertEquals(1, delta(before, after, "aggregate.latency_count"));
+    
+    // latencies are per collection while counts are totals
+    final Map<String, Long> idle = collect(codec);
+    assertEquals(0, (long) idle.get(
+        TDigestStats.PREFIX + "aggregate.latency_count"));
+    assertEquals(0, (long) idle.get(
+        TDigestStats.PREFIX + "aggregate.latency_99pct"));
+    assertEquals(1, (long) idle.get(TDigestStats.PREFIX + "aggregate.count"));
+    
+    try {
+      codec.collectStats(null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  private static Map<String, Long> collect(
+      final MergingTDigestTDigestCodec codec) {
+    final Map<String, Long> stats = Maps.newHashMap();
+    codec.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String datapoint) { }
+      
+      @Override
+      public void record(final String name, 
+                         final long value, 
+                         final String xtratag) {
+        stats.put(name, value);
+      }
+    });
+    return stats;
+  }
+  
+  private static long delta(final Map<String, Long> before, 
+                            final Map<String, Long> after, 
+                            final String name) {
+    return after.get(TDigestStats.PREFIX + name) 
+        - before.get(TDigestStats.PREFIX + name);
+  }
+  
+  private byte[] smallBytes() {
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    return buf.array();
+  }
 }
@@ -14,12 +14,19 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -125,6 +132,125 @@ public class TestMergingTDigestImplementation {
     } catch (IllegalArgumentException e) { }
   }
   
+  @Test
+  public void fromHistogramLazy() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    byte[] raw = buf.array();
+    
+    histo.fromHistogram(raw, false, true);
+    assertTrue(histo.isLazy());
+    assertSame(raw, histo.histogram(false));
+    byte[] with_id = histo.histogram(true);
+    assertEquals(42, with_id[0]);
+    assertEquals(raw.length + 1, with_id.length);
+    assertTrue(histo.isLazy());
+    
+    histo.fromHistogram(with_id, true, true);
+    assertSame(with_id, histo.histogram(true));
+    assertArrayEquals(raw, histo.histogram(false));
+    
+    final MergingTDigestImplementation copy = 
+        (MergingTDigestImplementation) histo.clone();
+    assertTrue(copy.isLazy());
+    assertSame(with_id, copy.histogram(true));
+    
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    assertFalse(histo.isLazy());
+    assertArrayEquals(raw, histo.histogram(false));
+    assertTrue(copy.isLazy());
+    
+    // bad data only throws once read.
+    histo.fromHistogram(new byte[] { 0, 0, 0, 2, 64, 89, 0, 0, 0, 0, 0, 0, 
+        0, 0, 0, 3, 63, -128, 0, 0 }, false, true);
+    try {
+      histo.percentile(95.0);
+      fail("Expected BufferUnderflowException");
+    } catch (BufferUnderflowException e) { }
+    
+    try {
+      histo.fromHistogram(null, false, true);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void summary() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    final ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(buf);
+    histo.fromHistogram(buf.array(), false, true);
+    
+    // min and max come from the header of any format
+    assertEquals(1, histo.getMin(), 0);
+    assertEquals(42.5, histo.getMax(), 0);
+    assertEquals(42.5, histo.percentile(100), 0);
+    assertTrue(histo.isLazy());
+    assertEquals(3, histo.getCount());
+    assertEquals(67.5, histo.getSum(), 0.0001);
+    assertEquals(22.5, histo.getMean(), 0.0001);
+    assertFalse(histo.isLazy());
+    
+    histo.fromHistogram(CompactEncoding.encode(digest, true, 42, false, true), 
+        true, true);
+    assertEquals(3, histo.getCount());
+    assertEquals(67.5, histo.getSum(), 0.0001);
+    assertEquals(22.5, histo.getMean(), 0.0001);
+    assertEquals(1, histo.getMin(), 0);
+    assertEquals(42.5, histo.getMax(), 0);
+    assertEquals(1, histo.percentile(0), 0);
+    assertEquals(42.5, histo.percentile(100), 0);
+    assertTrue(histo.isLazy());
+    assertEquals(histo.percentile(99), digest.quantile(0.99), 0.0001);
+    assertFalse(histo.isLazy());
+    
+    final MergingTDigestImplementation empty = 
+        new MergingTDigestImplementation(42);
+    empty.setDigest(MergingDigest.createDigest(100));
+    assertEquals(0, empty.getCount());
+    assertTrue(Double.isNaN(empty.getMean()));
+    
+    try {
+      new MergingTDigestImplementation(42).getCount();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
+  @Test
+  public void sharedDigest() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setSharedDigest(digest);
+    assertTrue(histo.isShared());
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    
+    final TDigest copy = histo.getDigest();
+    assertFalse(histo.isShared());
+    assertNotSame(digest, copy);
+    TestCompactEncoding.assertSameCentroids(digest, copy);
+    assertEquals(digest.getMin(), copy.getMin(), 0);
+    assertEquals(digest.getMax(), copy.getMax(), 0);
+    
+    histo.setSharedDigest(digest);
+    final MergingTDigestImplementation other = 
+        new MergingTDigestImplementation(42);
+    other.setDigest(MergingDigest.createDigest(100));
+    other.getDigest().add(100);
+    histo.aggregate(other, HistogramAggregation.SUM);
+    assertEquals(4, histo.getCount());
+    assertEquals(3, digest.size());
+    
+    histo.setSharedDigest(digest);
+    histo.aggregate(Lists.<Histogram>newArrayList(other), 
+        HistogramAggregation.SUM);
+    assertFalse(histo.isShared());
+    assertEquals(4, histo.getCount());
+    assertEquals(3, digest.size());
+  }
+  
   @Test
   public void percentile() throws Exception {
     final MergingTDigestImplementation histo = 
@@ -165,6 +291,108 @@ public class TestMergingTDigestImplementation {
     } catch (IllegalArgumentException e) { }
   }
   
+  @Test
+  public void percentilesArray() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(digest);
+    
+    double[] percentiles = histo.percentiles(new double[] { 0, 50, 95.0 });
+    assertEquals(3, percentiles.length);
+    assertEquals(1.0, percentiles[0], 0.001);
+    assertEquals(24.0, percentiles[1], 0.001);
+    assertEquals(42.5, percentiles[2], 0.001);
+    
+    // unsorted
+    percentiles = histo.percentiles(new double[] { 95.0, 0, 50 });
+    assertEquals(42.5, percentiles[0], 0.001);
+    assertEquals(1.0, percentiles[1], 0.001);
+    assertEquals(24.0, percentiles[2], 0.001);
+    
+    final Random rnd = new Random(42);
+    final TDigest big = MergingDigest.createDigest(100);
+    for (int i = 0; i < 100000; i++) {
+      big.add(Math.exp(rnd.nextGaussian()));
+    }
+    histo.setDigest(big);
+    final double[] ps = new double[] { 99.99, 0, 0.1, 25, 50, 75, 90, 95, 99, 
+        99.9, 100 };
+    percentiles = histo.percentiles(ps);
+    for (int i = 0; i < ps.length; i++) {
+      assertEquals(big.quantile(ps[i] / 100), percentiles[i], 0.0000001);
+    }
+    
+    histo.setDigest(MergingDigest.createDigest(100));
+    assertTrue(Double.isNaN(histo.percentiles(new double[] { 50 })[0]));
+    
+    try {
+      histo.percentiles(new double[] { 0, 101 });
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void cdf() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(digest);
+    
+    assertEquals(0, histo.cdf(0.5), 0.001);
+    assertEquals(0.5, histo.cdf(24.0), 0.001);
+    assertEquals(1, histo.cdf(42.5), 0.001);
+    assertEquals(1, histo.cdf(100), 0.001);
+    final double mid = histo.cdf(30);
+    assertTrue(mid > 0.5 && mid < 1);
+    
+    final Random rnd = new Random(42);
+    final TDigest big = MergingDigest.createDigest(100);
+    for (int i = 0; i < 100000; i++) {
+      big.add(rnd.nextDouble() * 1000);
+    }
+    histo.setDigest(big);
+    assertEquals(0.25, histo.cdf(250), 0.01);
+    assertEquals(0.99, histo.cdf(990), 0.005);
+    // inverse of the percentile.
+    assertEquals(0.9, histo.cdf(histo.percentile(90)), 0.001);
+    
+    histo.setDigest(MergingDigest.createDigest(100));
+    assertTrue(Double.isNaN(histo.cdf(1)));
+  }
+  
+  @Test
+  public void indexInvalidated() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(digest);
+    assertEquals(42.5, histo.percentile(100), 0.001);
+    
+    final MergingTDigestImplementation copy = 
+        (MergingTDigestImplementation) histo.clone();
+    assertEquals(42.5, copy.percentile(100), 0.001);
+    
+    final TDigest digest2 = MergingDigest.createDigest(100);
+    digest2.add(89.3);
+    final MergingTDigestImplementation histo2 = 
+        new MergingTDigestImplementation(42);
+    histo2.setDigest(digest2);
+    
+    histo.aggregate(histo2, HistogramAggregation.SUM);
+    assertEquals(89.3, histo.percentile(100), 0.001);
+    assertEquals(42.5, copy.percentile(100), 0.001);
+    
+    copy.aggregate(Lists.<Histogram>newArrayList(histo2), 
+        HistogramAggregation.SUM);
+    assertEquals(89.3, copy.percentile(100), 0.001);
+    
+    copy.getDigest().add(150);
+    assertEquals(150, copy.percentile(100), 0.001);
+    
+    final TDigest digest3 = MergingDigest.createDigest(100);
+    digest3.add(12);
+    copy.setDigest(digest3);
+    assertEquals(12, copy.percentile(100), 0.001);
+  }
+  
 //  @Test
 //  public void mergingDigestSerDes() throws Exception {
 //    final TDigest out = MergingDigest.createDigest(100);
@@ -188,12 +416,71 @@ public class TestMergingTDigestImplementation {
 //    assertEquals(40.649, in.quantile(0.95), 0.001);
 //  }
   
-  @Test (expected = UnsupportedOperationException.class)
+  @Test
   public void getHistogram() throws Exception {
+    final Random rnd = new Random(42);
+    final TDigest uniform = MergingDigest.createDigest(100);
+    for (int i = 0; i < 100000; i++) {
+      uniform.add(rnd.nextDouble() * 1000);
+    }
     final MergingTDigestImplementation histo = 
         new MergingTDigestImplementation(42);
-    histo.setDigest(digest);
-    histo.getHistogram();
+    histo.setDigest(uniform);
+    
+    final double[] boundaries = new double[] { 
+        -1, 100, 200, 300, 400, 500, 600, 700, 800, 900, 1001 };
+    final double[] counts = histo.bucketCounts(boundaries);
+    assertEquals(boundaries.length + 1, counts.length);
+    assertEquals(0, counts[0], 0.0);
+    assertEquals(0, counts[counts.length - 1], 0.0);
+    double sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      sum += counts[i];
+      if (i > 0 && i < boundaries.length) {
+        // matches one CDF lookup per boundary.
+        assertEquals((histo.cdf(boundaries[i]) - histo.cdf(boundaries[i - 1]))
+            * 100000, counts[i], 0.0001);
+      }
+      if (i > 1 && i < boundaries.length - 1) {
+        assertEquals(10000, counts[i], 200);
+      }
+    }
+    assertEquals(100000, sum, 0.0001);
+    
+    final Map<Double, Long> map = histo.getHistogram(boundaries);
+    assertEquals(boundaries.length + 1, map.size());
+    assertEquals(Double.POSITIVE_INFINITY, 
+        ((TreeMap<Double, Long>) map).lastKey(), 0.0);
+    long total = 0;
+    for (final long count : map.values()) {
+      total += count;
+    }
+    assertEquals(100000, total);
+    
+    // default buckets
+    @SuppressWarnings("unchecked")
+    final Map<Double, Long> defaults = histo.getHistogram();
+    assertEquals(HistogramBuckets.DEFAULT_BUCKETS + 2, defaults.size());
+    total = 0;
+    for (final long count : defaults.values()) {
+      total += count;
+    }
+    assertEquals(100000, total);
+    
+    final MergingTDigestImplementation empty = 
+        new MergingTDigestImplementation(42);
+    empty.setDigest(MergingDigest.createDigest(100));
+    assertTrue(empty.getHistogram().isEmpty());
+    assertEquals(0, empty.bucketCounts(boundaries)[1], 0.0);
+    
+    try {
+      histo.bucketCounts(new double[] { 2, 1 });
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      histo.bucketCounts(null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
   }
   
   @Test
@@ -209,6 +496,48 @@ public class TestMergingTDigestImplementation {
     assertEquals(42.5, histo.percentile(95.0), 0.001);
   }
   
+  @Test
+  public void cloneCopyOnWrite() throws Exception {
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(digest);
+    assertEquals(42.5, histo.percentile(95.0), 0.001);
+    
+    final MergingTDigestImplementation copy = 
+        (MergingTDigestImplementation) histo.clone();
+    assertTrue(histo.isShared());
+    assertTrue(copy.isShared());
+    assertSame(histo.materialize(), copy.materialize());
+    assertArrayEquals(histo.histogram(false), copy.histogram(false));
+    assertEquals(42.5, copy.percentile(95.0), 0.001);
+    
+    final MergingTDigestImplementation other = 
+        new MergingTDigestImplementation(42);
+    other.setDigest(MergingDigest.createDigest(100));
+    other.getDigest().add(100);
+    copy.aggregate(other, HistogramAggregation.SUM);
+    assertFalse(copy.isShared());
+    assertNotSame(digest, copy.materialize());
+    assertEquals(4, copy.getCount());
+    assertEquals(100, copy.percentile(99.9), 0.001);
+    
+    // the original is untouched
+    assertEquals(3, histo.getCount());
+    assertEquals(3, digest.size());
+    assertEquals(42.5, histo.percentile(99.9), 0.001);
+    
+    // and still copies before it's modified
+    histo.aggregate(other, HistogramAggregation.SUM);
+    assertNotSame(digest, histo.materialize());
+    assertEquals(3, digest.size());
+    assertEquals(4, histo.getCount());
+    
+    try {
+      new MergingTDigestImplementation(42).clone();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
   @Test
   public void aggregate() throws Exception {
     TDigest digest2 = MergingDigest.createDigest(100);
@@ -275,6 +604,152 @@ public class TestMergingTDigestImplementation {
     } catch (IllegalArgumentException e) { }
   }
 
+  @Test
+  public void aggregateListParallel() throws Exception {
+    final Random rnd = new Random(42);
+    final List<Histogram> histos = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int x = 0; x < 20; x++) {
+        digest.add(Math.exp(rnd.nextGaussian()));
+      }
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(42);
+      histo.setDigest(digest);
+      histos.add(histo);
+    }
+    
+    final MergingTDigestImplementation sequential = 
+        new MergingTDigestImplementation(42);
+    sequential.setDigest(MergingDigest.createDigest(100));
+    sequential.aggregate(histos, HistogramAggregation.SUM);
+    
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final MergingTDigestImplementation parallel = 
+          new MergingTDigestImplementation(42);
+      parallel.setDigest(MergingDigest.createDigest(100));
+      parallel.setParallelAggregation(pool, 2);
+      parallel.aggregate(histos, HistogramAggregation.SUM);
+      
+      assertEquals(20000, parallel.getDigest().size());
+      assertEquals(sequential.percentile(50), parallel.percentile(50), 0.05);
+      assertEquals(sequential.percentile(99), parallel.percentile(99), 0.5);
+    } finally {
+      pool.shutdown();
+    }
+    
+    try {
+      sequential.setParallelAggregation(pool, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void aggregateListBounded() throws Exception {
+    final Random rnd = new Random(42);
+    final List<Histogram> histos = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      final TDigest input = MergingDigest.createDigest(100);
+      for (int j = 0; j < 1000; j++) {
+        input.add(rnd.nextGaussian() * 100 + i);
+      }
+      final MergingTDigestImplementation histo = 
+          new MergingTDigestImplementation(42);
+      histo.setDigest(input);
+      histos.add(histo);
+    }
+    final MergingTDigestImplementation expected = 
+        new MergingTDigestImplementation(42);
+    expected.setDigest(MergingDigest.createDigest(100));
+    expected.aggregate(histos, HistogramAggregation.SUM);
+    
+    final MergingTDigestImplementation bounded = 
+        new MergingTDigestImplementation(42);
+    bounded.setDigest(MergingDigest.createDigest(100));
+    bounded.setAggregationBudget(8 * 1024, null);
+    final long spilled = TDigestStats.SPILLED_RUNS.sum();
+    bounded.aggregate(histos, HistogramAggregation.SUM);
+    assertTrue(TDigestStats.SPILLED_RUNS.sum() > spilled);
+    TestCompactEncoding.assertSameCentroids(expected.getDigest(), 
+        bounded.getDigest());
+    
+    try {
+      bounded.setAggregationBudget(10, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      bounded.setAggregationBudget(-1, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void aggregateListLazy() throws Exception {
+    TDigest digest2 = MergingDigest.createDigest(100);
+    digest2.add(12);
+    digest2.add(89.3);
+    digest2.add(15);
+    final ByteBuffer buf = ByteBuffer.allocate(digest2.smallByteSize());
+    digest2.asSmallBytes(buf);
+    
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(digest);
+    
+    final MergingTDigestImplementation histo2 = 
+        new MergingTDigestImplementation(42);
+    histo2.fromHistogram(buf.array(), false, true);
+    
+    histo.aggregate(Lists.<Histogram>newArrayList(histo2), 
+        HistogramAggregation.SUM);
+    // read straight from the bytes
+    assertTrue(histo2.isLazy());
+    assertEquals(89.3, histo.percentile(95.0), 0.01);
+    assertEquals(19.5, histo.percentile(50.0), 0.01);
+    assertEquals(1.0, histo.percentile(0.0), 0.01);
+  }
+  
+  @Test
+  public void aggregateUncompressed() throws Exception {
+    // values stay buffered, outside of the digest's min and max, until the
+    // digest is compressed.
+    final TDigest low = MergingDigest.createDigest(100);
+    final TDigest high = MergingDigest.createDigest(100);
+    for (int i = 1; i <= 10; i++) {
+      low.add(i);
+      high.add(100 + i);
+    }
+    final TDigest middle = MergingDigest.createDigest(100);
+    middle.add(50);
+    middle.compress();
+    final MergingTDigestImplementation histo = 
+        new MergingTDigestImplementation(42);
+    histo.setDigest(middle);
+    final MergingTDigestImplementation histo2 = 
+        new MergingTDigestImplementation(42);
+    histo2.setDigest(low);
+    final MergingTDigestImplementation histo3 = 
+        new MergingTDigestImplementation(42);
+    histo3.setDigest(high);
+    
+    histo.aggregate(Lists.<Histogram>newArrayList(histo2, histo3), 
+        HistogramAggregation.SUM);
+    assertEquals(1, histo.percentile(0), 0.0);
+    assertEquals(110, histo.percentile(100), 0.0);
+    assertEquals(1, histo.getMin(), 0.0);
+    assertEquals(110, histo.getMax(), 0.0);
+    
+    final TDigest more = MergingDigest.createDigest(100);
+    more.add(250);
+    final MergingTDigestImplementation histo4 = 
+        new MergingTDigestImplementation(42);
+    histo4.setDigest(more);
+    histo.aggregate(histo4, HistogramAggregation.SUM);
+    assertEquals(1, histo.percentile(0), 0.0);
+    assertEquals(250, histo.percentile(100), 0.0);
+  }
+
   @Test
   public void foo() throws Exception {
     TDigest digest2 = MergingDigest.createDigest(100);
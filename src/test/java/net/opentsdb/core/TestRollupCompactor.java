@@ -0,0 +1,310 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestRollupCompactor {
+
+  private static final String[] SERIES = { "sys.cpu.user host=web01", 
+    "sys.cpu.user host=web02", "sys.cpu.user host=web03" };
+  
+  private File dir;
+  private MergingTDigestTDigestCodec codec;
+  private byte[] input;
+  
+  @Before
+  public void before() throws Exception {
+    dir = File.createTempFile("tdigest-test-", "");
+    dir.delete();
+    dir.mkdir();
+    codec = new MergingTDigestTDigestCodec();
+    codec.setId(42);
+    
+    // two days of one minute cells with 10 values each.
+    final Random rnd = new Random(42);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (int minute = 0; minute < 2 * 1440; minute++) {
+      for (int s = 0; s < SERIES.length; s++) {
+        final TDigest digest = MergingDigest.createDigest(100);
+        for (int i = 0; i < 10; i++) {
+          digest.add(s * 100 + rnd.nextDouble() * 100);
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(
+            digest.smallByteSize() + 1);
+        buf.put((byte) 42);
+        digest.asSmallBytes(buf);
+        RollupCompactor.writeRecord(out, SERIES[s], minute * 60000L, 
+            buf.array());
+      }
+    }
+    out.flush();
+    input = bytes.toByteArray();
+  }
+  
+  @After
+  public void after() throws Exception {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    try {
+      new RollupCompactor(null, 100, true, RollupCompactor.HOUR);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupCompactor(codec, 0, true, RollupCompactor.HOUR);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupCompactor(codec, 100, true);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupCompactor(codec, 100, true, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupCompactor(codec, 100, true, RollupCompactor.HOUR, 
+          RollupCompactor.HOUR);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupCompactor(codec, 100, true, RollupCompactor.HOUR)
+        .setCheckpointInterval(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void label() throws Exception {
+    assertEquals("1h", RollupCompactor.label(RollupCompactor.HOUR));
+    assertEquals("1d", RollupCompactor.label(RollupCompactor.DAY));
+    assertEquals("6h", RollupCompactor.label(6 * RollupCompactor.HOUR));
+    assertEquals("5m", RollupCompactor.label(300000));
+    assertEquals("1500ms", RollupCompactor.label(1500));
+  }
+  
+  @Test
+  public void compact() throws Exception {
+    final RollupCompactor compactor = new RollupCompactor(codec, 100, true, 
+        RollupCompactor.DAY, RollupCompactor.HOUR);
+    assertEquals(2 * 1440 * 3, compactor.compact(
+        new ByteArrayInputStream(input), dir));
+    assertFalse(new File(dir, RollupCompactor.CHECKPOINT_FILE).exists());
+    
+    final List<RollupCompactor.Record> hours = read("rollup-1h.bin");
+    assertEquals(48 * 3, hours.size());
+    for (int i = 0; i < hours.size(); i++) {
+      final RollupCompactor.Record record = hours.get(i);
+      assertEquals(SERIES[i % 3], record.series());
+      assertEquals((i / 3) * RollupCompactor.HOUR, record.timestamp());
+      final MergingTDigestImplementation histogram = 
+          (MergingTDigestImplementation) codec.decode(record.cell(), true);
+      assertEquals(600, histogram.getCount());
+    }
+    
+    final List<RollupCompactor.Record> days = read("rollup-1d.bin");
+    assertEquals(2 * 3, days.size());
+    for (int i = 0; i < days.size(); i++) {
+      final RollupCompactor.Record record = days.get(i);
+      assertEquals(SERIES[i % 3], record.series());
+      assertEquals((i / 3) * RollupCompactor.DAY, record.timestamp());
+      final MergingTDigestImplementation histogram = 
+          (MergingTDigestImplementation) codec.decode(record.cell(), true);
+      assertEquals(14400, histogram.getCount());
+      assertEquals((i % 3) * 100 + 50, histogram.percentile(50), 2);
+      assertEquals((i % 3) * 100 + 99, histogram.percentile(99), 1);
+    }
+  }
+  
+  @Test
+  public void restartFromCheckpoint() throws Exception {
+    final RollupCompactor compactor = new RollupCompactor(codec, 100, true, 
+        RollupCompactor.HOUR, RollupCompactor.DAY);
+    compactor.setCheckpointInterval(1000);
+    
+    // fail part way through the first day.
+    try {
+      compactor.compact(new FailingInputStream(
+          new ByteArrayInputStream(input), input.length / 3), dir);
+      fail("Expected IOException");
+    } catch (IOException e) { }
+    assertTrue(new File(dir, RollupCompactor.CHECKPOINT_FILE).exists());
+    
+    // replay the input from the start.
+    final long merged = compactor.compact(
+        new ByteArrayInputStream(input), dir);
+    assertTrue(merged < 2 * 1440 * 3);
+    assertTrue(merged > 0);
+    assertFalse(new File(dir, RollupCompactor.CHECKPOINT_FILE).exists());
+    
+    // no intervals lost or written twice.
+    final List<RollupCompactor.Record> hours = read("rollup-1h.bin");
+    assertEquals(48 * 3, hours.size());
+    for (int i = 0; i < hours.size(); i++) {
+      assertEquals((i / 3) * RollupCompactor.HOUR, hours.get(i).timestamp());
+      assertEquals(600, ((MergingTDigestImplementation) 
+          codec.decode(hours.get(i).cell(), true)).getCount());
+    }
+    final List<RollupCompactor.Record> days = read("rollup-1d.bin");
+    assertEquals(2 * 3, days.size());
+    for (int i = 0; i < days.size(); i++) {
+      final MergingTDigestImplementation histogram = 
+          (MergingTDigestImplementation) codec.decode(days.get(i).cell(), true);
+      assertEquals(14400, histogram.getCount());
+      assertEquals((i % 3) * 100 + 50, histogram.percentile(50), 2);
+    }
+  }
+  
+  @Test
+  public void restartMatchesUninterrupted() throws Exception {
+    final RollupCompactor compactor = new RollupCompactor(codec, 100, true, 
+        RollupCompactor.HOUR, RollupCompactor.DAY);
+    compactor.setCheckpointInterval(1000);
+    compactor.compact(new ByteArrayInputStream(input), dir);
+    final byte[] hours = Files.readAllBytes(
+        new File(dir, "rollup-1h.bin").toPath());
+    final byte[] days = Files.readAllBytes(
+        new File(dir, "rollup-1d.bin").toPath());
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    
+    try {
+      compactor.compact(new FailingInputStream(
+          new ByteArrayInputStream(input), input.length / 3), dir);
+      fail("Expected IOException");
+    } catch (IOException e) { }
+    compactor.compact(new ByteArrayInputStream(input), dir);
+    
+    // the checkpointed partials must not lose precision.
+    assertArrayEquals(hours, Files.readAllBytes(
+        new File(dir, "rollup-1h.bin").toPath()));
+    assertArrayEquals(days, Files.readAllBytes(
+        new File(dir, "rollup-1d.bin").toPath()));
+  }
+  
+  @Test
+  public void checkpointTierMismatch() throws Exception {
+    final RollupCompactor compactor = new RollupCompactor(codec, 100, true, 
+        RollupCompactor.HOUR);
+    compactor.setCheckpointInterval(1000);
+    try {
+      compactor.compact(new FailingInputStream(
+          new ByteArrayInputStream(input), input.length / 2), dir);
+      fail("Expected IOException");
+    } catch (IOException e) { }
+    
+    try {
+      new RollupCompactor(codec, 100, true, RollupCompactor.DAY)
+        .compact(new ByteArrayInputStream(input), dir);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+  
+  @Test
+  public void outOfOrder() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(input));
+    final RollupCompactor.Record record = RollupCompactor.readRecord(in);
+    RollupCompactor.writeRecord(out, "a", 60000, record.cell());
+    RollupCompactor.writeRecord(out, "a", 0, record.cell());
+    out.flush();
+    
+    try {
+      new RollupCompactor(codec, 100, true, RollupCompactor.HOUR)
+        .compact(new ByteArrayInputStream(bytes.toByteArray()), dir);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  /** Reads all records of an output file. */
+  private List<RollupCompactor.Record> read(final String name) 
+      throws Exception {
+    final List<RollupCompactor.Record> records = Lists.newArrayList();
+    final DataInputStream in = new DataInputStream(
+        new FileInputStream(new File(dir, name)));
+    try {
+      RollupCompactor.Record record;
+      while ((record = RollupCompactor.readRecord(in)) != null) {
+        records.add(record);
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+  
+  /** Throws after a number of bytes to simulate a crash. */
+  private static class FailingInputStream extends FilterInputStream {
+    private long remaining;
+    
+    FailingInputStream(final InputStream in, final long limit) {
+      super(in);
+      remaining = limit;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("Boom!");
+      }
+      return super.read();
+    }
+    
+    @Override
+    public int read(final byte[] b, final int off, final int len) 
+        throws IOException {
+      if (remaining <= 0) {
+        throw new IOException("Boom!");
+      }
+      final int read = super.read(b, off, (int) Math.min(len, remaining));
+      remaining -= read;
+      return read;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestSlidingWindowAggregator {
+
+  private List<MergingTDigestImplementation> histograms;
+  
+  @Before
+  public void before() throws Exception {
+    final Random rnd = new Random(42);
+    histograms = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      // shift the distribution so the window contents matter.
+      for (int j = 0; j < 100; j++) {
+        digest.add(i + rnd.nextDouble() * 10);
+      }
+      final MergingTDigestImplementation histogram = 
+          new MergingTDigestImplementation(42);
+      histogram.setDigest(digest);
+      histograms.add(histogram);
+    }
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    new SlidingWindowAggregator(42, 100, 10, 0);
+    new SlidingWindowAggregator(42, 100, 0, 60000);
+    new SlidingWindowAggregator(42, 100, 10, 60000);
+    
+    try {
+      new SlidingWindowAggregator(256, 100, 10, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new SlidingWindowAggregator(42, 0, 10, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new SlidingWindowAggregator(42, 100, -1, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new SlidingWindowAggregator(42, 100, 0, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void countWindow() throws Exception {
+    final SlidingWindowAggregator window = 
+        new SlidingWindowAggregator(42, 100, 10, 0);
+    assertEquals(0, window.result().getCount());
+    for (int i = 0; i < histograms.size(); i++) {
+      window.add(i, histograms.get(i));
+      assertEquals(Math.min(i + 1, 10), window.size());
+      assertWindow(window, Math.max(0, i - 9), i);
+    }
+  }
+  
+  @Test
+  public void timeWindow() throws Exception {
+    final SlidingWindowAggregator window = 
+        new SlidingWindowAggregator(42, 100, 0, 60000);
+    for (int i = 0; i < histograms.size(); i++) {
+      // one digest every 10 seconds so 6 fit in a minute.
+      window.add(i * 10000L, histograms.get(i));
+      assertEquals(Math.min(i + 1, 6), window.size());
+      assertWindow(window, Math.max(0, i - 5), i);
+    }
+    
+    window.advance(99 * 10000L + 30000);
+    assertEquals(3, window.size());
+    assertWindow(window, 97, 99);
+    window.advance(0);
+    assertEquals(3, window.size());
+    window.advance(99 * 10000L + 60000);
+    assertEquals(0, window.size());
+    assertEquals(0, window.result().getCount());
+    
+    try {
+      window.add(42, histograms.get(0));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    window.clear();
+    window.add(42, histograms.get(0));
+    assertEquals(1, window.size());
+  }
+  
+  @Test
+  public void mixedTypes() throws Exception {
+    final SlidingWindowAggregator window = 
+        new SlidingWindowAggregator(42, 100, 4, 0);
+    final ArrayTDigestImplementation array = 
+        new ArrayTDigestImplementation(42);
+    array.fromHistogram(histograms.get(1).histogram(false), false);
+    window.add(0, histograms.get(0));
+    window.add(1, array);
+    assertWindow(window, 0, 1);
+    
+    try {
+      window.add(2, new SimpleHistogram(42));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      window.add(2, null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  /**
+   * Compares the window result with summing the histograms from first to 
+   * last inclusive.
+   */
+  private void assertWindow(final SlidingWindowAggregator window, 
+                            final int first, 
+                            final int last) {
+    final TDigestAccumulator expected = new TDigestAccumulator(42, 100);
+    for (int i = first; i <= last; i++) {
+      expected.add(histograms.get(i));
+    }
+    final MergingTDigestImplementation sum = expected.finish();
+    final MergingTDigestImplementation result = window.result();
+    assertEquals(sum.getCount(), result.getCount());
+    assertEquals(sum.getMin(), result.getMin(), 0.0001);
+    assertEquals(sum.getMax(), result.getMax(), 0.0001);
+    assertEquals(sum.percentile(50), result.percentile(50), 0.5);
+    assertEquals(sum.percentile(99), result.percentile(99), 0.5);
+    assertTrue(result.getDigest().centroidCount() <= 200);
+  }
+}
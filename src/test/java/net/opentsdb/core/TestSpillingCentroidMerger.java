@@ -0,0 +1,175 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestSpillingCentroidMerger {
+  
+  private File dir;
+  private List<TDigest> digests;
+  
+  @Before
+  public void before() throws Exception {
+    dir = File.createTempFile("tdigest-test-", "");
+    dir.delete();
+    dir.mkdir();
+    
+    final Random rnd = new Random(42);
+    digests = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int j = 0; j < 1000; j++) {
+        digest.add(Math.exp(rnd.nextGaussian() + i % 7));
+      }
+      digest.compress();
+      digests.add(digest);
+    }
+  }
+  
+  @After
+  public void after() throws Exception {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    try {
+      new SpillingCentroidMerger(100, SpillingCentroidMerger.MIN_BYTES - 1, 
+          dir);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void inMemory() throws Exception {
+    final SpillingCentroidMerger spilling = 
+        new SpillingCentroidMerger(100, 64 * 1024 * 1024, dir);
+    final CentroidMerger merger = new CentroidMerger(16);
+    for (final TDigest digest : digests) {
+      spilling.add(digest);
+      merger.add(digest);
+    }
+    final TDigest result = spilling.finish();
+    assertEquals(0, spilling.runs());
+    assertEquals(0, dir.listFiles().length);
+    TestCompactEncoding.assertSameCentroids(merger.toDigest(100), result);
+  }
+  
+  @Test
+  public void spills() throws Exception {
+    final SpillingCentroidMerger spilling = 
+        new SpillingCentroidMerger(100, 16 * 1024, dir);
+    final CentroidMerger merger = new CentroidMerger(16);
+    for (final TDigest digest : digests) {
+      spilling.add(digest);
+      merger.add(digest);
+    }
+    assertTrue(spilling.runs() > 10);
+    assertEquals(1, dir.listFiles().length);
+    
+    final TDigest result = spilling.finish();
+    assertTrue(spilling.spilledBytes() > 0);
+    assertEquals(0, dir.listFiles().length);
+    // a single compression over the same sorted centroids.
+    TestCompactEncoding.assertSameCentroids(merger.toDigest(100), result);
+    assertEquals(200000, result.size());
+  }
+  
+  @Test
+  public void spillsUncompressed() throws Exception {
+    final SpillingCentroidMerger spilling = 
+        new SpillingCentroidMerger(100, 16 * 1024, dir);
+    final CentroidMerger merger = new CentroidMerger(16);
+    for (int i = 0; i < digests.size(); i++) {
+      // values buffered outside of the compressed range.
+      final TDigest digest = digests.get(i);
+      digest.add(-1 - i);
+      digest.add(1000000 + i);
+      spilling.add(digest);
+      merger.add(digest);
+    }
+    assertTrue(spilling.runs() > 1);
+    final TDigest result = spilling.finish();
+    assertEquals(-200, result.getMin(), 0.0);
+    assertEquals(1000199, result.getMax(), 0.0);
+    assertEquals(-200, result.quantile(0), 0.0);
+    assertEquals(1000199, result.quantile(1), 0.0);
+    TestCompactEncoding.assertSameCentroids(merger.toDigest(100), result);
+  }
+  
+  @Test
+  public void bufferWithinBudget() throws Exception {
+    final long budget = 16 * 1024;
+    final SpillingCentroidMerger spilling = 
+        new SpillingCentroidMerger(100, budget, dir);
+    for (final TDigest digest : digests) {
+      spilling.add(digest);
+      assertTrue((long) spilling.bufferCapacity() 
+          * SpillingCentroidMerger.HEAP_BYTES_PER_CENTROID <= budget);
+    }
+    spilling.close();
+  }
+  
+  @Test
+  public void spillsWithinDigest() throws Exception {
+    final TDigest digest = MergingDigest.createDigest(1000);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      digest.add(rnd.nextGaussian());
+    }
+    digest.compress();
+    final SpillingCentroidMerger spilling = new SpillingCentroidMerger(100, 
+        SpillingCentroidMerger.MIN_BYTES, dir);
+    spilling.add(digest);
+    // a single input larger than the budget is spilled part way through
+    assertTrue(spilling.runs() > 1);
+    assertTrue((long) spilling.bufferCapacity() 
+        * SpillingCentroidMerger.HEAP_BYTES_PER_CENTROID 
+        <= SpillingCentroidMerger.MIN_BYTES);
+    
+    final CentroidMerger merger = new CentroidMerger(16);
+    merger.add(digest);
+    TestCompactEncoding.assertSameCentroids(merger.toDigest(100), 
+        spilling.finish());
+  }
+  
+  @Test
+  public void close() throws Exception {
+    final SpillingCentroidMerger spilling = 
+        new SpillingCentroidMerger(100, 16 * 1024, dir);
+    for (final TDigest digest : digests) {
+      spilling.add(digest);
+    }
+    assertEquals(1, dir.listFiles().length);
+    spilling.close();
+    assertEquals(0, dir.listFiles().length);
+  }
+}
@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+
+public class TestTDigestAccumulator {
+
+  private List<byte[]> cells;
+  private TDigest expected;
+  
+  @Before
+  public void before() throws Exception {
+    final Random rnd = new Random(42);
+    cells = Lists.newArrayList();
+    expected = MergingDigest.createDigest(100);
+    for (int i = 0; i < 500; i++) {
+      final TDigest digest = MergingDigest.createDigest(100);
+      for (int j = 0; j < 100; j++) {
+        final double value = Math.exp(rnd.nextGaussian() + 2);
+        digest.add(value);
+        expected.add(value);
+      }
+      cells.add(TestArrayTDigestImplementation.smallBytes(digest));
+    }
+  }
+  
+  @Test
+  public void ctor() throws Exception {
+    final TDigestAccumulator accumulator = new TDigestAccumulator(42, 100);
+    assertEquals(1000, accumulator.bufferSize());
+    assertEquals(0, accumulator.inputs());
+    
+    try {
+      new TDigestAccumulator(256, 100);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new TDigestAccumulator(42, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new TDigestAccumulator(42, 100, 399);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void addCells() throws Exception {
+    final TDigestAccumulator accumulator = new TDigestAccumulator(42, 100);
+    int max_buffered = 0;
+    for (final byte[] cell : cells) {
+      accumulator.add(cell, false);
+      max_buffered = Math.max(max_buffered, accumulator.buffered());
+    }
+    assertEquals(500, accumulator.inputs());
+    // the buffer is compressed before an input that doesn't fit.
+    assertTrue(max_buffered <= accumulator.bufferSize());
+    
+    final MergingTDigestImplementation result = accumulator.finish();
+    assertEquals(42, result.getId());
+    assertEquals(50000, result.getCount());
+    assertEquals(expected.quantile(0.5), result.percentile(50), 0.1);
+    assertEquals(expected.quantile(0.99), result.percentile(99), 1);
+    assertEquals(0, accumulator.inputs());
+    assertEquals(0, accumulator.buffered());
+    
+    // reusable and with IDs
+    for (final byte[] cell : cells) {
+      final byte[] with_id = new byte[cell.length + 1];
+      with_id[0] = 42;
+      System.arraycopy(cell, 0, with_id, 1, cell.length);
+      accumulator.add(with_id, true);
+    }
+    final byte[] encoded = accumulator.finishEncoded(true);
+    assertEquals(42, encoded[0]);
+    final MergingTDigestImplementation decoded = 
+        new MergingTDigestImplementation(42);
+    decoded.fromHistogram(encoded, true);
+    assertEquals(50000, decoded.getCount());
+    assertEquals(result.percentile(99), decoded.percentile(99), 0.001);
+    // the same bytes as the digest's own small encoding.
+    assertArrayEquals(result.histogram(true), encoded);
+    
+    try {
+      accumulator.add((byte[]) null, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      accumulator.add(new byte[] { 0, 0, 0, 7, 0, 0, 0, 0, 0 }, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+  
+  @Test
+  public void addLargerThanBuffer() throws Exception {
+    final Random rnd = new Random(42);
+    final TDigest large = MergingDigest.createDigest(1000);
+    for (int i = 0; i < 100000; i++) {
+      large.add(rnd.nextGaussian());
+    }
+    large.compress();
+    assertTrue(large.centroidCount() > 400);
+    
+    final TDigestAccumulator accumulator = 
+        new TDigestAccumulator(42, 100, 400);
+    for (int i = 0; i < 3; i++) {
+      accumulator.add(TestArrayTDigestImplementation.smallBytes(large), false);
+      assertTrue(accumulator.buffered() <= accumulator.bufferSize());
+    }
+    final MergingTDigestImplementation result = accumulator.finish();
+    assertEquals(300000, result.getCount());
+    assertEquals(large.getMin(), result.getMin(), 0.0);
+    assertEquals(large.getMax(), result.getMax(), 0.0);
+    assertEquals(large.quantile(0.5), result.percentile(50), 0.05);
+  }
+  
+  @Test
+  public void addMalformedCell() throws Exception {
+    final TDigestAccumulator accumulator = new TDigestAccumulator(42, 100);
+    accumulator.add(cells.get(0), false);
+    final int buffered = accumulator.buffered();
+    
+    // truncated part way through the centroids
+    final byte[] cell = cells.get(1);
+    final byte[] truncated = new byte[cell.length - 6];
+    System.arraycopy(cell, 0, truncated, 0, truncated.length);
+    try {
+      accumulator.add(truncated, false);
+      fail("Expected BufferUnderflowException");
+    } catch (BufferUnderflowException e) { }
+    assertEquals(buffered, accumulator.buffered());
+    assertEquals(1, accumulator.inputs());
+    
+    final MergingTDigestImplementation result = accumulator.finish();
+    assertEquals(100, result.getCount());
+    final MergingTDigestImplementation first = 
+        new MergingTDigestImplementation(42);
+    first.fromHistogram(cells.get(0), false);
+    assertEquals(first.getDigest().getMin(), result.getDigest().getMin(), 
+        0.0);
+    assertEquals(first.getDigest().getMax(), result.getDigest().getMax(), 
+        0.0);
+  }
+  
+  @Test
+  public void addHistograms() throws Exception {
+    final MergingTDigestTDigestCodec merging = 
+        new MergingTDigestTDigestCodec();
+    merging.setId(42);
+    final ArrayTDigestTDigestCodec array = new ArrayTDigestTDigestCodec();
+    array.setId(42);
+    
+    final TDigestAccumulator accumulator = merging.newAccumulator(100);
+    for (int i = 0; i < cells.size(); i++) {
+      accumulator.add(i % 2 == 0 ? merging.decode(cells.get(i), false) 
+          : array.decode(cells.get(i), false));
+    }
+    final MergingTDigestImplementation result = accumulator.finish();
+    assertEquals(50000, result.getCount());
+    assertEquals(expected.quantile(0.5), result.percentile(50), 0.1);
+    
+    try {
+      accumulator.add(new SimpleHistogram(42));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      accumulator.add((Histogram) null);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+}